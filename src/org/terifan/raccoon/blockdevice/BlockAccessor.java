@@ -89,7 +89,7 @@ public class BlockAccessor implements AutoCloseable
 	}
 
 
-	public synchronized byte[] readBlock(BlockPointer aBlockPointer)
+	public byte[] readBlock(BlockPointer aBlockPointer)
 	{
 		if (aBlockPointer.getPhysicalSize() == 0)
 		{
@@ -100,7 +100,7 @@ public class BlockAccessor implements AutoCloseable
 	}
 
 
-	public synchronized byte[] readBlock(BlockPointer aBlockPointer, final byte[] aBuffer)
+	public byte[] readBlock(BlockPointer aBlockPointer, final byte[] aBuffer)
 	{
 		log.t("read block {}", aBlockPointer);
 
@@ -120,7 +120,7 @@ public class BlockAccessor implements AutoCloseable
 
 		mBlockDevice.readBlock(aBlockPointer.getBlockIndex0(), tmp, 0, aBlockPointer.getAllocatedSize(), aBlockPointer.getBlockKey());
 
-		if (!CompressorAlgorithm.decompress(aBlockPointer.getCompressionAlgorithm(), tmp, aBlockPointer.getPhysicalSize(), aBuffer, aBlockPointer.getLogicalSize()))
+		if (!CompressorAlgorithm.decompress(aBlockPointer.getCompressionAlgorithm(), tmp, aBlockPointer.getPhysicalSize(), aBuffer, aBlockPointer.getLogicalSize(), mBlockDevice.getCompressorPool()))
 		{
 			throw new RaccoonIOException("Error decompressing data");
 		}
@@ -143,11 +143,27 @@ public class BlockAccessor implements AutoCloseable
 
 	public BlockPointer writeBlock(byte[] aBuffer, int aBlockType, int aBlockLevel, int aCompressorLevel)
 	{
-		return writeBlock(aBuffer, 0, aBuffer.length, aBlockType, aBlockLevel, aCompressorLevel);
+		return writeBlock(aBuffer, 0, aBuffer.length, aBlockType, aBlockLevel, aCompressorLevel, null);
 	}
 
 
-	public synchronized BlockPointer writeBlock(byte[] aBuffer, int aOffset, int aLength, int aBlockType, int aBlockLevel, int aCompressorLevel)
+	public BlockPointer writeBlock(byte[] aBuffer, int aOffset, int aLength, int aBlockType, int aBlockLevel, int aCompressorLevel)
+	{
+		return writeBlock(aBuffer, aOffset, aLength, aBlockType, aBlockLevel, aCompressorLevel, null);
+	}
+
+
+	/**
+	 * @param aPrecedingBlock a block the new block is likely read together with, the new block is placed directly after it if possible.
+	 * May be null.
+	 */
+	public BlockPointer writeBlock(byte[] aBuffer, int aBlockType, int aBlockLevel, int aCompressorLevel, BlockPointer aPrecedingBlock)
+	{
+		return writeBlock(aBuffer, 0, aBuffer.length, aBlockType, aBlockLevel, aCompressorLevel, aPrecedingBlock);
+	}
+
+
+	public synchronized BlockPointer writeBlock(byte[] aBuffer, int aOffset, int aLength, int aBlockType, int aBlockLevel, int aCompressorLevel, BlockPointer aPrecedingBlock)
 	{
 		if (isAllZeros(aBuffer, aOffset, aLength))
 		{
@@ -176,7 +192,7 @@ public class BlockAccessor implements AutoCloseable
 			if (aCompressorLevel != CompressorAlgorithm.NONE.ordinal())
 			{
 				ByteBlockOutputStream tmp = new ByteBlockOutputStream(blockSize);
-				if (CompressorAlgorithm.compress(aCompressorLevel, aBuffer, aOffset, aLength, tmp))
+				if (CompressorAlgorithm.compress(aCompressorLevel, aBuffer, aOffset, aLength, tmp, mBlockDevice.getCompressorPool()))
 				{
 					output = tmp.getBuffer();
 					physicalSize = tmp.size();
@@ -201,7 +217,13 @@ public class BlockAccessor implements AutoCloseable
 
 			assert output.length % blockSize == 0 : output.length;
 
-			long blockIndex = mBlockDevice.allocBlock(output.length / blockSize);
+			long hint = -1;
+			if (aPrecedingBlock != null && aPrecedingBlock.getBlockType() != BlockType.HOLE && aPrecedingBlock.getAllocatedSize() > 0)
+			{
+				hint = aPrecedingBlock.getBlockIndex0() + aPrecedingBlock.getAllocatedSize() / blockSize;
+			}
+
+			long blockIndex = mBlockDevice.allocBlock(output.length / blockSize, hint);
 
 			blockPointer = new BlockPointer()
 				.setBlockType(aBlockType)
@@ -13,6 +13,8 @@ public interface BlockType
 	int LOB_NODE = 7;
 	int LOB_LEAF = 8;
 	int EXTERNAL = 9;
+	int SPACEMAP_LOG = 10;
+	int METADATA = 11;
 
 	// code 128-255 indicate not a BlockPointer
 
@@ -21,6 +23,6 @@ public interface BlockType
 
 	static String lookup(int aCode)
 	{
-		return new String[]{"HOLE","SYSTEM","SPACEMAP","ILLEGAL","UNKNOWN","BTREE_NODE","BTREE_LEAF","LOB_NODE","LOB_LEAF","EXTERNAL"}[aCode];
+		return new String[]{"HOLE","SYSTEM","SPACEMAP","ILLEGAL","UNKNOWN","BTREE_NODE","BTREE_LEAF","LOB_NODE","LOB_LEAF","EXTERNAL","SPACEMAP_LOG","METADATA"}[aCode];
 	}
 }
@@ -25,6 +25,7 @@ public class RaccoonStorage
 	private int mBlockSize;
 	private Level mLoggingLevel;
 	private boolean mSecure;
+	private StorageContext mContext;
 
 
 	public RaccoonStorage()
@@ -74,7 +75,7 @@ public class RaccoonStorage
 	 */
 	public RaccoonStorageInstance inFile(Path aPath)
 	{
-		return new RaccoonStorageInstance(secure(new FileBlockStorage(aPath, mBlockSize)));
+		return createInstance(new FileBlockStorage(aPath, mBlockSize));
 	}
 
 
@@ -119,7 +120,7 @@ public class RaccoonStorage
 	 */
 	public RaccoonStorageInstance inStorage(BlockStorage aBlockStorage)
 	{
-		return new RaccoonStorageInstance(secure(aBlockStorage));
+		return createInstance(aBlockStorage);
 	}
 
 
@@ -128,7 +129,18 @@ public class RaccoonStorage
 	 */
 	public RaccoonStorageInstance inMemory()
 	{
-		return new RaccoonStorageInstance(secure(new MemoryBlockStorage(mBlockSize)));
+		return createInstance(new MemoryBlockStorage(mBlockSize));
+	}
+
+
+	private RaccoonStorageInstance createInstance(BlockStorage aBlockStorage)
+	{
+		if (mContext == null)
+		{
+			return new RaccoonStorageInstance(secure(aBlockStorage), null);
+		}
+
+		return new RaccoonStorageInstance(mContext.cache(secure(mContext.register(aBlockStorage))), mContext);
 	}
 
 
@@ -239,6 +251,17 @@ public class RaccoonStorage
 	}
 
 
+	/**
+	 * Opens devices using the resources shared by all devices of the context: a block cache, commit threads and closing of idle
+	 * storages.
+	 */
+	public RaccoonStorage withContext(StorageContext aContext)
+	{
+		mContext = aContext;
+		return this;
+	}
+
+
 	public RaccoonStorage withLogging(Level aLevel)
 	{
 		mLoggingLevel = aLevel;
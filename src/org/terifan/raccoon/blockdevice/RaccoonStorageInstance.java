@@ -7,16 +7,26 @@ import org.terifan.raccoon.blockdevice.storage.BlockStorage;
 public class RaccoonStorageInstance
 {
 	private BlockStorage mBlockStorage;
+	private StorageContext mContext;
 
 
-	RaccoonStorageInstance(BlockStorage aBlockStorage)
+	RaccoonStorageInstance(BlockStorage aBlockStorage, StorageContext aContext)
 	{
 		mBlockStorage = aBlockStorage;
+		mContext = aContext;
 	}
 
 
 	public ManagedBlockDevice open(BlockDeviceOpenOption aOpenOption)
 	{
-		return new ManagedBlockDevice(mBlockStorage);
+		ManagedBlockDevice device = new ManagedBlockDevice(mBlockStorage);
+
+		if (mContext != null)
+		{
+			device.setCommitExecutor(mContext.getExecutor());
+			device.setCompressorPool(mContext::getCompressorPool);
+		}
+
+		return device;
 	}
 }
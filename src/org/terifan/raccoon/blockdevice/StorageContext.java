@@ -0,0 +1,302 @@
+package org.terifan.raccoon.blockdevice;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.compressor.CompressorPool;
+import org.terifan.raccoon.blockdevice.storage.BlockCache;
+import org.terifan.raccoon.blockdevice.storage.BlockStorage;
+import org.terifan.raccoon.blockdevice.storage.CachedBlockStorage;
+import org.terifan.raccoon.blockdevice.storage.LazyBlockStorage;
+
+
+/**
+ * Resources shared by many devices open at the same time: a block cache where each device is limited by a quota, a thread pool running
+ * asynchronous commits, a pool of compressor instances and a background task closing the storages of idle devices. Devices are opened
+ * through a RaccoonStorage using the context.
+ *
+ * <pre>
+ * StorageContext context = new StorageContext(256 &lt;&lt; 20).setDeviceCacheQuota(4 &lt;&lt; 20).setIdleTimeout(60_000);
+ *
+ * ManagedBlockDevice device = new RaccoonStorage().withContext(context).inFile(path).open(BlockDeviceOpenOption.OPEN);
+ * </pre>
+ */
+public class StorageContext implements AutoCloseable
+{
+	private final Logger log = Logger.getLogger();
+
+	private final BlockCache mBlockCache;
+	private final Set<LazyBlockStorage> mStorages;
+	private final ExecutorService mExecutor;
+	private final ScheduledExecutorService mScheduler;
+	private ScheduledFuture<?> mIdleSweep;
+	private volatile CompressorPool mCompressorPool;
+	private long mDeviceCacheQuota;
+	private long mIdleTimeout;
+	private boolean mClosed;
+
+
+	public StorageContext()
+	{
+		this(64 << 20);
+	}
+
+
+	/**
+	 * @param aCacheCapacity maximum number of bytes held by the block cache shared by all devices
+	 */
+	public StorageContext(long aCacheCapacity)
+	{
+		mBlockCache = new BlockCache(aCacheCapacity);
+		mStorages = ConcurrentHashMap.newKeySet();
+		mDeviceCacheQuota = aCacheCapacity / 16;
+		mCompressorPool = new CompressorPool(16);
+		mExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory("StorageContext io"));
+		mScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("StorageContext idle"));
+	}
+
+
+	public BlockCache getBlockCache()
+	{
+		return mBlockCache;
+	}
+
+
+	/**
+	 * Sets the capacity of the shared block cache.
+	 */
+	public StorageContext setCacheCapacity(long aCacheCapacity)
+	{
+		mBlockCache.setCapacity(aCacheCapacity);
+		return this;
+	}
+
+
+	public synchronized long getDeviceCacheQuota()
+	{
+		return mDeviceCacheQuota;
+	}
+
+
+	/**
+	 * Sets the number of bytes each device may occupy in the shared block cache. Applies to devices opened after the change. Default is
+	 * 1/16 of the cache capacity.
+	 */
+	public synchronized StorageContext setDeviceCacheQuota(long aQuota)
+	{
+		if (aQuota < 0)
+		{
+			throw new IllegalArgumentException("aQuota is negative");
+		}
+
+		mDeviceCacheQuota = aQuota;
+		return this;
+	}
+
+
+	public synchronized long getIdleTimeout()
+	{
+		return mIdleTimeout;
+	}
+
+
+	/**
+	 * Sets the time in milliseconds a device may stay unused before its storage is closed, the storage is opened again when the device
+	 * is used. Default is 0 which never closes storages.
+	 */
+	public synchronized StorageContext setIdleTimeout(long aIdleTimeout)
+	{
+		if (aIdleTimeout < 0)
+		{
+			throw new IllegalArgumentException("aIdleTimeout is negative");
+		}
+
+		assertNotClosed();
+
+		mIdleTimeout = aIdleTimeout;
+
+		if (mIdleSweep != null)
+		{
+			mIdleSweep.cancel(false);
+			mIdleSweep = null;
+		}
+
+		if (aIdleTimeout > 0)
+		{
+			long interval = Math.max(aIdleTimeout / 4, 10);
+			mIdleSweep = mScheduler.scheduleWithFixedDelay(this::closeIdleStorages, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		return this;
+	}
+
+
+	/**
+	 * @return the compressor instances shared by all devices
+	 */
+	public CompressorPool getCompressorPool()
+	{
+		return mCompressorPool;
+	}
+
+
+	/**
+	 * Sets the number of idle compressor instances kept for each compression level. Open devices use the new pool for their next block,
+	 * the idle instances of the previous pool are released. Default is 16.
+	 */
+	public synchronized StorageContext setCompressorPoolCapacity(int aCapacity)
+	{
+		assertNotClosed();
+
+		CompressorPool pool = mCompressorPool;
+		mCompressorPool = new CompressorPool(aCapacity);
+		pool.close();
+		return this;
+	}
+
+
+	/**
+	 * @return the thread pool shared by all devices for asynchronous commits
+	 */
+	public Executor getExecutor()
+	{
+		return mExecutor;
+	}
+
+
+	/**
+	 * @return number of registered storages not yet closed.
+	 */
+	public int getStorageCount()
+	{
+		return mStorages.size();
+	}
+
+
+	/**
+	 * Returns a storage closed when idle and opened again when used. The storage is registered with this context until it's closed.
+	 */
+	public synchronized LazyBlockStorage register(BlockStorage aBlockStorage)
+	{
+		assertNotClosed();
+
+		LazyBlockStorage storage = new LazyBlockStorage(aBlockStorage, mStorages::remove);
+		mStorages.add(storage);
+
+		return storage;
+	}
+
+
+	/**
+	 * Returns a storage keeping recently used blocks in the shared block cache limited by the device quota.
+	 */
+	public synchronized CachedBlockStorage cache(BlockStorage aBlockStorage)
+	{
+		assertNotClosed();
+
+		return new CachedBlockStorage(aBlockStorage, mBlockCache, mDeviceCacheQuota);
+	}
+
+
+	/**
+	 * Closes the storages of registered devices unused for the time specified.
+	 *
+	 * @return number of storages closed
+	 */
+	public int closeIdleStorages(long aIdleTimeout)
+	{
+		int count = 0;
+
+		for (LazyBlockStorage storage : mStorages)
+		{
+			try
+			{
+				if (storage.closeIfIdle(aIdleTimeout))
+				{
+					count++;
+				}
+			}
+			catch (RuntimeException e)
+			{
+				log.e("Failed to close idle storage", e);
+			}
+		}
+
+		return count;
+	}
+
+
+	private void closeIdleStorages()
+	{
+		int count = closeIdleStorages(getIdleTimeout());
+
+		if (count > 0)
+		{
+			log.d("closed {} idle storages", count);
+		}
+	}
+
+
+	/**
+	 * Stops the shared threads and releases the compressor instances. Devices using the context should be closed first, their storages
+	 * are not closed by the context.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (!mClosed)
+		{
+			mClosed = true;
+			mScheduler.shutdownNow();
+			mExecutor.shutdown();
+			mCompressorPool.close();
+		}
+	}
+
+
+	private void assertNotClosed()
+	{
+		if (mClosed)
+		{
+			throw new IllegalStateException("StorageContext is closed.");
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "StorageContext{storages=" + mStorages.size() + ", cache=" + mBlockCache + ", compressors=" + mCompressorPool + "}";
+	}
+
+
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final String mName;
+		private final AtomicInteger mCount;
+
+
+		DaemonThreadFactory(String aName)
+		{
+			mName = aName;
+			mCount = new AtomicInteger();
+		}
+
+
+		@Override
+		public Thread newThread(Runnable aRunnable)
+		{
+			Thread thread = new Thread(aRunnable, mName + " " + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -12,6 +12,15 @@ public enum CompressorAlgorithm
 
 
 	public static boolean compress(int aAlgorithm, byte[] aInput, int aOffset, int aLength, ByteBlockOutputStream aOutputStream)
+	{
+		return compress(aAlgorithm, aInput, aOffset, aLength, aOutputStream, null);
+	}
+
+
+	/**
+	 * @param aPool pool of Deflater and Inflater instances, null if not used
+	 */
+	public static boolean compress(int aAlgorithm, byte[] aInput, int aOffset, int aLength, ByteBlockOutputStream aOutputStream, CompressorPool aPool)
 	{
 		switch (aAlgorithm)
 		{
@@ -20,17 +29,26 @@ public enum CompressorAlgorithm
 			case 2:
 				return new LZJB().compress(aInput, aOffset, aLength, aOutputStream);
 			case 3:
-				return new DeflateFast().compress(aInput, aOffset, aLength, aOutputStream);
+				return new DeflateFast(aPool).compress(aInput, aOffset, aLength, aOutputStream);
 			case 4:
-				return new DeflateDefault().compress(aInput, aOffset, aLength, aOutputStream);
+				return new DeflateDefault(aPool).compress(aInput, aOffset, aLength, aOutputStream);
 			case 5:
-				return new DeflateBest().compress(aInput, aOffset, aLength, aOutputStream);
+				return new DeflateBest(aPool).compress(aInput, aOffset, aLength, aOutputStream);
 		}
 		throw new IllegalArgumentException("Unsupported compression algorithm: " + aAlgorithm);
 	}
 
 
 	public static boolean decompress(int aAlgorithm, byte[] aInput, int aInputLength, byte[] aOutput, int aOutputLength)
+	{
+		return decompress(aAlgorithm, aInput, aInputLength, aOutput, aOutputLength, null);
+	}
+
+
+	/**
+	 * @param aPool pool of Deflater and Inflater instances, null if not used
+	 */
+	public static boolean decompress(int aAlgorithm, byte[] aInput, int aInputLength, byte[] aOutput, int aOutputLength, CompressorPool aPool)
 	{
 		switch (aAlgorithm)
 		{
@@ -42,11 +60,11 @@ public enum CompressorAlgorithm
 			case 2:
 				return new LZJB().decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
 			case 3:
-				return new DeflateFast().decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
+				return new DeflateFast(aPool).decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
 			case 4:
-				return new DeflateDefault().decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
+				return new DeflateDefault(aPool).decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
 			case 5:
-				return new DeflateBest().decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
+				return new DeflateBest(aPool).decompress(aInput, 0, aInputLength, aOutput, 0, aOutputLength);
 		}
 		throw new IllegalArgumentException("Unsupported compression algorithm: " + aAlgorithm);
 	}
@@ -0,0 +1,124 @@
+package org.terifan.raccoon.blockdevice.compressor;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Deflater and Inflater instances hold native memory and are kept in this pool instead of being created for every block. At most
+ * aCapacity idle instances are kept for each compression level, instances returned to a full or closed pool are released.
+ */
+public class CompressorPool implements AutoCloseable
+{
+	private final int mCapacity;
+	private final ConcurrentHashMap<Integer, ArrayBlockingQueue<Deflater>> mDeflaters;
+	private final ArrayBlockingQueue<Inflater> mInflaters;
+	private volatile boolean mClosed;
+
+
+	/**
+	 * @param aCapacity maximum number of idle instances kept for each compression level and for decompression
+	 */
+	public CompressorPool(int aCapacity)
+	{
+		if (aCapacity < 1)
+		{
+			throw new IllegalArgumentException("aCapacity must be positive");
+		}
+
+		mCapacity = aCapacity;
+		mDeflaters = new ConcurrentHashMap<>();
+		mInflaters = new ArrayBlockingQueue<>(aCapacity);
+	}
+
+
+	public int getCapacity()
+	{
+		return mCapacity;
+	}
+
+
+	public boolean isClosed()
+	{
+		return mClosed;
+	}
+
+
+	Deflater borrowDeflater(int aLevel)
+	{
+		Deflater deflater = mDeflaters.computeIfAbsent(aLevel, e -> new ArrayBlockingQueue<>(mCapacity)).poll();
+
+		return deflater != null ? deflater : new Deflater(aLevel);
+	}
+
+
+	void returnDeflater(int aLevel, Deflater aDeflater)
+	{
+		aDeflater.reset();
+
+		if (mClosed || !mDeflaters.get(aLevel).offer(aDeflater))
+		{
+			aDeflater.end();
+		}
+		else if (mClosed && mDeflaters.get(aLevel).remove(aDeflater))
+		{
+			// the pool was closed while the instance was added
+			aDeflater.end();
+		}
+	}
+
+
+	Inflater borrowInflater()
+	{
+		Inflater inflater = mInflaters.poll();
+
+		return inflater != null ? inflater : new Inflater();
+	}
+
+
+	void returnInflater(Inflater aInflater)
+	{
+		aInflater.reset();
+
+		if (mClosed || !mInflaters.offer(aInflater))
+		{
+			aInflater.end();
+		}
+		else if (mClosed && mInflaters.remove(aInflater))
+		{
+			// the pool was closed while the instance was added
+			aInflater.end();
+		}
+	}
+
+
+	/**
+	 * Releases the idle instances. Instances in use are released when returned.
+	 */
+	@Override
+	public void close()
+	{
+		mClosed = true;
+
+		ArrayList<Deflater> deflaters = new ArrayList<>();
+		for (ArrayBlockingQueue<Deflater> queue : mDeflaters.values())
+		{
+			queue.drainTo(deflaters);
+		}
+		deflaters.forEach(Deflater::end);
+
+		ArrayList<Inflater> inflaters = new ArrayList<>();
+		mInflaters.drainTo(inflaters);
+		inflaters.forEach(Inflater::end);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "CompressorPool{capacity=" + mCapacity + ", inflaters=" + mInflaters.size() + ", closed=" + mClosed + "}";
+	}
+}
@@ -7,6 +7,15 @@ public class DeflateBest extends DeflateCompressor
 {
 	public DeflateBest()
 	{
-		super(Deflater.BEST_COMPRESSION);
+		this(null);
+	}
+
+
+	/**
+	 * @param aPool pool of Deflater and Inflater instances, null if not used
+	 */
+	public DeflateBest(CompressorPool aPool)
+	{
+		super(Deflater.BEST_COMPRESSION, aPool);
 	}
 }
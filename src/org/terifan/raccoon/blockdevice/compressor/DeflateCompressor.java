@@ -4,24 +4,33 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 
+/**
+ * Deflate compressor. Deflater and Inflater instances are taken from the pool provided, without a pool a new instance is created and
+ * released for every block.
+ */
 class DeflateCompressor implements Compressor
 {
+	private final CompressorPool mPool;
 	private int mLevel;
 
 
-	DeflateCompressor(int aLevel)
+	DeflateCompressor(int aLevel, CompressorPool aPool)
 	{
 		mLevel = aLevel;
+		mPool = aPool;
 	}
 
 
 	@Override
 	public boolean compress(byte[] aInput, int aInputOffset, int aInputLength, ByteBlockOutputStream aOutputStream)
 	{
-		try (DeflaterOutputStream dis = new DeflaterOutputStream(aOutputStream, new Deflater(mLevel)))
+		Deflater deflater = mPool == null ? new Deflater(mLevel) : mPool.borrowDeflater(mLevel);
+
+		try (DeflaterOutputStream dis = new DeflaterOutputStream(aOutputStream, deflater))
 		{
 			dis.write(aInput, aInputOffset, aInputLength);
 			return aOutputStream.size() < aInputLength;
@@ -31,13 +40,26 @@ class DeflateCompressor implements Compressor
 			e.printStackTrace(System.out);
 			return false;
 		}
+		finally
+		{
+			if (mPool == null)
+			{
+				deflater.end();
+			}
+			else
+			{
+				mPool.returnDeflater(mLevel, deflater);
+			}
+		}
 	}
 
 
 	@Override
 	public boolean decompress(byte[] aInput, int aInputOffset, int aInputLength, byte[] aOutput, int aOutputOffset, int aOutputLength)
 	{
-		try (InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(aInput, aInputOffset, aInputLength)))
+		Inflater inflater = mPool == null ? new Inflater() : mPool.borrowInflater();
+
+		try (InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(aInput, aInputOffset, aInputLength), inflater))
 		{
 			for (int position = aOutputOffset, remaining = aOutputLength;;)
 			{
@@ -57,5 +79,16 @@ class DeflateCompressor implements Compressor
 			e.printStackTrace(System.out);
 			return false;
 		}
+		finally
+		{
+			if (mPool == null)
+			{
+				inflater.end();
+			}
+			else
+			{
+				mPool.returnInflater(inflater);
+			}
+		}
 	}
 }
@@ -7,6 +7,15 @@ public class DeflateDefault extends DeflateCompressor
 {
 	public DeflateDefault()
 	{
-		super(Deflater.DEFAULT_COMPRESSION);
+		this(null);
+	}
+
+
+	/**
+	 * @param aPool pool of Deflater and Inflater instances, null if not used
+	 */
+	public DeflateDefault(CompressorPool aPool)
+	{
+		super(Deflater.DEFAULT_COMPRESSION, aPool);
 	}
 }
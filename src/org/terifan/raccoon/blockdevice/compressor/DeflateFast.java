@@ -7,6 +7,15 @@ public class DeflateFast extends DeflateCompressor
 {
 	public DeflateFast()
 	{
-		super(Deflater.BEST_SPEED);
+		this(null);
+	}
+
+
+	/**
+	 * @param aPool pool of Deflater and Inflater instances, null if not used
+	 */
+	public DeflateFast(CompressorPool aPool)
+	{
+		super(Deflater.BEST_SPEED, aPool);
 	}
 }
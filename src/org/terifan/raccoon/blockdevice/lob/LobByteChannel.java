@@ -11,6 +11,9 @@ import org.terifan.logging.Logger;
 import org.terifan.logging.Unit;
 import org.terifan.raccoon.blockdevice.BlockAccessor;
 import org.terifan.raccoon.blockdevice.BlockPointer;
+import org.terifan.raccoon.blockdevice.managed.BlockOwner;
+import org.terifan.raccoon.blockdevice.managed.BlockRelocator;
+import org.terifan.raccoon.blockdevice.managed.BlockRemapper;
 import org.terifan.raccoon.document.Document;
 import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
 
@@ -22,7 +25,7 @@ import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
 //                  /   |    \     /   |    \                         /   |    \     /   |    \
 //                leaf hole leaf leaf leaf hole                     hole leaf leaf leaf leaf leaf
 
-public class LobByteChannel implements SeekableByteChannel
+public class LobByteChannel implements SeekableByteChannel, BlockOwner
 {
 	private final static Logger log = Logger.getLogger();
 
@@ -42,6 +45,8 @@ public class LobByteChannel implements SeekableByteChannel
 	private LobPage mRoot;
 	private long mPosition;
 
+	BlockPointer mPrecedingBlock;
+
 	int mNodeSize;
 	int mLeafSize;
 	int mCompressor;
@@ -284,6 +289,66 @@ public class LobByteChannel implements SeekableByteChannel
 	}
 
 
+	/**
+	 * Moves the pages of this channel using the relocator, the pages referring to moved pages are rewritten and the header updated with
+	 * the new root pointer.
+	 */
+	@Override
+	public synchronized void relocateBlocks(BlockRelocator aRelocator)
+	{
+		if (mClosed || mRoot.mBlockPointer == null)
+		{
+			return;
+		}
+
+		log.d("relocating lob");
+		log.inc();
+
+		mRoot.relocate(aRelocator);
+
+		if (mRoot.mState == LobPageState.PERSISTED)
+		{
+			mRoot.mBlockPointer = aRelocator.relocate(mRoot.mBlockPointer);
+		}
+
+		flush();
+
+		mHeader.put(IX_POINTER, mRoot.mBlockPointer.toByteArray());
+
+		log.dec();
+	}
+
+
+	/**
+	 * Updates the pointers of a channel copied to another device by BlockDeviceCopier. The interior pages are rewritten on the target
+	 * device and the header updated with the new root pointer.
+	 *
+	 * @param aBlockAccessor accessor of the target device
+	 * @param aHeader the header of the channel, updated by this method
+	 */
+	public static void remapBlocks(BlockAccessor aBlockAccessor, Document aHeader, BlockRemapper aRemapper) throws IOException
+	{
+		byte[] pointer = aHeader.getBinary(IX_POINTER);
+
+		if (pointer == null)
+		{
+			return;
+		}
+
+		log.d("remapping lob");
+		log.inc();
+
+		aHeader.put(IX_POINTER, aRemapper.remap(new BlockPointer().fromByteArray(pointer)).toByteArray());
+
+		try (LobByteChannel channel = new LobByteChannel(aBlockAccessor, aHeader, LobOpenOption.WRITE, null))
+		{
+			channel.mRoot.remap(aRemapper);
+		}
+
+		log.dec();
+	}
+
+
 	public synchronized void delete()
 	{
 		throw new UnsupportedOperationException();
@@ -8,6 +8,8 @@ import org.terifan.raccoon.blockdevice.BlockAccessor;
 import org.terifan.raccoon.blockdevice.BlockPointer;
 import org.terifan.raccoon.blockdevice.BlockType;
 import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
+import org.terifan.raccoon.blockdevice.managed.BlockRelocator;
+import org.terifan.raccoon.blockdevice.managed.BlockRemapper;
 
 
 @LogStatementProducer
@@ -130,6 +132,89 @@ class LobPage
 	}
 
 
+	/**
+	 * Relocates the children of this page. Pages that were moved or had children moved are marked pending and rewritten on flush.
+	 *
+	 * @return true if the page was modified
+	 */
+	boolean relocate(BlockRelocator aRelocator)
+	{
+		if (mLevel == 0)
+		{
+			return false;
+		}
+
+		boolean modified = false;
+
+		for (int i = 0; i < mChildren.length && !aRelocator.isExhausted(); i++)
+		{
+			LobPage child = mLevel > 1 ? getChild(i, false) : mChildren[i];
+
+			if (child != null && (child.relocate(aRelocator) || child.mState == LobPageState.PENDING))
+			{
+				// the child is written to a new location when flushed
+				child.mState = LobPageState.PENDING;
+				modified = true;
+				continue;
+			}
+
+			BlockPointer ptr = child != null ? child.mBlockPointer : getBlockPointer(i);
+			BlockPointer moved = aRelocator.relocate(ptr);
+
+			if (moved != ptr)
+			{
+				System.arraycopy(moved.toByteArray(), 0, mBuffer, i * BlockPointer.SIZE, BlockPointer.SIZE);
+
+				if (child != null)
+				{
+					child.mBlockPointer = moved;
+				}
+
+				modified = true;
+			}
+		}
+
+		if (modified)
+		{
+			mState = LobPageState.PENDING;
+		}
+
+		return modified;
+	}
+
+
+	/**
+	 * Replaces the pointers of this page and its children with the pointers returned by the remapper. Interior pages are marked pending
+	 * and rewritten on flush, leaves are not rewritten.
+	 */
+	void remap(BlockRemapper aRemapper)
+	{
+		if (mLevel == 0)
+		{
+			return;
+		}
+
+		for (int i = 0; i < mChildren.length; i++)
+		{
+			BlockPointer ptr = getBlockPointer(i);
+
+			if (ptr != null && mChildren[i] == null)
+			{
+				System.arraycopy(aRemapper.remap(ptr).toByteArray(), 0, mBuffer, i * BlockPointer.SIZE, BlockPointer.SIZE);
+			}
+
+			LobPage child = mLevel > 1 ? getChild(i, false) : null;
+
+			if (child != null)
+			{
+				child.remap(aRemapper);
+			}
+		}
+
+		mState = LobPageState.PENDING;
+	}
+
+
 	@LogStatementProducer
 	public LogStatement log()
 	{
@@ -196,13 +281,21 @@ class LobPage
 
 		blockAccessor.freeBlock(mBlockPointer);
 
+		// place the page after the page previously written by the channel, pages are flushed depth first in file order
+		BlockPointer precedingBlock = mChannel.mPrecedingBlock != null ? mChannel.mPrecedingBlock : mBlockPointer;
+
 		if (mLevel == 0)
 		{
-			mBlockPointer = blockAccessor.writeBlock(mBuffer, BlockType.LOB_LEAF, mLevel, mChannel.mCompressor);
+			mBlockPointer = blockAccessor.writeBlock(mBuffer, BlockType.LOB_LEAF, mLevel, mChannel.mCompressor, precedingBlock);
 		}
 		else
 		{
-			mBlockPointer = blockAccessor.writeBlock(mBuffer, BlockType.LOB_NODE, mLevel, CompressorAlgorithm.ZLE.ordinal());
+			mBlockPointer = blockAccessor.writeBlock(mBuffer, BlockType.LOB_NODE, mLevel, CompressorAlgorithm.ZLE.ordinal(), precedingBlock);
+		}
+
+		if (mBlockPointer.getBlockType() != BlockType.HOLE)
+		{
+			mChannel.mPrecedingBlock = mBlockPointer;
 		}
 
 		mState = LobPageState.PERSISTED;
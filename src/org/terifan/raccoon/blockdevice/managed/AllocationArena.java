@@ -0,0 +1,59 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A contiguous range of blocks reserved in the space map by a single writer thread. Blocks are carved from the range without taking
+ * any lock and the unused part is returned to the space map when the arena is released.
+ */
+final class AllocationArena
+{
+	private final AtomicLong mPosition;
+	private final long mEnd;
+
+
+	AllocationArena(long aStart, long aEnd)
+	{
+		mPosition = new AtomicLong(aStart);
+		mEnd = aEnd;
+	}
+
+
+	/**
+	 * @return the index of the first block or -1 if the arena has too few blocks left.
+	 */
+	long alloc(long aBlockCount)
+	{
+		for (;;)
+		{
+			long position = mPosition.get();
+
+			if (position + aBlockCount > mEnd)
+			{
+				return -1;
+			}
+			if (mPosition.compareAndSet(position, position + aBlockCount))
+			{
+				return position;
+			}
+		}
+	}
+
+
+	/**
+	 * Prevents further allocations from this arena.
+	 *
+	 * @return the index of the first unused block, the unused range ends at getEnd().
+	 */
+	long close()
+	{
+		return mPosition.getAndSet(mEnd);
+	}
+
+
+	long getEnd()
+	{
+		return mEnd;
+	}
+}
@@ -0,0 +1,52 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * Allocations up to a maximum number of blocks are served from chunks of the device reserved for the class, keeping small
+ * allocations from fragmenting the space used by large extents. Each class has its own map of the free blocks in its chunks. The
+ * chunks are not persisted, the persisted space map always describe the exact set of used blocks.
+ */
+public final class AllocationClass
+{
+	private final long mMaxBlockCount;
+	private final long mChunkBlockCount;
+
+
+	/**
+	 * @param aMaxBlockCount largest allocation, in blocks, served by this class
+	 * @param aChunkBlockCount number of blocks reserved each time the class runs out of free blocks
+	 */
+	public AllocationClass(long aMaxBlockCount, long aChunkBlockCount)
+	{
+		if (aMaxBlockCount <= 0)
+		{
+			throw new IllegalArgumentException("aMaxBlockCount must be positive: " + aMaxBlockCount);
+		}
+		if (aChunkBlockCount < aMaxBlockCount)
+		{
+			throw new IllegalArgumentException("aChunkBlockCount must be at least aMaxBlockCount: " + aChunkBlockCount);
+		}
+
+		mMaxBlockCount = aMaxBlockCount;
+		mChunkBlockCount = aChunkBlockCount;
+	}
+
+
+	public long getMaxBlockCount()
+	{
+		return mMaxBlockCount;
+	}
+
+
+	public long getChunkBlockCount()
+	{
+		return mChunkBlockCount;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "AllocationClass{max=" + mMaxBlockCount + ", chunk=" + mChunkBlockCount + "}";
+	}
+}
@@ -0,0 +1,23 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * Strategy used when searching the free space for a range of blocks.
+ */
+public enum AllocationPolicy
+{
+	/**
+	 * Allocate from the free range with the lowest offset that is large enough. Keeps data packed at the start of the device.
+	 */
+	FIRST_FIT,
+	/**
+	 * Allocate from the smallest free range that is large enough, ties are broken by the lowest offset. Uses the size index and
+	 * completes in O(log n) time regardless of fragmentation.
+	 */
+	BEST_FIT,
+	/**
+	 * Allocate from the first free range that is large enough starting at the position of the previous allocation, wrapping around
+	 * to the start of the device. Spreads allocations evenly and keeps consecutive allocations close together.
+	 */
+	NEXT_FIT
+}
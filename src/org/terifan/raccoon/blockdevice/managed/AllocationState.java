@@ -0,0 +1,14 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * Immutable view of the blocks in use at the time the view was created.
+ */
+@FunctionalInterface
+public interface AllocationState
+{
+	/**
+	 * @return true if none of the blocks in the range are free.
+	 */
+	boolean isUsed(long aOffset, long aSize);
+}
@@ -0,0 +1,109 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * Thresholds deciding when ManagedBlockDevice.commitIfNeeded commits the device. A commit is made when any of the enabled thresholds
+ * has been reached since the last commit, a threshold of zero is disabled.
+ */
+public final class AutoCommitPolicy
+{
+	private long mMaxDirtyBytes;
+	private long mMaxPendingFrees;
+	private long mMaxDelay;
+	private boolean mAsync;
+
+
+	public long getMaxDirtyBytes()
+	{
+		return mMaxDirtyBytes;
+	}
+
+
+	/**
+	 * Sets the number of bytes written to the device since the last commit that will trigger a commit.
+	 */
+	public AutoCommitPolicy setMaxDirtyBytes(long aBytes)
+	{
+		if (aBytes < 0)
+		{
+			throw new IllegalArgumentException("aBytes is negative");
+		}
+
+		mMaxDirtyBytes = aBytes;
+		return this;
+	}
+
+
+	public long getMaxPendingFrees()
+	{
+		return mMaxPendingFrees;
+	}
+
+
+	/**
+	 * Sets the number of blocks freed since the last commit that will trigger a commit. Freed blocks can't be reused until committed.
+	 */
+	public AutoCommitPolicy setMaxPendingFrees(long aBlockCount)
+	{
+		if (aBlockCount < 0)
+		{
+			throw new IllegalArgumentException("aBlockCount is negative");
+		}
+
+		mMaxPendingFrees = aBlockCount;
+		return this;
+	}
+
+
+	public long getMaxDelay()
+	{
+		return mMaxDelay;
+	}
+
+
+	/**
+	 * Sets the number of milliseconds since the last commit after which a modified device is committed.
+	 */
+	public AutoCommitPolicy setMaxDelay(long aMillis)
+	{
+		if (aMillis < 0)
+		{
+			throw new IllegalArgumentException("aMillis is negative");
+		}
+
+		mMaxDelay = aMillis;
+		return this;
+	}
+
+
+	public boolean isAsync()
+	{
+		return mAsync;
+	}
+
+
+	/**
+	 * Sets if commits are made with commitAsync, the caller then only waits for the space map and metadata to be written. Default is
+	 * false.
+	 */
+	public AutoCommitPolicy setAsync(boolean aAsync)
+	{
+		mAsync = aAsync;
+		return this;
+	}
+
+
+	boolean isCommitRequired(long aDirtyBytes, long aPendingFrees, long aElapsedMillis)
+	{
+		return mMaxDirtyBytes > 0 && aDirtyBytes >= mMaxDirtyBytes
+			|| mMaxPendingFrees > 0 && aPendingFrees >= mMaxPendingFrees
+			|| mMaxDelay > 0 && aElapsedMillis >= mMaxDelay;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "AutoCommitPolicy{maxDirtyBytes=" + mMaxDirtyBytes + ", maxPendingFrees=" + mMaxPendingFrees + ", maxDelay=" + mMaxDelay + ", async=" + mAsync + "}";
+	}
+}
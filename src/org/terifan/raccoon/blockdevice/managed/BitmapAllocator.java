@@ -0,0 +1,1028 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.Arrays;
+import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
+
+
+/**
+ * Space allocator storing one bit per block, a set bit indicate a free block.
+ * <p>
+ * The bits are stored in groups of 4096 blocks. Each group has a summary with a mask of the words containing free blocks and the
+ * length of the longest, leading and trailing free run. Groups are in turn summarized in the same way by super groups of 64 groups.
+ * Searching for a contiguous range skips super groups and groups using the summaries and only scans the words of a group known to
+ * contain a large enough run, making the cost depend on the device size rather than how fragmented the free space is. Groups are
+ * shared between clones and copied on the first write.
+ * <p>
+ * Blocks beyond the last group are either all free or all used, the bitmap grows when a range beyond the last group is modified.
+ */
+public class BitmapAllocator implements SpaceAllocator
+{
+	private final static int WORDS_PER_GROUP = 64;
+	private final static int GROUP_BITS = 64 * WORDS_PER_GROUP;
+	private final static int GROUPS_PER_SUPER = 64;
+	private final static long SUPER_BITS = (long)GROUPS_PER_SUPER * GROUP_BITS;
+
+	private final static int GROUP_USED = 0;
+	private final static int GROUP_FREE = 1;
+	private final static int GROUP_MIXED = 2;
+
+	private final static long[] ALL_USED = new long[WORDS_PER_GROUP];
+	private final static long[] ALL_FREE = new long[WORDS_PER_GROUP];
+
+	static
+	{
+		Arrays.fill(ALL_FREE, -1L);
+	}
+
+	private long[][] mGroups;
+	private boolean[] mShared;
+	private long[] mFreeWords;
+	private int[] mLongest;
+	private int[] mPrefix;
+	private int[] mSuffix;
+	private long[] mSuperLongest;
+	private long[] mSuperPrefix;
+	private long[] mSuperSuffix;
+	private int mGroupCount;
+	private boolean mTailFree;
+	private long mFree;
+	private AllocationPolicy mAllocationPolicy;
+	private long mNextFitOffset;
+
+
+	public BitmapAllocator()
+	{
+		mGroups = new long[16][];
+		mShared = new boolean[16];
+		mFreeWords = new long[16];
+		mLongest = new int[16];
+		mPrefix = new int[16];
+		mSuffix = new int[16];
+		mSuperLongest = new long[1];
+		mSuperPrefix = new long[1];
+		mSuperSuffix = new long[1];
+		mAllocationPolicy = AllocationPolicy.FIRST_FIT;
+	}
+
+
+	@Override
+	public synchronized AllocationPolicy getAllocationPolicy()
+	{
+		return mAllocationPolicy;
+	}
+
+
+	@Override
+	public synchronized BitmapAllocator setAllocationPolicy(AllocationPolicy aAllocationPolicy)
+	{
+		if (aAllocationPolicy == null)
+		{
+			throw new IllegalArgumentException("aAllocationPolicy is null");
+		}
+
+		mAllocationPolicy = aAllocationPolicy;
+		return this;
+	}
+
+
+	@Override
+	public synchronized void add(long aOffset, long aSize)
+	{
+		if (aOffset < 0 || aSize <= 0)
+		{
+			throw new IllegalArgumentException("Illegal range: offset: " + aOffset + ", size: " + aSize);
+		}
+
+		long end = aOffset + aSize;
+
+		if (end < 0 || end == Long.MAX_VALUE)
+		{
+			if (mTailFree)
+			{
+				throw new IllegalArgumentException("Offset overlap an existing region: offset: " + aOffset + ", size: " + aSize);
+			}
+
+			grow(aOffset);
+
+			if (!isRange(aOffset, capacity(), false))
+			{
+				throw new IllegalArgumentException("Offset overlap an existing region: offset: " + aOffset + ", size: " + aSize);
+			}
+
+			setRange(aOffset, capacity(), true);
+			mTailFree = true;
+			return;
+		}
+
+		if (!isRange(aOffset, end, false))
+		{
+			throw new IllegalArgumentException("Offset overlap an existing region: offset: " + aOffset + ", size: " + aSize);
+		}
+
+		grow(end);
+		setRange(aOffset, end, true);
+	}
+
+
+	@Override
+	public synchronized void remove(long aOffset, long aSize)
+	{
+		if (aSize <= 0)
+		{
+			throw new IllegalArgumentException("Size is zero or negative: size: " + aSize);
+		}
+		if (aOffset < 0)
+		{
+			throw new IllegalArgumentException("Offset is negative: offset: " + aOffset);
+		}
+
+		long end = aOffset + aSize;
+
+		if (!isRange(aOffset, end, true))
+		{
+			throw new IllegalArgumentException("Range is not free: offset: " + aOffset + ", size: " + aSize);
+		}
+
+		grow(end);
+		setRange(aOffset, end, false);
+	}
+
+
+	@Override
+	public synchronized long next(long aSize)
+	{
+		if (aSize <= 0)
+		{
+			throw new IllegalArgumentException("Size is zero or negative: size: " + aSize);
+		}
+
+		long offset;
+
+		switch (mAllocationPolicy)
+		{
+			case BEST_FIT:
+				offset = findBestFit(aSize);
+				break;
+			case NEXT_FIT:
+				offset = findFirstFit((int)Math.min(mGroupCount, mNextFitOffset / GROUP_BITS), aSize, false);
+				if (offset == -1)
+				{
+					offset = findFirstFit(0, aSize, true);
+				}
+				break;
+			default:
+				offset = findFirstFit(0, aSize, true);
+				break;
+		}
+
+		if (offset == -1)
+		{
+			return -1;
+		}
+
+		grow(offset + aSize);
+		setRange(offset, offset + aSize, false);
+
+		mNextFitOffset = offset + aSize;
+
+		return offset;
+	}
+
+
+	@Override
+	public synchronized long next(long aSize, long aHint)
+	{
+		if (aSize <= 0)
+		{
+			throw new IllegalArgumentException("Size is zero or negative: size: " + aSize);
+		}
+		if (aHint < 0)
+		{
+			throw new IllegalArgumentException("Hint is negative: hint: " + aHint);
+		}
+
+		long offset = findFrom(aHint, aSize, false);
+
+		if (offset == -1)
+		{
+			return next(aSize);
+		}
+
+		grow(offset + aSize);
+		setRange(offset, offset + aSize, false);
+
+		return offset;
+	}
+
+
+	/**
+	 * Uses the allocation policy when it finds a range inside the range searched, otherwise the first range inside.
+	 */
+	@Override
+	public synchronized long next(long aSize, long aStart, long aEnd)
+	{
+		if (aSize <= 0)
+		{
+			throw new IllegalArgumentException("Size is zero or negative: size: " + aSize);
+		}
+
+		long offset = -1;
+
+		if (mAllocationPolicy == AllocationPolicy.BEST_FIT)
+		{
+			offset = findBestFit(aSize);
+		}
+		else if (mAllocationPolicy == AllocationPolicy.NEXT_FIT && mNextFitOffset > aStart)
+		{
+			offset = findFrom(mNextFitOffset, aSize, true);
+		}
+
+		if (offset < aStart || offset + aSize > aEnd)
+		{
+			offset = findFrom(aStart, aSize, true);
+
+			if (offset == -1 || offset + aSize > aEnd)
+			{
+				return -1;
+			}
+		}
+
+		grow(offset + aSize);
+		setRange(offset, offset + aSize, false);
+
+		mNextFitOffset = offset + aSize;
+
+		return offset;
+	}
+
+
+	/**
+	 * Finds the first free range at or after the offset. Scans the free runs following the offset in the same group and then searches
+	 * the following groups using the summaries.
+	 *
+	 * @param aUseTail false to skip the blocks beyond the last group unless the offset is located there
+	 */
+	private long findFrom(long aOffset, long aSize, boolean aUseTail)
+	{
+		if (isRange(aOffset, aOffset + aSize, true))
+		{
+			return aOffset;
+		}
+
+		int group = (int)Math.min(mGroupCount, aOffset / GROUP_BITS);
+		long groupEnd = Math.min(capacity(), (long)(group + 1) * GROUP_BITS);
+
+		for (long start = nextFree(aOffset); start < groupEnd; start = nextFree(nextUsed(start)))
+		{
+			if (isRange(start, start + aSize, true))
+			{
+				return start;
+			}
+		}
+
+		return findFirstFit(Math.min(mGroupCount, group + 1), aSize, aUseTail);
+	}
+
+
+	/**
+	 * The target is updated after the lock of this allocator is released, two allocators transferring blocks to each other would
+	 * otherwise deadlock.
+	 */
+	@Override
+	public long transfer(long aOffset, long aSize, SpaceAllocator aTarget)
+	{
+		long[] ranges = extract(aOffset, aSize);
+		long moved = 0;
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			aTarget.add(ranges[i], ranges[i + 1]);
+			moved += ranges[i + 1];
+		}
+
+		return moved;
+	}
+
+
+	/**
+	 * Marks the free blocks found inside the range as used.
+	 *
+	 * @return the blocks marked as pairs of offset and size
+	 */
+	private synchronized long[] extract(long aOffset, long aSize)
+	{
+		long end = aOffset + aSize;
+		long[] ranges = new long[8];
+		int count = 0;
+
+		for (long start = Math.max(aOffset, nextFree(aOffset)); start < end; start = Math.max(start, nextFree(start)))
+		{
+			long length = Math.min(nextUsed(start), end) - start;
+
+			remove(start, length);
+
+			if (count == ranges.length)
+			{
+				ranges = Arrays.copyOf(ranges, 2 * count);
+			}
+			ranges[count++] = start;
+			ranges[count++] = length;
+
+			start += length;
+		}
+
+		return Arrays.copyOf(ranges, count);
+	}
+
+
+	@Override
+	public synchronized long getFreeSpace()
+	{
+		return mFree + (mTailFree ? Long.MAX_VALUE - capacity() : 0);
+	}
+
+
+	@Override
+	public synchronized long getUsedSpace()
+	{
+		return capacity() - mFree;
+	}
+
+
+	@Override
+	public synchronized boolean isUsed(long aOffset, long aSize)
+	{
+		return isRange(aOffset, aOffset + aSize, false);
+	}
+
+
+	@Override
+	public synchronized AllocationState snapshot()
+	{
+		// groups are shared with the clone and copied by this instance before they are modified
+		BitmapAllocator copy = clone();
+
+		return (aOffset, aSize) -> copy.isRange(aOffset, aOffset + aSize, false);
+	}
+
+
+	/**
+	 * Computed by scanning the runs of the bitmap, the cost is proportional to the number of runs and words in the bitmap.
+	 */
+	@Override
+	public synchronized SpaceStatistics getStatistics(long aDeviceSize)
+	{
+		long[] histogram = new long[64];
+		long freeExtents = 0;
+		long largest = 0;
+		long freeSpace = 0;
+		long usedExtents = 0;
+		long limit = mTailFree ? getLastBlockIndex() : capacity();
+
+		for (long pos = 0; pos < limit;)
+		{
+			long start = Math.min(nextFree(pos), limit);
+
+			if (start > pos)
+			{
+				usedExtents++;
+			}
+			if (start >= limit)
+			{
+				break;
+			}
+
+			long length = Math.min(nextUsed(start), limit) - start;
+
+			histogram[63 - Long.numberOfLeadingZeros(length)]++;
+			freeExtents++;
+			freeSpace += length;
+			largest = Math.max(largest, length);
+			pos = start + length;
+		}
+
+		return new SpaceStatistics(histogram, freeExtents, largest, freeSpace, usedExtents, mTailFree ? Math.max(0, aDeviceSize - limit) : 0);
+	}
+
+
+	@Override
+	public synchronized long getLastBlockIndex()
+	{
+		if (mTailFree)
+		{
+			long trailing = 0;
+			for (int g = mGroupCount; --g >= 0;)
+			{
+				if (mLongest[g] == GROUP_BITS)
+				{
+					trailing += GROUP_BITS;
+				}
+				else
+				{
+					trailing += mSuffix[g];
+					break;
+				}
+			}
+			return capacity() - trailing;
+		}
+
+		long last = capacity();
+		for (long start = nextFree(0); start != Long.MAX_VALUE; start = nextFree(nextUsed(start)))
+		{
+			last = start;
+		}
+		return last;
+	}
+
+
+	@Override
+	public synchronized void clear()
+	{
+		Arrays.fill(mGroups, 0, mGroupCount, null);
+		mGroupCount = 0;
+		mTailFree = false;
+		mFree = 0;
+	}
+
+
+	@Override
+	public synchronized BitmapAllocator clone()
+	{
+		try
+		{
+			BitmapAllocator map = (BitmapAllocator)super.clone();
+			map.mGroups = mGroups.clone();
+			map.mShared = mShared.clone();
+			map.mFreeWords = mFreeWords.clone();
+			map.mLongest = mLongest.clone();
+			map.mPrefix = mPrefix.clone();
+			map.mSuffix = mSuffix.clone();
+			map.mSuperLongest = mSuperLongest.clone();
+			map.mSuperPrefix = mSuperPrefix.clone();
+			map.mSuperSuffix = mSuperSuffix.clone();
+			Arrays.fill(mShared, 0, mGroupCount, true);
+			Arrays.fill(map.mShared, 0, mGroupCount, true);
+			return map;
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Writes the bitmap as a sequence of pages, consecutive pages with all blocks free or all used are written as a single count.
+	 */
+	@Override
+	public synchronized void marshal(ByteArrayBuffer aDataOutput)
+	{
+		aDataOutput.writeVar32U(mGroupCount);
+		aDataOutput.writeInt8(mTailFree ? 1 : 0);
+
+		for (int g = 0; g < mGroupCount;)
+		{
+			int type = groupType(g);
+
+			aDataOutput.writeInt8(type);
+
+			if (type == GROUP_MIXED)
+			{
+				for (long word : mGroups[g])
+				{
+					aDataOutput.writeInt64(word);
+				}
+				g++;
+			}
+			else
+			{
+				int count = 1;
+				while (g + count < mGroupCount && groupType(g + count) == type)
+				{
+					count++;
+				}
+				aDataOutput.writeVar32U(count);
+				g += count;
+			}
+		}
+	}
+
+
+	@Override
+	public synchronized void unmarshal(ByteArrayBuffer aDataInput)
+	{
+		clear();
+
+		int groupCount = aDataInput.readVar32U();
+		boolean tailFree = aDataInput.readInt8() == 1;
+
+		ensureCapacity(groupCount);
+
+		while (mGroupCount < groupCount)
+		{
+			int type = aDataInput.readInt8();
+
+			if (type == GROUP_MIXED)
+			{
+				long[] words = new long[WORDS_PER_GROUP];
+				for (int i = 0; i < WORDS_PER_GROUP; i++)
+				{
+					words[i] = aDataInput.readInt64();
+					mFree += Long.bitCount(words[i]);
+				}
+				mGroups[mGroupCount] = words;
+				mShared[mGroupCount] = false;
+				updateSummary(mGroupCount++);
+			}
+			else
+			{
+				for (int count = aDataInput.readVar32U(); --count >= 0;)
+				{
+					appendGroup(type == GROUP_FREE);
+				}
+			}
+		}
+
+		mTailFree = tailFree;
+	}
+
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder("{");
+		for (long start = nextFree(0); start != Long.MAX_VALUE;)
+		{
+			long end = nextUsed(start);
+			if (sb.length() > 1)
+			{
+				sb.append(", ");
+			}
+			sb.append(start + "-" + (end - 1));
+			if (end == Long.MAX_VALUE)
+			{
+				break;
+			}
+			start = nextFree(end);
+		}
+		sb.append("}");
+		return sb.toString();
+	}
+
+
+	private long capacity()
+	{
+		return (long)mGroupCount * GROUP_BITS;
+	}
+
+
+	private long findFirstFit(int aFromGroup, long aSize, boolean aUseTail)
+	{
+		long runStart = -1;
+		long runLength = 0;
+
+		for (int g = aFromGroup; g < mGroupCount; g++)
+		{
+			if (g % GROUPS_PER_SUPER == 0 && g + GROUPS_PER_SUPER <= mGroupCount)
+			{
+				int sg = g / GROUPS_PER_SUPER;
+
+				if (runLength > 0 && runLength + mSuperPrefix[sg] >= aSize)
+				{
+					return runStart;
+				}
+				if (mSuperLongest[sg] < aSize)
+				{
+					// no run inside the super group is large enough, only the runs at its ends may be part of a range
+					if (mSuperPrefix[sg] == SUPER_BITS)
+					{
+						if (runLength == 0)
+						{
+							runStart = (long)g * GROUP_BITS;
+						}
+						runLength += SUPER_BITS;
+					}
+					else
+					{
+						runLength = mSuperSuffix[sg];
+						runStart = (long)(g + GROUPS_PER_SUPER) * GROUP_BITS - runLength;
+					}
+
+					g += GROUPS_PER_SUPER - 1;
+					continue;
+				}
+			}
+
+			if (runLength > 0 && runLength + mPrefix[g] >= aSize)
+			{
+				return runStart;
+			}
+			if (mLongest[g] >= aSize)
+			{
+				return scanGroup(g, aSize, false);
+			}
+			if (mPrefix[g] == GROUP_BITS)
+			{
+				if (runLength == 0)
+				{
+					runStart = (long)g * GROUP_BITS;
+				}
+				runLength += GROUP_BITS;
+			}
+			else
+			{
+				runLength = mSuffix[g];
+				runStart = (long)(g + 1) * GROUP_BITS - runLength;
+			}
+		}
+
+		if (mTailFree && aUseTail)
+		{
+			return runLength > 0 ? runStart : capacity();
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Finds the group with the smallest longest run large enough. Super groups without a large enough run are skipped and the search
+	 * ends at the first group with a run of the exact size.
+	 */
+	private long findBestFit(long aSize)
+	{
+		int bestGroup = -1;
+
+		for (int g = 0; g < mGroupCount; g++)
+		{
+			if (g % GROUPS_PER_SUPER == 0 && g + GROUPS_PER_SUPER <= mGroupCount && mSuperLongest[g / GROUPS_PER_SUPER] < aSize)
+			{
+				g += GROUPS_PER_SUPER - 1;
+				continue;
+			}
+			if (mLongest[g] >= aSize && (bestGroup == -1 || mLongest[g] < mLongest[bestGroup]))
+			{
+				bestGroup = g;
+
+				if (mLongest[g] == aSize)
+				{
+					break;
+				}
+			}
+		}
+
+		if (bestGroup == -1)
+		{
+			return findFirstFit(0, aSize, true);
+		}
+
+		return scanGroup(bestGroup, aSize, true);
+	}
+
+
+	/**
+	 * Scans the free runs inside a group.
+	 *
+	 * @param aBest true to return the smallest run large enough, false to return the first
+	 * @return the offset of the run or -1 if none found
+	 */
+	private long scanGroup(int aGroup, long aSize, boolean aBest)
+	{
+		long[] words = mGroups[aGroup];
+		long base = (long)aGroup * GROUP_BITS;
+		long runStart = -1;
+		long runLength = 0;
+		long bestStart = -1;
+		long bestLength = Long.MAX_VALUE;
+
+		for (int w = Long.numberOfTrailingZeros(mFreeWords[aGroup]); w < WORDS_PER_GROUP; w++)
+		{
+			long word = words[w];
+
+			for (int b = 0; b < 64;)
+			{
+				long shifted = word >>> b;
+
+				if ((shifted & 1) == 0)
+				{
+					if (runLength >= aSize && runLength < bestLength)
+					{
+						bestStart = runStart;
+						bestLength = runLength;
+					}
+
+					runLength = 0;
+					b = shifted == 0 ? 64 : b + Long.numberOfTrailingZeros(shifted);
+				}
+				else
+				{
+					int length = Long.numberOfTrailingZeros(~shifted);
+
+					if (runLength == 0)
+					{
+						runStart = base + 64 * w + b;
+					}
+
+					runLength += length;
+					b += length;
+
+					if (!aBest && runLength >= aSize)
+					{
+						return runStart;
+					}
+				}
+			}
+		}
+
+		if (runLength >= aSize && runLength < bestLength)
+		{
+			bestStart = runStart;
+		}
+
+		return bestStart;
+	}
+
+
+	/**
+	 * @return the index of the next free block at or after the offset or Long.MAX_VALUE if none found.
+	 */
+	private long nextFree(long aOffset)
+	{
+		long i = nextBit(aOffset, true);
+		return i < capacity() || mTailFree ? i : Long.MAX_VALUE;
+	}
+
+
+	/**
+	 * @return the index of the next used block at or after the offset or Long.MAX_VALUE if none found.
+	 */
+	private long nextUsed(long aOffset)
+	{
+		long i = nextBit(aOffset, false);
+		return i < capacity() || !mTailFree ? i : Long.MAX_VALUE;
+	}
+
+
+	/**
+	 * @return the index of the next block at or after the offset with the requested state, or the capacity if none found.
+	 */
+	private long nextBit(long aOffset, boolean aFree)
+	{
+		for (long i = aOffset; i < capacity();)
+		{
+			int g = (int)(i / GROUP_BITS);
+			int w = (int)(i % GROUP_BITS) / 64;
+			long word = mGroups[g][w];
+			long bits = (aFree ? word : ~word) >>> (i & 63);
+
+			if (bits != 0)
+			{
+				return i + Long.numberOfTrailingZeros(bits);
+			}
+
+			i = (i | 63) + 1;
+		}
+
+		return capacity();
+	}
+
+
+	/**
+	 * @return true if all blocks in the range have the requested state.
+	 */
+	private boolean isRange(long aStart, long aEnd, boolean aFree)
+	{
+		long capacity = capacity();
+
+		if (aEnd > capacity && mTailFree != aFree)
+		{
+			return false;
+		}
+
+		for (long i = aStart, end = Math.min(aEnd, capacity); i < end;)
+		{
+			int g = (int)(i / GROUP_BITS);
+			int w = (int)(i % GROUP_BITS) / 64;
+			int from = (int)(i & 63);
+			int to = (int)Math.min(64, from + end - i);
+			long mask = mask(from, to);
+			long word = mGroups[g][w];
+
+			if (((aFree ? ~word : word) & mask) != 0)
+			{
+				return false;
+			}
+
+			i += to - from;
+		}
+
+		return true;
+	}
+
+
+	private void setRange(long aStart, long aEnd, boolean aFree)
+	{
+		for (long i = aStart; i < aEnd;)
+		{
+			int g = (int)(i / GROUP_BITS);
+			long groupEnd = (long)(g + 1) * GROUP_BITS;
+
+			if (i % GROUP_BITS == 0 && aEnd >= groupEnd)
+			{
+				mGroups[g] = aFree ? ALL_FREE : ALL_USED;
+				mShared[g] = true;
+				i = groupEnd;
+			}
+			else
+			{
+				long[] words = writable(g);
+
+				for (long end = Math.min(aEnd, groupEnd); i < end;)
+				{
+					int w = (int)(i % GROUP_BITS) / 64;
+					int from = (int)(i & 63);
+					int to = (int)Math.min(64, from + end - i);
+
+					if (aFree)
+					{
+						words[w] |= mask(from, to);
+					}
+					else
+					{
+						words[w] &= ~mask(from, to);
+					}
+
+					i += to - from;
+				}
+			}
+
+			updateSummary(g);
+		}
+
+		mFree += aFree ? aEnd - aStart : aStart - aEnd;
+	}
+
+
+	private void updateSummary(int aGroup)
+	{
+		long[] words = mGroups[aGroup];
+		long freeWords = 0;
+		int prefix = -1;
+		int longest = 0;
+		int runLength = 0;
+
+		for (int w = 0; w < WORDS_PER_GROUP; w++)
+		{
+			long word = words[w];
+
+			if (word != 0)
+			{
+				freeWords |= 1L << w;
+			}
+
+			if (word == -1L)
+			{
+				runLength += 64;
+				continue;
+			}
+
+			for (int b = 0; b < 64;)
+			{
+				long shifted = word >>> b;
+
+				if ((shifted & 1) == 0)
+				{
+					if (prefix == -1)
+					{
+						prefix = runLength;
+					}
+					longest = Math.max(longest, runLength);
+					runLength = 0;
+					b = shifted == 0 ? 64 : b + Long.numberOfTrailingZeros(shifted);
+				}
+				else
+				{
+					int length = Long.numberOfTrailingZeros(~shifted);
+					runLength += length;
+					b += length;
+				}
+			}
+		}
+
+		mFreeWords[aGroup] = freeWords;
+		mLongest[aGroup] = Math.max(longest, runLength);
+		mPrefix[aGroup] = prefix == -1 ? runLength : prefix;
+		mSuffix[aGroup] = runLength;
+
+		updateSuperSummary(aGroup / GROUPS_PER_SUPER);
+	}
+
+
+	/**
+	 * Computes the summary of a super group from the summaries of its groups.
+	 */
+	private void updateSuperSummary(int aSuperGroup)
+	{
+		int first = aSuperGroup * GROUPS_PER_SUPER;
+		int last = Math.min(mGroupCount, first + GROUPS_PER_SUPER);
+		long prefix = -1;
+		long longest = 0;
+		long runLength = 0;
+
+		for (int g = first; g < last; g++)
+		{
+			longest = Math.max(longest, Math.max(mLongest[g], runLength + mPrefix[g]));
+
+			if (mPrefix[g] == GROUP_BITS)
+			{
+				runLength += GROUP_BITS;
+			}
+			else
+			{
+				if (prefix == -1)
+				{
+					prefix = runLength + mPrefix[g];
+				}
+				runLength = mSuffix[g];
+			}
+		}
+
+		mSuperLongest[aSuperGroup] = Math.max(longest, runLength);
+		mSuperPrefix[aSuperGroup] = prefix == -1 ? runLength : prefix;
+		mSuperSuffix[aSuperGroup] = runLength;
+	}
+
+
+	private int groupType(int aGroup)
+	{
+		return mFreeWords[aGroup] == 0 ? GROUP_USED : mLongest[aGroup] == GROUP_BITS ? GROUP_FREE : GROUP_MIXED;
+	}
+
+
+	private void grow(long aEnd)
+	{
+		while (capacity() < aEnd)
+		{
+			appendGroup(mTailFree);
+		}
+	}
+
+
+	private void appendGroup(boolean aFree)
+	{
+		ensureCapacity(mGroupCount + 1);
+
+		mGroups[mGroupCount] = aFree ? ALL_FREE : ALL_USED;
+		mShared[mGroupCount] = true;
+		mFreeWords[mGroupCount] = aFree ? -1L : 0L;
+		mLongest[mGroupCount] = aFree ? GROUP_BITS : 0;
+		mPrefix[mGroupCount] = aFree ? GROUP_BITS : 0;
+		mSuffix[mGroupCount] = aFree ? GROUP_BITS : 0;
+		mGroupCount++;
+
+		updateSuperSummary((mGroupCount - 1) / GROUPS_PER_SUPER);
+
+		if (aFree)
+		{
+			mFree += GROUP_BITS;
+		}
+	}
+
+
+	private void ensureCapacity(int aGroupCount)
+	{
+		if (aGroupCount > mGroups.length)
+		{
+			int capacity = Math.max(aGroupCount, 2 * mGroups.length);
+			mGroups = Arrays.copyOf(mGroups, capacity);
+			mShared = Arrays.copyOf(mShared, capacity);
+			mFreeWords = Arrays.copyOf(mFreeWords, capacity);
+			mLongest = Arrays.copyOf(mLongest, capacity);
+			mPrefix = Arrays.copyOf(mPrefix, capacity);
+			mSuffix = Arrays.copyOf(mSuffix, capacity);
+
+			int superCapacity = (capacity + GROUPS_PER_SUPER - 1) / GROUPS_PER_SUPER;
+			mSuperLongest = Arrays.copyOf(mSuperLongest, superCapacity);
+			mSuperPrefix = Arrays.copyOf(mSuperPrefix, superCapacity);
+			mSuperSuffix = Arrays.copyOf(mSuperSuffix, superCapacity);
+		}
+	}
+
+
+	private long[] writable(int aGroup)
+	{
+		if (mShared[aGroup])
+		{
+			mGroups[aGroup] = mGroups[aGroup].clone();
+			mShared[aGroup] = false;
+		}
+
+		return mGroups[aGroup];
+	}
+
+
+	private static long mask(int aFrom, int aTo)
+	{
+		return (aTo == 64 ? -1L : (1L << aTo) - 1) & (-1L << aFrom);
+	}
+}
@@ -0,0 +1,182 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.RaccoonIOException;
+import org.terifan.raccoon.blockdevice.storage.BlockStorage;
+
+
+/**
+ * Copies a ManagedBlockDevice to a new storage placing all used blocks contiguously at the start of the copy. The blocks are read by a
+ * pool of threads and written in block order by the calling thread. Registered hooks update the block pointers of structures stored in
+ * the device before the copy is committed. The source is read through a snapshot of the last commit.
+ * <p>
+ * Blocks are copied as stored, a storage encrypting blocks with a key derived from the block index, like SecureBlockDevice, can't be
+ * copied.
+ */
+public class BlockDeviceCopier
+{
+	private final Logger log = Logger.getLogger();
+
+	private final static int CHUNK_BLOCKS = 256;
+
+	private final ManagedBlockDevice mSource;
+	private final ArrayList<BlockRemapHook> mRemapHooks;
+	private int mThreads;
+
+
+	public BlockDeviceCopier(ManagedBlockDevice aSource)
+	{
+		if (aSource == null)
+		{
+			throw new IllegalArgumentException("aSource is null");
+		}
+
+		mSource = aSource;
+		mRemapHooks = new ArrayList<>();
+		mThreads = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+	}
+
+
+	public int getThreads()
+	{
+		return mThreads;
+	}
+
+
+	/**
+	 * Sets the number of threads reading from the source device. Default is the number of processors, at most 8.
+	 */
+	public BlockDeviceCopier setThreads(int aThreads)
+	{
+		if (aThreads < 1)
+		{
+			throw new IllegalArgumentException("aThreads must be positive");
+		}
+
+		mThreads = aThreads;
+		return this;
+	}
+
+
+	/**
+	 * Registers a structure holding block pointers into the source device. Hooks are called in the order they were added.
+	 */
+	public BlockDeviceCopier addRemapHook(BlockRemapHook aRemapHook)
+	{
+		mRemapHooks.add(aRemapHook);
+		return this;
+	}
+
+
+	/**
+	 * Replaces the content of the storage with a compacted copy of the source device. The metadata is copied and the storage is closed
+	 * when the copy has been committed.
+	 *
+	 * @return the translation of block indices from the source to the copy
+	 */
+	public BlockRemapper copyTo(BlockStorage aTarget) throws IOException
+	{
+		log.i("copy block device");
+		log.inc();
+
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads, r ->
+		{
+			Thread thread = new Thread(r, "BlockDeviceCopier reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try (BlockDeviceSnapshot snapshot = mSource.openSnapshot(); ManagedBlockDevice target = new ManagedBlockDevice(aTarget).open(BlockDeviceOpenOption.REPLACE))
+		{
+			int blockSize = mSource.getBlockSize();
+			long[] ranges = mSource.getUserRanges();
+
+			// allocations in a new device are placed one after another
+			BlockRemapper remapper = new BlockRemapper();
+			ArrayList<long[]> chunks = new ArrayList<>(); // source, target, count
+
+			for (int i = 0; i < ranges.length; i += 2)
+			{
+				for (long offset = ranges[i], end = ranges[i] + ranges[i + 1]; offset < end; offset += CHUNK_BLOCKS)
+				{
+					int count = (int)Math.min(CHUNK_BLOCKS, end - offset);
+					long blockIndex = target.allocBlock(count);
+
+					remapper.add(offset, blockIndex, count);
+					chunks.add(new long[]{offset, blockIndex, count});
+				}
+			}
+
+			log.d("copying {} ranges in {} chunks", ranges.length / 2, chunks.size());
+
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+			for (int next = 0, written = 0; written < chunks.size(); written++)
+			{
+				// keep a few chunks read ahead for each thread
+				for (; next < chunks.size() && pending.size() < 2 * mThreads; next++)
+				{
+					long[] chunk = chunks.get(next);
+
+					pending.add(executor.submit(() ->
+					{
+						byte[] buffer = new byte[(int)chunk[2] * blockSize];
+						snapshot.readBlock(chunk[0], buffer, 0, buffer.length, ManagedBlockDevice.RAW_BLOCK_KEY);
+						return buffer;
+					}));
+				}
+
+				byte[] buffer = await(pending.poll());
+
+				target.writeBlock(chunks.get(written)[1], buffer, 0, buffer.length, ManagedBlockDevice.RAW_BLOCK_KEY);
+			}
+
+			target.setMetadata(snapshot.getMetadata());
+
+			for (BlockRemapHook hook : mRemapHooks)
+			{
+				hook.remapBlocks(target, remapper);
+			}
+
+			target.commit();
+
+			log.dec();
+
+			return remapper;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+
+	private static byte[] await(Future<byte[]> aFuture) throws IOException
+	{
+		try
+		{
+			return aFuture.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Copy interrupted", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RaccoonIOException)
+			{
+				throw (RaccoonIOException)e.getCause();
+			}
+			throw new IOException("Failed to read from source device", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import org.terifan.raccoon.blockdevice.RaccoonIOException;
+import org.terifan.raccoon.document.Document;
+
+
+/**
+ * A read-only view of a ManagedBlockDevice at a past generation. Blocks visible to the snapshot are not reused by the device until the
+ * snapshot is closed.
+ */
+public class BlockDeviceSnapshot implements AutoCloseable
+{
+	private ManagedBlockDevice mBlockDevice;
+	private final long mGeneration;
+	private final Document mMetadata;
+
+
+	BlockDeviceSnapshot(ManagedBlockDevice aBlockDevice, long aGeneration, Document aMetadata)
+	{
+		mBlockDevice = aBlockDevice;
+		mGeneration = aGeneration;
+		mMetadata = aMetadata;
+	}
+
+
+	public long getGeneration()
+	{
+		return mGeneration;
+	}
+
+
+	/**
+	 * @return the metadata document as it was committed in the generation of this snapshot.
+	 */
+	public Document getMetadata()
+	{
+		return mMetadata;
+	}
+
+
+	public int getBlockSize()
+	{
+		return getBlockDevice().getBlockSize();
+	}
+
+
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		if (aBlockIndex < 0)
+		{
+			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+		}
+		if ((aBufferLength % getBlockSize()) != 0)
+		{
+			throw new RaccoonIOException("Illegal buffer length: " + aBlockIndex);
+		}
+
+		getBlockDevice().readSnapshotBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+	}
+
+
+	public boolean isClosed()
+	{
+		return mBlockDevice == null;
+	}
+
+
+	@Override
+	public synchronized void close()
+	{
+		if (mBlockDevice != null)
+		{
+			mBlockDevice.releaseSnapshot(mGeneration);
+			mBlockDevice = null;
+		}
+	}
+
+
+	private ManagedBlockDevice getBlockDevice()
+	{
+		ManagedBlockDevice blockDevice = mBlockDevice;
+
+		if (blockDevice == null)
+		{
+			throw new IllegalStateException("Snapshot is closed");
+		}
+
+		return blockDevice;
+	}
+}
@@ -0,0 +1,15 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * A structure holding block pointers into a ManagedBlockDevice. Owners registered with the device take part in defragmentation.
+ */
+@FunctionalInterface
+public interface BlockOwner
+{
+	/**
+	 * Passes the block pointers held by this owner to the relocator and replaces them with the pointers returned. Pointers changed must
+	 * be persisted by the owner in the same transaction. Implementations should stop when the relocator is exhausted.
+	 */
+	void relocateBlocks(BlockRelocator aRelocator);
+}
@@ -0,0 +1,102 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockPointer;
+import org.terifan.raccoon.blockdevice.BlockType;
+
+
+/**
+ * Moves blocks to free space closer to the start of the device, created by ManagedBlockDevice.defragment, or to a less used device of a
+ * pooled storage, created by ManagedBlockDevice.rebalance. The old blocks are freed and become reusable after the next commit.
+ */
+public class BlockRelocator
+{
+	private final Logger log = Logger.getLogger();
+
+	private final ManagedBlockDevice mBlockDevice;
+	private final Placement mPlacement;
+	private long mBudget;
+	private long mRelocatedBlocks;
+
+
+	BlockRelocator(ManagedBlockDevice aBlockDevice, long aBudget)
+	{
+		this(aBlockDevice, aBudget, aBlockDevice::allocBlockBefore);
+	}
+
+
+	BlockRelocator(ManagedBlockDevice aBlockDevice, long aBudget, Placement aPlacement)
+	{
+		mBlockDevice = aBlockDevice;
+		mPlacement = aPlacement;
+		mBudget = aBudget;
+	}
+
+
+	/**
+	 * @return true when the number of blocks allowed to be copied has been reached.
+	 */
+	public boolean isExhausted()
+	{
+		return mBudget <= 0;
+	}
+
+
+	/**
+	 * @return number of blocks copied by this relocator.
+	 */
+	public long getRelocatedBlocks()
+	{
+		return mRelocatedBlocks;
+	}
+
+
+	/**
+	 * Copies the block to a new location, by default the first free range before its current location.
+	 *
+	 * @return a new block pointer if the block was moved, otherwise the same instance provided.
+	 */
+	public BlockPointer relocate(BlockPointer aBlockPointer)
+	{
+		if (isExhausted() || aBlockPointer == null || aBlockPointer.getBlockType() == BlockType.HOLE || aBlockPointer.getAllocatedSize() == 0)
+		{
+			return aBlockPointer;
+		}
+
+		long oldIndex = aBlockPointer.getBlockIndex0();
+		int blockCount = aBlockPointer.getAllocatedSize() / mBlockDevice.getBlockSize();
+
+		long newIndex = mPlacement.alloc(blockCount, oldIndex);
+
+		if (newIndex == -1)
+		{
+			return aBlockPointer;
+		}
+
+		log.t("relocate block {} +{} to {}", oldIndex, blockCount, newIndex);
+
+		byte[] buffer = new byte[aBlockPointer.getAllocatedSize()];
+
+		mBlockDevice.readBlock(oldIndex, buffer, 0, buffer.length, aBlockPointer.getBlockKey());
+		mBlockDevice.writeBlock(newIndex, buffer, 0, buffer.length, aBlockPointer.getBlockKey());
+		mBlockDevice.freeBlock(oldIndex, blockCount);
+
+		mBudget -= blockCount;
+		mRelocatedBlocks += blockCount;
+
+		return BlockPointer.fromByteArray(aBlockPointer.toByteArray().clone()).setBlockIndex0(newIndex);
+	}
+
+
+	/**
+	 * Allocates the new location of a block.
+	 */
+	@FunctionalInterface
+	interface Placement
+	{
+		/**
+		 * @return the block index or -1 if the block should stay at its current location.
+		 */
+		long alloc(int aBlockCount, long aBlockIndex);
+	}
+}
@@ -0,0 +1,17 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.IOException;
+
+
+/**
+ * A structure holding block pointers into a device copied by BlockDeviceCopier.
+ */
+@FunctionalInterface
+public interface BlockRemapHook
+{
+	/**
+	 * Replaces the block pointers of the structure with the pointers returned by the remapper. Blocks containing pointers must be
+	 * rewritten on the target device, the target is committed after all hooks have run.
+	 */
+	void remapBlocks(ManagedBlockDevice aTarget, BlockRemapper aRemapper) throws IOException;
+}
@@ -0,0 +1,75 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import org.terifan.raccoon.blockdevice.BlockPointer;
+import org.terifan.raccoon.blockdevice.BlockType;
+
+
+/**
+ * Translates block indices of a device copied by BlockDeviceCopier to the block indices of the copy.
+ */
+public class BlockRemapper
+{
+	private final TreeMap<Long, long[]> mRanges; // source start -> source end, target start
+
+
+	BlockRemapper()
+	{
+		mRanges = new TreeMap<>();
+	}
+
+
+	void add(long aSourceIndex, long aTargetIndex, long aBlockCount)
+	{
+		Entry<Long, long[]> before = mRanges.lowerEntry(aSourceIndex);
+
+		if (before != null && before.getValue()[0] == aSourceIndex && before.getValue()[1] + aSourceIndex - before.getKey() == aTargetIndex)
+		{
+			before.getValue()[0] = aSourceIndex + aBlockCount;
+		}
+		else
+		{
+			mRanges.put(aSourceIndex, new long[]{aSourceIndex + aBlockCount, aTargetIndex});
+		}
+	}
+
+
+	/**
+	 * @return the block index in the copy of the block provided.
+	 */
+	public long remap(long aBlockIndex)
+	{
+		Entry<Long, long[]> entry = mRanges.floorEntry(aBlockIndex);
+
+		if (entry == null || entry.getValue()[0] <= aBlockIndex)
+		{
+			throw new IllegalArgumentException("Block not copied: " + aBlockIndex);
+		}
+
+		return entry.getValue()[1] + aBlockIndex - entry.getKey();
+	}
+
+
+	/**
+	 * @return a new block pointer referring to the copy of the block or the same instance provided if it doesn't refer to a block.
+	 */
+	public BlockPointer remap(BlockPointer aBlockPointer)
+	{
+		if (aBlockPointer == null || aBlockPointer.getBlockType() == BlockType.HOLE || aBlockPointer.getAllocatedSize() == 0)
+		{
+			return aBlockPointer;
+		}
+
+		return BlockPointer.fromByteArray(aBlockPointer.toByteArray().clone()).setBlockIndex0(remap(aBlockPointer.getBlockIndex0()));
+	}
+
+
+	/**
+	 * @return number of ranges, a range is a sequence of blocks copied without gaps.
+	 */
+	public int getRangeCount()
+	{
+		return mRanges.size();
+	}
+}
@@ -0,0 +1,68 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * The blocks allocated by the commits made after a base generation. The set is captured by the writer of the device and the blocks can
+ * be read later by any thread, the snapshot held by the set keeps the blocks from being reused until the set is closed.
+ */
+final class ChangeSet implements AutoCloseable
+{
+	private final BlockDeviceSnapshot mSnapshot;
+	private final long mBaseGeneration;
+	private final long[] mRanges;
+	private final byte[] mSuperBlock;
+	private final long mStorageSize;
+
+
+	ChangeSet(BlockDeviceSnapshot aSnapshot, long aBaseGeneration, long[] aRanges, byte[] aSuperBlock, long aStorageSize)
+	{
+		mSnapshot = aSnapshot;
+		mBaseGeneration = aBaseGeneration;
+		mRanges = aRanges;
+		mSuperBlock = aSuperBlock;
+		mStorageSize = aStorageSize;
+	}
+
+
+	long getBaseGeneration()
+	{
+		return mBaseGeneration;
+	}
+
+
+	long getGeneration()
+	{
+		return mSnapshot.getGeneration();
+	}
+
+
+	/**
+	 * @return pairs of block index and count in the underlying storage.
+	 */
+	long[] getRanges()
+	{
+		return mRanges;
+	}
+
+
+	/**
+	 * @return the SuperBlock of the generation marshalled into a block.
+	 */
+	byte[] getSuperBlock()
+	{
+		return mSuperBlock;
+	}
+
+
+	long getStorageSize()
+	{
+		return mStorageSize;
+	}
+
+
+	@Override
+	public void close()
+	{
+		mSnapshot.close();
+	}
+}
@@ -0,0 +1,19 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.IOException;
+
+
+/**
+ * Notified by ManagedBlockDevice after each commit changing the device.
+ */
+@FunctionalInterface
+public interface CommitListener
+{
+	/**
+	 * Called by the thread committing the device after the commit is durable. An asynchronous commit is notified once it has completed
+	 * by the next call to commit, commitAsync, openSnapshot or close, the device is then still at the generation of the commit.
+	 *
+	 * @param aGeneration the generation of the commit
+	 */
+	void committed(ManagedBlockDevice aBlockDevice, long aGeneration) throws IOException;
+}
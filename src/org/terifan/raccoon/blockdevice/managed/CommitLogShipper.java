@@ -0,0 +1,269 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.storage.BlockStorage;
+
+
+/**
+ * Keeps a standby storage as a copy of a ManagedBlockDevice. The blocks allocated by each commit are captured when the commit listeners
+ * are notified, see CommitListener, and shipped by a background thread as a compressed backup archive which is applied to the standby,
+ * see ManagedBlockDevice.backup. Asynchronous commits are captured once completed.
+ * Commits made while an archive is shipped are batched into the next archive. The standby is replaced with a full copy of the device
+ * when the shipper is created and archives are applied in generation order.
+ * <p>
+ * Like incremental backups the shipping relies on committed blocks never being written in place.
+ */
+public class CommitLogShipper implements AutoCloseable
+{
+	private final Logger log = Logger.getLogger();
+
+	private final ManagedBlockDevice mBlockDevice;
+	private final BlockStorage mStandby;
+	private final ExecutorService mExecutor;
+	private final CommitListener mCommitListener;
+	private final AtomicLong mShippedBytes;
+	private ChangeSet mPending;
+	private long mPendingTime;
+	private boolean mInFlight;
+	private long mInFlightTime;
+	private long mShippedGeneration;
+	private volatile long mCapturedGeneration;
+	private volatile long mAppliedGeneration;
+	private volatile Throwable mFailure;
+
+
+	public CommitLogShipper(ManagedBlockDevice aBlockDevice, BlockStorage aStandby) throws IOException
+	{
+		if (aBlockDevice == null)
+		{
+			throw new IllegalArgumentException("aBlockDevice is null");
+		}
+		if (aStandby == null)
+		{
+			throw new IllegalArgumentException("aStandby is null");
+		}
+
+		mBlockDevice = aBlockDevice;
+		mStandby = aStandby;
+		mShippedBytes = new AtomicLong();
+		mShippedGeneration = -1;
+		mCapturedGeneration = -1;
+		mAppliedGeneration = -1;
+
+		mExecutor = Executors.newSingleThreadExecutor(r ->
+		{
+			Thread thread = new Thread(r, "CommitLogShipper");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		mCommitListener = (device, generation) -> capture();
+
+		// full copy of the last commit
+		capture();
+
+		mBlockDevice.addCommitListener(mCommitListener);
+	}
+
+
+	/**
+	 * @return the generation of the device last applied to the standby or -1 if none.
+	 */
+	public long getAppliedGeneration()
+	{
+		return mAppliedGeneration;
+	}
+
+
+	/**
+	 * @return number of generations committed but not yet applied to the standby.
+	 */
+	public long getLag()
+	{
+		return Math.max(0, mCapturedGeneration - mAppliedGeneration);
+	}
+
+
+	/**
+	 * @return milliseconds since the oldest commit not yet applied to the standby or 0 if the standby is up to date.
+	 */
+	public synchronized long getLagMillis()
+	{
+		long time = mInFlight ? mInFlightTime : mPending != null ? mPendingTime : 0;
+
+		return time == 0 ? 0 : (System.nanoTime() - time) / 1_000_000;
+	}
+
+
+	/**
+	 * @return number of compressed bytes shipped to the standby.
+	 */
+	public long getShippedBytes()
+	{
+		return mShippedBytes.get();
+	}
+
+
+	/**
+	 * @return the error stopping the shipping or null.
+	 */
+	public Throwable getFailure()
+	{
+		return mFailure;
+	}
+
+
+	/**
+	 * Waits for the changes of all commits made before the call to be applied to the standby.
+	 */
+	public void flush() throws IOException
+	{
+		// captures the last asynchronous commit
+		mBlockDevice.awaitCommit();
+
+		awaitShipped();
+	}
+
+
+	private synchronized void awaitShipped() throws IOException
+	{
+		try
+		{
+			while ((mPending != null || mInFlight) && mFailure == null)
+			{
+				wait();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Flush interrupted", e);
+		}
+
+		if (mFailure != null)
+		{
+			throw new IOException("Commit log shipping failed", mFailure);
+		}
+	}
+
+
+	/**
+	 * Stops capturing commits and waits for the changes captured to be applied to the standby.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			mBlockDevice.awaitCommit();
+		}
+		finally
+		{
+			mBlockDevice.removeCommitListener(mCommitListener);
+
+			try
+			{
+				awaitShipped();
+			}
+			finally
+			{
+				mExecutor.shutdown();
+			}
+		}
+	}
+
+
+	private synchronized void capture() throws IOException
+	{
+		if (mFailure != null)
+		{
+			return;
+		}
+
+		ChangeSet changes = mBlockDevice.captureChanges(mShippedGeneration);
+
+		// a pending set has the same base generation and is covered by the new set
+		if (mPending != null)
+		{
+			mPending.close();
+		}
+		else
+		{
+			mPendingTime = System.nanoTime();
+		}
+
+		mPending = changes;
+		mCapturedGeneration = changes.getGeneration();
+
+		mExecutor.execute(this::ship);
+	}
+
+
+	private void ship()
+	{
+		ChangeSet changes;
+
+		synchronized (this)
+		{
+			changes = mPending;
+
+			if (changes == null)
+			{
+				return;
+			}
+
+			mPending = null;
+			mInFlight = true;
+			mInFlightTime = mPendingTime;
+			mShippedGeneration = changes.getGeneration();
+		}
+
+		try
+		{
+			log.d("shipping generation {} to {}", changes.getBaseGeneration(), changes.getGeneration());
+
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+
+			try (DeflaterOutputStream output = new DeflaterOutputStream(archive))
+			{
+				mBlockDevice.writeChanges(changes, output);
+			}
+
+			mShippedBytes.addAndGet(archive.size());
+
+			ManagedBlockDevice.restore(new InflaterInputStream(new ByteArrayInputStream(archive.toByteArray())), mStandby);
+
+			mAppliedGeneration = changes.getGeneration();
+		}
+		catch (Throwable e)
+		{
+			log.e("Commit log shipping failed", e);
+
+			mFailure = e;
+		}
+		finally
+		{
+			changes.close();
+
+			synchronized (this)
+			{
+				if (mFailure != null && mPending != null)
+				{
+					mPending.close();
+					mPending = null;
+				}
+
+				mInFlight = false;
+				notifyAll();
+			}
+		}
+	}
+}
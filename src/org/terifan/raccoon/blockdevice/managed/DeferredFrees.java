@@ -0,0 +1,71 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+
+/**
+ * Blocks freed by commits made after the generation of an open snapshot. The blocks are free in the persisted space map but are kept
+ * out of the allocator until every snapshot able to read them has been closed.
+ */
+final class DeferredFrees
+{
+	private final TreeMap<Long, Integer> mSnapshots = new TreeMap<>();
+	private final TreeMap<Long, RangeMap> mFrees = new TreeMap<>();
+
+
+	synchronized boolean isActive()
+	{
+		return !mSnapshots.isEmpty();
+	}
+
+
+	synchronized void acquire(long aGeneration)
+	{
+		mSnapshots.merge(aGeneration, 1, Integer::sum);
+	}
+
+
+	/**
+	 * @return the blocks no longer visible to any open snapshot.
+	 */
+	synchronized RangeMap release(long aGeneration)
+	{
+		if (mSnapshots.merge(aGeneration, -1, Integer::sum) == 0)
+		{
+			mSnapshots.remove(aGeneration);
+		}
+
+		// blocks freed by the commit creating generation G are visible to snapshots older than G
+		long oldest = mSnapshots.isEmpty() ? Long.MAX_VALUE : mSnapshots.firstKey();
+
+		RangeMap released = new RangeMap();
+
+		for (Iterator<Entry<Long, RangeMap>> it = mFrees.headMap(oldest, true).entrySet().iterator(); it.hasNext();)
+		{
+			it.next().getValue().addTo(released);
+			it.remove();
+		}
+
+		return released;
+	}
+
+
+	/**
+	 * @param aGeneration the generation of the commit freeing the blocks
+	 */
+	synchronized void add(long aGeneration, RangeMap aFrees)
+	{
+		mFrees.put(aGeneration, aFrees);
+	}
+
+
+	synchronized void removeFrom(SpaceAllocator aAllocator)
+	{
+		for (RangeMap frees : mFrees.values())
+		{
+			frees.removeFrom(aAllocator);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.Arrays;
+
+
+/**
+ * Sorted set of primitive long pairs ordered by the first and then the second value.
+ * <p>
+ * The pairs are stored interleaved in fixed size leaf arrays referenced from a directory, forming a two level B-tree. Cloning only
+ * copies the directory, the leaves are shared between the instances and copied the first time either instance modifies them.
+ * <p>
+ * Search methods return a position that can be passed to the accessor and iteration methods. A position is only valid until the set
+ * is modified, -1 is returned when no pair matches.
+ */
+final class ExtentTree implements Cloneable
+{
+	private final static int LEAF_CAPACITY = 256;
+
+	private long[][] mLeaves;
+	private int[] mLeafSizes;
+	private boolean[] mShared;
+	private int mLeafCount;
+	private int mSize;
+
+
+	ExtentTree()
+	{
+		mLeaves = new long[4][];
+		mLeafSizes = new int[4];
+		mShared = new boolean[4];
+	}
+
+
+	int size()
+	{
+		return mSize;
+	}
+
+
+	boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+
+	long getFirst(long aPosition)
+	{
+		return mLeaves[leaf(aPosition)][2 * slot(aPosition)];
+	}
+
+
+	long getSecond(long aPosition)
+	{
+		return mLeaves[leaf(aPosition)][2 * slot(aPosition) + 1];
+	}
+
+
+	long first()
+	{
+		return mSize == 0 ? -1 : position(0, 0);
+	}
+
+
+	long last()
+	{
+		return mSize == 0 ? -1 : position(mLeafCount - 1, mLeafSizes[mLeafCount - 1] - 1);
+	}
+
+
+	long next(long aPosition)
+	{
+		int leaf = leaf(aPosition);
+		int slot = slot(aPosition) + 1;
+
+		if (slot < mLeafSizes[leaf])
+		{
+			return position(leaf, slot);
+		}
+		if (leaf + 1 < mLeafCount)
+		{
+			return position(leaf + 1, 0);
+		}
+
+		return -1;
+	}
+
+
+	long previous(long aPosition)
+	{
+		int leaf = leaf(aPosition);
+		int slot = slot(aPosition) - 1;
+
+		if (slot >= 0)
+		{
+			return position(leaf, slot);
+		}
+		if (leaf > 0)
+		{
+			return position(leaf - 1, mLeafSizes[leaf - 1] - 1);
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * @return the position of the greatest pair less than or equal to the given pair.
+	 */
+	long floor(long aFirst, long aSecond)
+	{
+		int leaf = findLeaf(aFirst, aSecond);
+
+		if (leaf < 0)
+		{
+			return -1;
+		}
+
+		int slot = search(leaf, aFirst, aSecond);
+
+		return position(leaf, slot >= 0 ? slot : -slot - 2);
+	}
+
+
+	/**
+	 * @return the position of the least pair greater than or equal to the given pair.
+	 */
+	long ceiling(long aFirst, long aSecond)
+	{
+		long pos = floor(aFirst, aSecond);
+
+		if (pos == -1)
+		{
+			return first();
+		}
+		if (getFirst(pos) == aFirst && getSecond(pos) == aSecond)
+		{
+			return pos;
+		}
+
+		return next(pos);
+	}
+
+
+	/**
+	 * @return the position of the greatest pair strictly less than the given pair.
+	 */
+	long lower(long aFirst, long aSecond)
+	{
+		long pos = floor(aFirst, aSecond);
+
+		if (pos != -1 && getFirst(pos) == aFirst && getSecond(pos) == aSecond)
+		{
+			return previous(pos);
+		}
+
+		return pos;
+	}
+
+
+	/**
+	 * @return the position of the least pair strictly greater than the given pair.
+	 */
+	long higher(long aFirst, long aSecond)
+	{
+		long pos = floor(aFirst, aSecond);
+
+		return pos == -1 ? first() : next(pos);
+	}
+
+
+	/**
+	 * @return false if the pair already exists in the set.
+	 */
+	boolean add(long aFirst, long aSecond)
+	{
+		if (mLeafCount == 0)
+		{
+			ensureDirectoryCapacity(1);
+			mLeaves[0] = new long[2 * LEAF_CAPACITY];
+			mLeaves[0][0] = aFirst;
+			mLeaves[0][1] = aSecond;
+			mLeafSizes[0] = 1;
+			mShared[0] = false;
+			mLeafCount = 1;
+			mSize = 1;
+			return true;
+		}
+
+		int leaf = Math.max(0, findLeaf(aFirst, aSecond));
+		int slot = search(leaf, aFirst, aSecond);
+
+		if (slot >= 0)
+		{
+			return false;
+		}
+
+		slot = -slot - 1;
+
+		if (mLeafSizes[leaf] == LEAF_CAPACITY)
+		{
+			split(leaf);
+
+			if (slot > mLeafSizes[leaf])
+			{
+				slot -= mLeafSizes[leaf];
+				leaf++;
+			}
+		}
+
+		long[] data = writable(leaf);
+		System.arraycopy(data, 2 * slot, data, 2 * slot + 2, 2 * (mLeafSizes[leaf] - slot));
+		data[2 * slot] = aFirst;
+		data[2 * slot + 1] = aSecond;
+
+		mLeafSizes[leaf]++;
+		mSize++;
+
+		return true;
+	}
+
+
+	/**
+	 * @return false if the pair didn't exist in the set.
+	 */
+	boolean remove(long aFirst, long aSecond)
+	{
+		int leaf = findLeaf(aFirst, aSecond);
+
+		if (leaf < 0)
+		{
+			return false;
+		}
+
+		int slot = search(leaf, aFirst, aSecond);
+
+		if (slot < 0)
+		{
+			return false;
+		}
+
+		long[] data = writable(leaf);
+		int count = --mLeafSizes[leaf];
+		System.arraycopy(data, 2 * slot + 2, data, 2 * slot, 2 * (count - slot));
+
+		mSize--;
+
+		if (count == 0)
+		{
+			removeLeaf(leaf);
+		}
+		else if (count < LEAF_CAPACITY / 4 && leaf + 1 < mLeafCount && count + mLeafSizes[leaf + 1] <= LEAF_CAPACITY / 2)
+		{
+			System.arraycopy(mLeaves[leaf + 1], 0, data, 2 * count, 2 * mLeafSizes[leaf + 1]);
+			mLeafSizes[leaf] += mLeafSizes[leaf + 1];
+			removeLeaf(leaf + 1);
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Replaces the pair at the position with another pair. The new pair must sort between the neighbours of the replaced pair.
+	 */
+	void replace(long aPosition, long aFirst, long aSecond)
+	{
+		assert previous(aPosition) == -1 || compare(previous(aPosition), aFirst, aSecond) < 0;
+		assert next(aPosition) == -1 || compare(next(aPosition), aFirst, aSecond) > 0;
+
+		long[] data = writable(leaf(aPosition));
+		data[2 * slot(aPosition)] = aFirst;
+		data[2 * slot(aPosition) + 1] = aSecond;
+	}
+
+
+	void clear()
+	{
+		Arrays.fill(mLeaves, 0, mLeafCount, null);
+		mLeafCount = 0;
+		mSize = 0;
+	}
+
+
+	@Override
+	public ExtentTree clone()
+	{
+		try
+		{
+			ExtentTree tree = (ExtentTree)super.clone();
+			tree.mLeaves = mLeaves.clone();
+			tree.mLeafSizes = mLeafSizes.clone();
+			tree.mShared = mShared.clone();
+			Arrays.fill(mShared, 0, mLeafCount, true);
+			Arrays.fill(tree.mShared, 0, mLeafCount, true);
+			return tree;
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * @return the index of the last leaf with a first pair less than or equal to the given pair or -1 if none.
+	 */
+	private int findLeaf(long aFirst, long aSecond)
+	{
+		int low = 0;
+		int high = mLeafCount - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long[] data = mLeaves[mid];
+			int c = compare(data[0], data[1], aFirst, aSecond);
+
+			if (c <= 0)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		return high;
+	}
+
+
+	/**
+	 * @return the slot of the pair if found, otherwise (-(insertion point) - 1).
+	 */
+	private int search(int aLeaf, long aFirst, long aSecond)
+	{
+		long[] data = mLeaves[aLeaf];
+		int low = 0;
+		int high = mLeafSizes[aLeaf] - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int c = compare(data[2 * mid], data[2 * mid + 1], aFirst, aSecond);
+
+			if (c < 0)
+			{
+				low = mid + 1;
+			}
+			else if (c > 0)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+
+		return -(low + 1);
+	}
+
+
+	private void split(int aLeaf)
+	{
+		ensureDirectoryCapacity(mLeafCount + 1);
+
+		int half = LEAF_CAPACITY / 2;
+		long[] right = new long[2 * LEAF_CAPACITY];
+		System.arraycopy(mLeaves[aLeaf], 2 * half, right, 0, 2 * (mLeafSizes[aLeaf] - half));
+
+		System.arraycopy(mLeaves, aLeaf + 1, mLeaves, aLeaf + 2, mLeafCount - aLeaf - 1);
+		System.arraycopy(mLeafSizes, aLeaf + 1, mLeafSizes, aLeaf + 2, mLeafCount - aLeaf - 1);
+		System.arraycopy(mShared, aLeaf + 1, mShared, aLeaf + 2, mLeafCount - aLeaf - 1);
+
+		mLeaves[aLeaf + 1] = right;
+		mLeafSizes[aLeaf + 1] = mLeafSizes[aLeaf] - half;
+		mShared[aLeaf + 1] = false;
+		mLeafSizes[aLeaf] = half;
+		mLeafCount++;
+	}
+
+
+	private void removeLeaf(int aLeaf)
+	{
+		System.arraycopy(mLeaves, aLeaf + 1, mLeaves, aLeaf, mLeafCount - aLeaf - 1);
+		System.arraycopy(mLeafSizes, aLeaf + 1, mLeafSizes, aLeaf, mLeafCount - aLeaf - 1);
+		System.arraycopy(mShared, aLeaf + 1, mShared, aLeaf, mLeafCount - aLeaf - 1);
+
+		mLeafCount--;
+		mLeaves[mLeafCount] = null;
+	}
+
+
+	private long[] writable(int aLeaf)
+	{
+		if (mShared[aLeaf])
+		{
+			mLeaves[aLeaf] = mLeaves[aLeaf].clone();
+			mShared[aLeaf] = false;
+		}
+
+		return mLeaves[aLeaf];
+	}
+
+
+	private void ensureDirectoryCapacity(int aCapacity)
+	{
+		if (aCapacity > mLeaves.length)
+		{
+			int capacity = Math.max(aCapacity, 2 * mLeaves.length);
+			mLeaves = Arrays.copyOf(mLeaves, capacity);
+			mLeafSizes = Arrays.copyOf(mLeafSizes, capacity);
+			mShared = Arrays.copyOf(mShared, capacity);
+		}
+	}
+
+
+	private int compare(long aPosition, long aFirst, long aSecond)
+	{
+		return compare(getFirst(aPosition), getSecond(aPosition), aFirst, aSecond);
+	}
+
+
+	private static int compare(long aFirst0, long aSecond0, long aFirst1, long aSecond1)
+	{
+		int c = Long.compare(aFirst0, aFirst1);
+		return c != 0 ? c : Long.compare(aSecond0, aSecond1);
+	}
+
+
+	private static long position(int aLeaf, int aSlot)
+	{
+		return ((long)aLeaf << 32) | aSlot;
+	}
+
+
+	private static int leaf(long aPosition)
+	{
+		return (int)(aPosition >>> 32);
+	}
+
+
+	private static int slot(long aPosition)
+	{
+		return (int)aPosition;
+	}
+}
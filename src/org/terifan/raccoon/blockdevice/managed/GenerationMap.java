@@ -0,0 +1,209 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
+
+
+/**
+ * The generation of the commit allocating each used block. Committed blocks are never written in place so the blocks changed since a
+ * generation are the blocks allocated after it. Adjacent ranges allocated by the same commit are merged.
+ * <p>
+ * Ranges are kept in two primitive trees ordered by the start of the range, one holding the end and one holding the generation.
+ */
+final class GenerationMap
+{
+	private final ExtentTree mRanges; // start, end
+	private final ExtentTree mGenerations; // start, generation
+
+
+	GenerationMap()
+	{
+		mRanges = new ExtentTree();
+		mGenerations = new ExtentTree();
+	}
+
+
+	/**
+	 * Records the ranges provided as allocated by the commit creating the generation.
+	 *
+	 * @param aRanges pairs of offset and size
+	 */
+	void put(long[] aRanges, long aGeneration)
+	{
+		for (int i = 0; i < aRanges.length; i += 2)
+		{
+			put(aRanges[i], aRanges[i + 1], aGeneration);
+		}
+	}
+
+
+	void put(long aOffset, long aSize, long aGeneration)
+	{
+		remove(aOffset, aSize);
+
+		long start = aOffset;
+		long end = aOffset + aSize;
+
+		long before = mRanges.lower(start, Long.MIN_VALUE);
+		if (before != -1 && mRanges.getSecond(before) == start && generation(mRanges.getFirst(before)) == aGeneration)
+		{
+			start = mRanges.getFirst(before);
+			delete(start, aOffset);
+		}
+
+		long after = mRanges.ceiling(end, Long.MIN_VALUE);
+		if (after != -1 && mRanges.getFirst(after) == end && generation(end) == aGeneration)
+		{
+			long afterEnd = mRanges.getSecond(after);
+			delete(end, afterEnd);
+			end = afterEnd;
+		}
+
+		insert(start, end, aGeneration);
+	}
+
+
+	/**
+	 * @param aRanges pairs of offset and size
+	 */
+	void remove(long[] aRanges)
+	{
+		for (int i = 0; i < aRanges.length; i += 2)
+		{
+			remove(aRanges[i], aRanges[i + 1]);
+		}
+	}
+
+
+	void remove(long aOffset, long aSize)
+	{
+		long end = aOffset + aSize;
+
+		for (long pos = mRanges.lower(end, Long.MIN_VALUE); pos != -1 && mRanges.getSecond(pos) > aOffset; pos = mRanges.lower(end, Long.MIN_VALUE))
+		{
+			long rangeStart = mRanges.getFirst(pos);
+			long rangeEnd = mRanges.getSecond(pos);
+			long generation = generation(rangeStart);
+
+			delete(rangeStart, rangeEnd);
+
+			if (rangeStart < aOffset)
+			{
+				insert(rangeStart, aOffset, generation);
+			}
+			if (rangeEnd > end)
+			{
+				insert(end, rangeEnd, generation);
+			}
+		}
+	}
+
+
+	/**
+	 * @return the ranges allocated by commits made after the generation provided.
+	 */
+	RangeMap getChangedSince(long aGeneration)
+	{
+		RangeMap changed = new RangeMap();
+
+		for (long pos = mRanges.first(), gen = mGenerations.first(); pos != -1; pos = mRanges.next(pos), gen = mGenerations.next(gen))
+		{
+			if (mGenerations.getSecond(gen) > aGeneration)
+			{
+				changed.add(mRanges.getFirst(pos), mRanges.getSecond(pos) - mRanges.getFirst(pos));
+			}
+		}
+
+		return changed;
+	}
+
+
+	/**
+	 * @return the generation of the commit allocating the block or -1 if the block isn't used.
+	 */
+	long getGeneration(long aBlockIndex)
+	{
+		long pos = mRanges.floor(aBlockIndex, Long.MAX_VALUE);
+
+		return pos == -1 || mRanges.getSecond(pos) <= aBlockIndex ? -1 : generation(mRanges.getFirst(pos));
+	}
+
+
+	boolean isEmpty()
+	{
+		return mRanges.isEmpty();
+	}
+
+
+	void marshal(ByteArrayBuffer aDataOutput)
+	{
+		long prevEnd = 0;
+		long prevGeneration = 0;
+
+		aDataOutput.writeVar64U(mRanges.size());
+
+		for (long pos = mRanges.first(), gen = mGenerations.first(); pos != -1; pos = mRanges.next(pos), gen = mGenerations.next(gen))
+		{
+			aDataOutput.writeVar64U(mRanges.getFirst(pos) - prevEnd);
+			aDataOutput.writeVar64U(mRanges.getSecond(pos) - mRanges.getFirst(pos));
+			aDataOutput.writeVar64(mGenerations.getSecond(gen) - prevGeneration);
+
+			prevEnd = mRanges.getSecond(pos);
+			prevGeneration = mGenerations.getSecond(gen);
+		}
+	}
+
+
+	void unmarshal(ByteArrayBuffer aDataInput)
+	{
+		long size = aDataInput.readVar64U();
+
+		for (long i = 0, prevEnd = 0, prevGeneration = 0; i < size; i++)
+		{
+			long start = prevEnd + aDataInput.readVar64U();
+			long end = start + aDataInput.readVar64U();
+			long generation = prevGeneration + aDataInput.readVar64();
+
+			insert(start, end, generation);
+
+			prevEnd = end;
+			prevGeneration = generation;
+		}
+	}
+
+
+	private long generation(long aStart)
+	{
+		return mGenerations.getSecond(mGenerations.floor(aStart, Long.MAX_VALUE));
+	}
+
+
+	private void insert(long aStart, long aEnd, long aGeneration)
+	{
+		mRanges.add(aStart, aEnd);
+		mGenerations.add(aStart, aGeneration);
+	}
+
+
+	private void delete(long aStart, long aEnd)
+	{
+		mRanges.remove(aStart, aEnd);
+		mGenerations.remove(aStart, generation(aStart));
+	}
+
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("{");
+		for (long pos = mRanges.first(), gen = mGenerations.first(); pos != -1; pos = mRanges.next(pos), gen = mGenerations.next(gen))
+		{
+			if (sb.length() > 1)
+			{
+				sb.append(", ");
+			}
+			sb.append(mRanges.getFirst(pos) + "-" + (mRanges.getSecond(pos) - 1) + "@" + mGenerations.getSecond(gen));
+		}
+		sb.append("}");
+		return sb.toString();
+	}
+}
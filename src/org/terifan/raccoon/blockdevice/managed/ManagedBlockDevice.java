@@ -1,22 +1,87 @@
 package org.terifan.raccoon.blockdevice.managed;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import org.terifan.logging.Logger;
 import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.BlockPointer;
+import org.terifan.raccoon.blockdevice.BlockType;
+import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
+import org.terifan.raccoon.blockdevice.compressor.CompressorPool;
 import org.terifan.raccoon.document.Document;
 import org.terifan.raccoon.blockdevice.RaccoonIOException;
 import org.terifan.raccoon.blockdevice.storage.BlockStorage;
+import org.terifan.raccoon.blockdevice.util.SerialExecutor;
+import org.terifan.raccoon.security.messagedigest.SHA3;
+import org.terifan.raccoon.security.random.SecureRandom;
 
 
+/**
+ * A block device with a space map. Any number of threads may allocate, write and free blocks concurrently, each writer thread carving
+ * small allocations from its own arena, and readBlock doesn't take any lock and checks the range against an immutable allocation state
+ * published by the space map. Commit, commitAsync, rollback, defragment and rebalance require exclusive access: no other thread may
+ * allocate, write or free blocks while they run.
+ */
 public class ManagedBlockDevice implements AutoCloseable
 {
 	private final Logger log = Logger.getLogger();
 
+	private final static SecureRandom PRNG = new SecureRandom();
+
+	private final static int BACKUP_MAGIC = 0x52424442; // RBDB
+	private final static int BACKUP_VERSION = 1;
+	private final static int BACKUP_CHUNK_BLOCKS = 256;
+
+	/**
+	 * Key used when blocks are copied as stored. The keys of the blocks in use are known only by the structures pointing to them, a
+	 * storage either ignores the key or transforms the block with the key and the block index, so a block read and written back at the
+	 * same index with the same key is unchanged whatever the key. Archives are therefore restored at the original block indices and into
+	 * a storage using the same key material.
+	 */
+	final static int[] RAW_BLOCK_KEY = new int[4];
+
+	private final ThreadLocal<AllocationArena> mArena = new ThreadLocal<>();
+	private final ConcurrentLinkedQueue<AllocationArena> mArenas = new ConcurrentLinkedQueue<>();
+	private final CopyOnWriteArrayList<BlockOwner> mBlockOwners = new CopyOnWriteArrayList<>();
+	private final CopyOnWriteArrayList<CommitListener> mCommitListeners = new CopyOnWriteArrayList<>();
+	private final DeferredFrees mDeferredFrees = new DeferredFrees();
+	private final AtomicLong mDirtyBytes = new AtomicLong();
+	private final AtomicLong mPendingFrees = new AtomicLong();
+
 	private BlockStorage mBlockStorage;
 	private SuperBlock mSuperBlock;
-	private SpaceMap mSpaceMap;
+	private volatile SpaceMap mSpaceMap;
 	private Document mMetadata;
-	private boolean mModified;
+	private byte[] mMetadataBytes;
+	private boolean mMetadataChanged;
+	private AllocationPolicy mAllocationPolicy;
+	private SpaceAllocatorType mSpaceAllocatorType;
+	private AllocationClass[] mAllocationClasses;
+	private int mArenaSize;
+	private long mTailReclaimThreshold;
+	private AutoCommitPolicy mAutoCommitPolicy;
+	private long mLastCommitTime;
+	private long mAllocationHint;
+	private volatile boolean mModified;
+	private boolean mCommitIncomplete;
+	private volatile Throwable mCommitFailure;
+	private Executor mCommitExecutor;
+	private volatile Supplier<CompressorPool> mCompressorPool;
+	private CompletableFuture<Long> mPendingCommit;
+	private CompletableFuture<Long> mUnnotifiedCommit;
 	private boolean mWasCreated;
 	private int mBlockSize;
 	private int mReservedBlocks;
@@ -30,6 +95,9 @@ public class ManagedBlockDevice implements AutoCloseable
 		}
 
 		mBlockStorage = aBlockStorage;
+		mAllocationPolicy = AllocationPolicy.FIRST_FIT;
+		mSpaceAllocatorType = SpaceAllocatorType.RANGE_MAP;
+		mAllocationClasses = new AllocationClass[0];
 	}
 
 
@@ -52,6 +120,7 @@ public class ManagedBlockDevice implements AutoCloseable
 		}
 
 		mMetadata = new Document();
+		mMetadataBytes = new byte[0];
 		mReservedBlocks = 2;
 
 		mBlockSize = mBlockStorage.getBlockSize();
@@ -66,6 +135,8 @@ public class ManagedBlockDevice implements AutoCloseable
 			loadBlockDevice();
 		}
 
+		resetCommitCounters();
+
 		return this;
 	}
 
@@ -75,7 +146,12 @@ public class ManagedBlockDevice implements AutoCloseable
 		log.i("create block device");
 		log.inc();
 
-		mSpaceMap = new SpaceMap();
+		mAllocationHint = -1;
+		mSpaceMap = new SpaceMap(mSpaceAllocatorType);
+		mSpaceMap.setAllocationPolicy(mAllocationPolicy);
+		mSpaceMap.setAllocationClasses(mAllocationClasses);
+		mSpaceMap.setDeferredFrees(mDeferredFrees);
+		updateTailLimit();
 		mSuperBlock = new SuperBlock(-1L); // counter is incremented in writeSuperBlock method and we want to ensure we write block 0 before block 1
 
 		long index = allocBlockInternal(mReservedBlocks);
@@ -114,12 +190,62 @@ public class ManagedBlockDevice implements AutoCloseable
 			throw new RaccoonIOException("Failed to read from block device", e);
 		}
 
-		mSpaceMap = new SpaceMap(mSuperBlock, this, mBlockStorage);
+		// the space map is loaded when first needed, reads don't require it
+		mSpaceMap = null;
+
+		if (mSuperBlock.getSpaceMapPointer().getAllocatedSize() > 0 && mSuperBlock.getSpaceMapPointer().getBlockLevel() < SpaceAllocatorType.values().length)
+		{
+			mSpaceAllocatorType = SpaceAllocatorType.values()[mSuperBlock.getSpaceMapPointer().getBlockLevel()];
+		}
 
 		log.dec();
 	}
 
 
+	/**
+	 * @return the space map, loading it from the block device if necessary.
+	 */
+	private SpaceMap getSpaceMap()
+	{
+		SpaceMap spaceMap = mSpaceMap;
+
+		if (spaceMap == null)
+		{
+			synchronized (this)
+			{
+				if (mSpaceMap == null)
+				{
+					log.d("load space map");
+					log.inc();
+
+					spaceMap = new SpaceMap(mSuperBlock, this, mBlockStorage);
+					spaceMap.setAllocationPolicy(mAllocationPolicy);
+					spaceMap.setAllocationClasses(mAllocationClasses);
+					spaceMap.setDeferredFrees(mDeferredFrees);
+					mSpaceMap = spaceMap;
+					updateTailLimit();
+					updateAllocationHint();
+
+					log.dec();
+				}
+
+				spaceMap = mSpaceMap;
+			}
+		}
+
+		return spaceMap;
+	}
+
+
+	/**
+	 * @return true if the space map has been loaded. The space map is loaded by the first operation changing the device.
+	 */
+	public boolean isSpaceMapLoaded()
+	{
+		return mSpaceMap != null;
+	}
+
+
 	/**
 	 * @return true if the block device has pending changes requiring a commit.
 	 */
@@ -130,316 +256,1640 @@ public class ManagedBlockDevice implements AutoCloseable
 
 
 	/**
-	 * Note: the serialized Document must fit inside the SuperBlock and be max (approx) 3500 bytes in length.
+	 * The metadata is loaded on first access. A small Document is stored inside the SuperBlock and a large Document is stored in blocks
+	 * referenced from the SuperBlock. The Document is serialized by the next commit after this method is called and written only if it
+	 * has changed, changes must therefore be made to a Document returned by a call made in the same transaction.
 	 *
 	 * @return a Document containing information about the application using the block device.
 	 */
 	public Document getMetadata()
 	{
+		if (mMetadata == null && mSuperBlock != null)
+		{
+			if (mMetadataBytes == null)
+			{
+				mMetadataBytes = readMetadata(mSuperBlock);
+			}
+			mMetadata = SuperBlock.unmarshalMetadata(mMetadataBytes);
+		}
+
+		// the caller may change the document
+		mMetadataChanged = mMetadata != null;
+
 		return mMetadata;
 	}
 
 
 	/**
-	 * Note: the serialized Document must fit inside the SuperBlock and be max (approx) 3500 bytes in length.
-	 *
 	 * @param aMetadata sets the metadata document for this BlockDevice.
 	 */
 	public ManagedBlockDevice setMetadata(Document aMetadata)
 	{
-		mMetadata.clear().putAll(aMetadata);
+		getMetadata().clear().putAll(aMetadata);
 		return this;
 	}
 
 
-	/**
-	 * @return the current transaction id. This value is incremented for each commit.
-	 */
-	public long getGeneration()
+	public AllocationPolicy getAllocationPolicy()
 	{
-		return mSuperBlock.getGeneration();
+		return mAllocationPolicy;
 	}
 
 
 	/**
-	 * @return total number of blocks in this device.
+	 * Sets the strategy used when searching for free blocks. Default is FIRST_FIT.
 	 */
-	public long size()
-	{
-		return mBlockStorage.size() - mReservedBlocks;
-	}
-
-
-	@Override
-	public void close() throws IOException
+	public ManagedBlockDevice setAllocationPolicy(AllocationPolicy aAllocationPolicy)
 	{
-		if (mModified)
+		if (aAllocationPolicy == null)
 		{
-			rollback();
+			throw new IllegalArgumentException("aAllocationPolicy is null");
 		}
 
-		if (mBlockStorage != null)
+		mAllocationPolicy = aAllocationPolicy;
+
+		if (mSpaceMap != null)
 		{
-			mBlockStorage.resize(mSpaceMap.getRangeMap().getLastBlockIndex());
-			mBlockStorage.close();
+			mSpaceMap.setAllocationPolicy(aAllocationPolicy);
 		}
+
+		return this;
 	}
 
 
-	public boolean isReadOnly()
+	public SpaceAllocatorType getSpaceAllocatorType()
 	{
-		return mBlockStorage.isReadOnly();
+		return mSpaceAllocatorType;
 	}
 
 
-	public int getBlockSize()
+	/**
+	 * Sets the implementation used to track free blocks. Default is RANGE_MAP. The type is only used when a new block device is
+	 * created, an existing device keeps the type it was created with.
+	 */
+	public ManagedBlockDevice setSpaceAllocatorType(SpaceAllocatorType aSpaceAllocatorType)
 	{
-		return mBlockSize;
+		if (aSpaceAllocatorType == null)
+		{
+			throw new IllegalArgumentException("aSpaceAllocatorType is null");
+		}
+
+		mSpaceAllocatorType = aSpaceAllocatorType;
+		return this;
+	}
+
+
+	public AllocationClass[] getAllocationClasses()
+	{
+		return mAllocationClasses.clone();
 	}
 
 
 	/**
-	 * Allocate a sequence of blocks on the device.
+	 * Sets the allocation classes used to segregate allocations by size. An allocation is served by the class with the smallest
+	 * maximum block count able to hold it, allocations larger than every class use the device wide allocator. The classes are not
+	 * persisted and must be set each time the device is opened. Default is no classes.
 	 */
-	public long allocBlock(int aBlockCount)
+	public ManagedBlockDevice setAllocationClasses(AllocationClass... aAllocationClasses)
 	{
-		long blockIndex = allocBlockInternal(aBlockCount) - mReservedBlocks;
+		if (aAllocationClasses == null)
+		{
+			throw new IllegalArgumentException("aAllocationClasses is null");
+		}
 
-		if (blockIndex < 0)
+		AllocationClass[] classes = aAllocationClasses.clone();
+		Arrays.sort(classes, (a, b) -> Long.compare(a.getMaxBlockCount(), b.getMaxBlockCount()));
+
+		mAllocationClasses = classes;
+
+		if (mSpaceMap != null)
 		{
-			throw new RaccoonIOException("Illegal block index allocated.");
+			mSpaceMap.setAllocationClasses(classes);
 		}
 
-		return blockIndex;
+		return this;
 	}
 
 
-	long allocBlockInternal(long aBlockCount)
+	public long getTailReclaimThreshold()
 	{
-		mModified = true;
-
-		return mSpaceMap.alloc(aBlockCount);
+		return mTailReclaimThreshold;
 	}
 
 
 	/**
-	 * Free a block from the device.
-	 *
-	 * @param aBlockIndex the index of the block being freed.
+	 * Sets the number of free blocks at the end of the device that will cause the underlying storage to be truncated after a commit.
+	 * Allocations are also kept out of the last blocks of the device when free space exist before them. Default is 0 which disables
+	 * the truncation, the storage is then only truncated on close.
 	 */
-	public void freeBlock(long aBlockIndex, int aBlockCount)
+	public ManagedBlockDevice setTailReclaimThreshold(long aBlockCount)
 	{
-		if (aBlockIndex < 0)
+		if (aBlockCount < 0)
 		{
-			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+			throw new IllegalArgumentException("aBlockCount is negative");
 		}
 
-		freeBlockInternal(mReservedBlocks + aBlockIndex, aBlockCount);
+		mTailReclaimThreshold = aBlockCount;
+
+		if (mSpaceMap != null)
+		{
+			updateTailLimit();
+		}
+
+		return this;
 	}
 
 
-	void freeBlockInternal(long aBlockIndex, int aBlockCount)
+	public AutoCommitPolicy getAutoCommitPolicy()
 	{
-		log.t("free block {} +{}", aBlockIndex, aBlockCount);
+		return mAutoCommitPolicy;
+	}
 
-		mModified = true;
 
-		mSpaceMap.free(aBlockIndex, aBlockCount);
+	/**
+	 * Sets the thresholds used by commitIfNeeded. Default is null which makes commitIfNeeded never commit.
+	 */
+	public ManagedBlockDevice setAutoCommitPolicy(AutoCommitPolicy aAutoCommitPolicy)
+	{
+		mAutoCommitPolicy = aAutoCommitPolicy;
+		return this;
 	}
 
 
 	/**
-	 * Write one or more blocks to the device.
+	 * Sets the executor running asynchronous commits, allowing many devices to share a thread pool. Commits of this device are still
+	 * performed one at a time in order. The executor is not shut down when the device is closed. Default is null which makes the device
+	 * start its own thread on the first asynchronous commit.
 	 *
-	 * @param aBlockIndex starting block index
-	 * @param aBuffer buffer to be written, must be a multiple of the device block size
-	 * @param aBlockKey 16 bytes (4 ints) key used to encrypt the block
+	 * @throws IllegalStateException if an asynchronous commit is pending
 	 */
-	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	public synchronized ManagedBlockDevice setCommitExecutor(Executor aExecutor)
 	{
-		if (aBlockIndex < 0)
+		if (mPendingCommit != null && !mPendingCommit.isDone())
 		{
-			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+			throw new IllegalStateException("An asynchronous commit is pending.");
 		}
-		if ((aBufferLength % mBlockSize) != 0)
+
+		if (mCommitExecutor instanceof ExecutorService v)
 		{
-			throw new RaccoonIOException("Illegal buffer length: " + aBlockIndex);
+			v.shutdown();
 		}
 
-		writeBlockInternal(mReservedBlocks + aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+		mCommitExecutor = aExecutor == null ? null : new SerialExecutor(aExecutor);
+		return this;
 	}
 
 
-	private void writeBlockInternal(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	/**
+	 * @return the pool of compressor instances currently provided or null if not used
+	 */
+	public CompressorPool getCompressorPool()
 	{
-		assert aBufferLength > 0;
-		assert (aBufferLength % mBlockSize) == 0;
+		Supplier<CompressorPool> supplier = mCompressorPool;
 
-		mSpaceMap.assertUsed(aBlockIndex, aBufferLength / mBlockSize);
+		return supplier == null ? null : supplier.get();
+	}
 
-		mModified = true;
 
-		log.t("write block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
-		log.inc();
+	/**
+	 * Sets the source of the pool of compressor instances used by BlockAccessors of this device, allowing many devices to share the
+	 * instances. The supplier is called for every block so the pool can be replaced by its owner while the device is open, the pool is
+	 * not closed when the device is closed. Default is null which makes every block use new instances.
+	 */
+	public ManagedBlockDevice setCompressorPool(Supplier<CompressorPool> aCompressorPool)
+	{
+		mCompressorPool = aCompressorPool;
+		return this;
+	}
 
-		mBlockStorage.writeBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
 
-		log.dec();
+	/**
+	 * @return number of bytes written to the device since the last commit.
+	 */
+	public long getDirtyBytes()
+	{
+		return mDirtyBytes.get();
 	}
 
 
-	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	/**
+	 * @return number of blocks freed since the last commit.
+	 */
+	public long getPendingFrees()
 	{
-		if (aBlockIndex < 0)
-		{
-			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
-		}
-		if ((aBufferLength % mBlockSize) != 0)
+		return mPendingFrees.get();
+	}
+
+
+	public int getAllocationArenaSize()
+	{
+		return mArenaSize;
+	}
+
+
+	/**
+	 * Sets the number of blocks each writer thread reserves at a time. Small allocations are carved from the reserved range of the
+	 * calling thread without locking the space map and end up contiguous on disk. Unused blocks are returned on commit. Default is 0
+	 * which disables the arenas.
+	 */
+	public ManagedBlockDevice setAllocationArenaSize(int aBlockCount)
+	{
+		if (aBlockCount < 0)
 		{
-			throw new RaccoonIOException("Illegal buffer length: " + aBlockIndex);
+			throw new IllegalArgumentException("aBlockCount is negative");
 		}
 
-		readBlockInternal(mReservedBlocks + aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+		mArenaSize = aBlockCount;
+		return this;
 	}
 
 
-	private void readBlockInternal(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	/**
+	 * Registers a structure holding block pointers into this device. Registered owners are asked to relocate their blocks when the device
+	 * is defragmented.
+	 */
+	public ManagedBlockDevice addBlockOwner(BlockOwner aBlockOwner)
 	{
-		assert aBufferLength > 0;
-		assert (aBufferLength % mBlockSize) == 0;
+		mBlockOwners.addIfAbsent(aBlockOwner);
+		return this;
+	}
 
-		mSpaceMap.assertUsed(aBlockIndex, aBufferLength / mBlockSize);
 
-		log.t("read block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
-		log.inc();
+	public ManagedBlockDevice removeBlockOwner(BlockOwner aBlockOwner)
+	{
+		mBlockOwners.remove(aBlockOwner);
+		return this;
+	}
 
-		mBlockStorage.readBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
 
-		log.dec();
+	/**
+	 * Registers a listener called after each commit changing the device. The commit is durable even if a listener fails. Listeners of an
+	 * asynchronous commit are called once it has completed, by the next call to commit, commitAsync, openSnapshot or close.
+	 */
+	public ManagedBlockDevice addCommitListener(CommitListener aCommitListener)
+	{
+		mCommitListeners.add(aCommitListener);
+		return this;
+	}
+
+
+	public ManagedBlockDevice removeCommitListener(CommitListener aCommitListener)
+	{
+		mCommitListeners.remove(aCommitListener);
+		return this;
 	}
 
 
 	/**
-	 * Commit any pending blocks.
+	 * Moves used blocks towards the start of the device. Each registered owner is asked to pass its block pointers to a relocator which
+	 * copies blocks into free space before their current location. At most aBlockBudget blocks are copied by each call, the device should
+	 * be committed between calls until no more blocks are moved. The space released becomes free after the commit and the storage can
+	 * then be shrunk using truncate.
 	 *
-	 * @param aMetadata force update of metadata
+	 * @return the number of blocks moved
 	 */
-	public void commit(boolean aMetadata) throws IOException
+	public long defragment(long aBlockBudget)
 	{
-		if (mModified)
-		{
-			log.d("committing managed block device");
-			log.inc();
+		log.d("defragment, budget {}", aBlockBudget);
+		log.inc();
 
-			mSpaceMap.write(mSuperBlock.getSpaceMapPointer(), this, mBlockStorage);
+		BlockRelocator relocator = new BlockRelocator(this, aBlockBudget);
 
-			mBlockStorage.commit(0, false);
+		for (BlockOwner owner : mBlockOwners)
+		{
+			if (relocator.isExhausted())
+			{
+				break;
+			}
 
-			writeSuperBlock();
+			owner.relocateBlocks(relocator);
+		}
 
-			mBlockStorage.commit(1, aMetadata);
+		relocated(relocator);
 
-			mSpaceMap.reset();
-			mWasCreated = false;
-			mModified = false;
+		log.d("relocated {} blocks", relocator.getRelocatedBlocks());
+		log.dec();
 
-			log.dec();
-		}
+		return relocator.getRelocatedBlocks();
 	}
 
 
 	/**
-	 * Commit any pending blocks.
+	 * Owners may keep their block pointers in the metadata, it's therefore written by the next commit when blocks were relocated.
 	 */
-	public void commit() throws IOException
+	private void relocated(BlockRelocator aRelocator)
 	{
-		commit(false);
+		if (aRelocator.getRelocatedBlocks() > 0 && mMetadata != null)
+		{
+			mMetadataChanged = true;
+		}
 	}
 
 
 	/**
-	 * Rollback any pending blocks.
+	 * Moves used blocks from the most used to the least used device of a storage made of several devices, like PooledBlockStorage.
+	 * Registered owners pass their block pointers to a relocator like when defragmenting. At most aBlockBudget blocks are copied by each
+	 * call, the device should be committed between calls until no more blocks are moved. The owners rewrite their pointers while blocks
+	 * are moved, so the rebalance runs incrementally on a thread having exclusive access rather than in the background.
+	 *
+	 * @return the number of blocks moved
 	 */
-	public void rollback() throws IOException
+	public long rebalance(long aBlockBudget)
 	{
-		if (mModified)
+		long[] regions = mBlockStorage.getRegions();
+
+		if (regions == null || regions.length < 4)
 		{
-			log.i("rollbacking block device");
-			log.inc();
+			return 0;
+		}
 
-			mSpaceMap.reset();
-			mSpaceMap.rollback();
+		long[] used = getRegionUsage(regions);
+		int source = 0;
+		int target = 0;
 
-			if (mWasCreated)
+		for (int i = 1; i < used.length; i++)
+		{
+			if (used[i] * regions[2 * source + 1] > used[source] * regions[2 * i + 1])
 			{
-				createBlockDevice();
+				source = i;
 			}
-			else
+			if (used[i] * regions[2 * target + 1] < used[target] * regions[2 * i + 1])
 			{
-				loadBlockDevice();
+				target = i;
 			}
-
-			mModified = false;
-
-			log.dec();
 		}
-	}
 
+		// blocks to move for the devices to be equally used
+		long sourceSize = regions[2 * source + 1];
+		long targetSize = regions[2 * target + 1];
+		long excess = (used[source] * targetSize - used[target] * sourceSize) / (sourceSize + targetSize);
 
-	private void readSuperBlock() throws IOException
-	{
-		log.d("read super block");
+		log.d("rebalance, moving up to {} blocks from device {} to {}", Math.min(excess, aBlockBudget), source, target);
 		log.inc();
 
-		SuperBlock superBlockOne = new SuperBlock(-1L);
-		SuperBlock superBlockTwo = new SuperBlock(-1L);
+		long sourceStart = regions[2 * source] - mReservedBlocks;
+		long sourceEnd = sourceStart + sourceSize;
+		long targetStart = Math.max(0, regions[2 * target] - mReservedBlocks);
+		long targetEnd = regions[2 * target] - mReservedBlocks + targetSize;
 
-		Document metadataOne = superBlockOne.read(mBlockStorage, 0);
-		Document metadataTwo = superBlockTwo.read(mBlockStorage, 1);
+		BlockRelocator relocator = new BlockRelocator(this, Math.min(excess, aBlockBudget), (count, index) -> index >= sourceStart && index < sourceEnd ? allocBlockInside(count, targetStart, targetEnd) : -1);
 
-		if (superBlockOne.getGeneration() == superBlockTwo.getGeneration() + 1)
+		for (BlockOwner owner : mBlockOwners)
 		{
-			mSuperBlock = superBlockOne;
-			mMetadata = metadataOne;
+			if (relocator.isExhausted())
+			{
+				break;
+			}
 
-			log.t("using super block 0");
+			owner.relocateBlocks(relocator);
 		}
-		else if (superBlockTwo.getGeneration() == superBlockOne.getGeneration() + 1)
-		{
-			mSuperBlock = superBlockTwo;
-			mMetadata = metadataTwo;
 
-			log.t("using super block 1");
-		}
-		else
-		{
-			throw new IOException("BlockDevice appears to be corrupt. SuperBlock versions are illegal: " + superBlockOne.getGeneration() + " / " + superBlockTwo.getGeneration());
-		}
+		relocated(relocator);
 
+		log.d("relocated {} blocks", relocator.getRelocatedBlocks());
 		log.dec();
+
+		return relocator.getRelocatedBlocks();
 	}
 
 
-	private void writeSuperBlock() throws IOException
+	/**
+	 * Directs allocations without a hint to the least used device of a storage made of several devices.
+	 */
+	private void updateAllocationHint()
 	{
-		int index = (int)(mSuperBlock.incrementGeneration() & 1);
+		long[] regions = mBlockStorage.getRegions();
 
-		log.d("write super block {}", index);
-		log.inc();
+		if (regions == null || regions.length < 4)
+		{
+			mAllocationHint = -1;
+			return;
+		}
 
-		mSuperBlock.write(mBlockStorage, index, mMetadata);
+		long[] used = getRegionUsage(regions);
+		int target = 0;
 
-		log.dec();
+		for (int i = 1; i < used.length; i++)
+		{
+			if (used[i] * regions[2 * target + 1] < used[target] * regions[2 * i + 1])
+			{
+				target = i;
+			}
+		}
+
+		mAllocationHint = Math.max(mReservedBlocks, regions[2 * target]);
+
+		log.d("allocating from device {} at block {}", target, mAllocationHint);
 	}
 
 
 	/**
-	 * @return the maximum available space this block device can theoretically allocate. This value may be greater than what the underlying
-	 * block device can support.
+	 * @return the number of used blocks in each region.
+	 */
+	private long[] getRegionUsage(long[] aRegions)
+	{
+		long[] ranges = getSpaceMap().getUsedRanges(mBlockSize).toArray();
+		long[] used = new long[aRegions.length / 2];
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			for (int j = 0; j < used.length; j++)
+			{
+				long start = Math.max(ranges[i], aRegions[2 * j]);
+				long end = Math.min(ranges[i] + ranges[i + 1], aRegions[2 * j] + aRegions[2 * j + 1]);
+
+				if (start < end)
+				{
+					used[j] += end - start;
+				}
+			}
+		}
+
+		return used;
+	}
+
+
+	/**
+	 * Shrinks the underlying storage to the end of the last used block.
+	 */
+	public void truncate()
+	{
+		mBlockStorage.resize(getSpaceMap().getRangeMap().getLastBlockIndex());
+	}
+
+
+	private void reclaimTail()
+	{
+		if (mTailReclaimThreshold > 0 && mBlockStorage.size() - getSpaceMap().getRangeMap().getLastBlockIndex() >= mTailReclaimThreshold)
+		{
+			log.d("reclaiming {} free blocks at end of device", mBlockStorage.size() - getSpaceMap().getRangeMap().getLastBlockIndex());
+
+			truncate();
+		}
+
+		updateTailLimit();
+	}
+
+
+	private void updateTailLimit()
+	{
+		mSpaceMap.setTailLimit(mTailReclaimThreshold == 0 ? Long.MAX_VALUE : mBlockStorage.size() - mTailReclaimThreshold);
+	}
+
+
+	/**
+	 * @return the current transaction id. This value is incremented for each commit.
+	 */
+	public long getGeneration()
+	{
+		return mSuperBlock.getGeneration();
+	}
+
+
+	/**
+	 * @return total number of blocks in this device.
+	 */
+	public long size()
+	{
+		return mBlockStorage.size() - mReservedBlocks;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		boolean committed = false;
+
+		try
+		{
+			awaitCommit();
+			committed = true;
+		}
+		finally
+		{
+			if (mCommitExecutor instanceof ExecutorService v)
+			{
+				v.shutdown();
+			}
+
+			try
+			{
+				if (mModified)
+				{
+					rollback();
+				}
+			}
+			finally
+			{
+				if (mBlockStorage != null)
+				{
+					try
+					{
+						// the space map isn't trusted to shrink the storage after a failed commit
+						if (committed && mSpaceMap != null)
+						{
+							mBlockStorage.resize(mSpaceMap.getRangeMap().getLastBlockIndex());
+						}
+					}
+					finally
+					{
+						mBlockStorage.close();
+					}
+				}
+			}
+		}
+	}
+
+
+	public boolean isReadOnly()
+	{
+		return mBlockStorage.isReadOnly();
+	}
+
+
+	public int getBlockSize()
+	{
+		return mBlockSize;
+	}
+
+
+	/**
+	 * Allocate a sequence of blocks on the device.
+	 */
+	public long allocBlock(int aBlockCount)
+	{
+		return allocBlock(aBlockCount, -1);
+	}
+
+
+	/**
+	 * Allocate a sequence of blocks on the device, preferably at or shortly after the hint. Allocations served by an allocation arena
+	 * ignore the hint since the arena already place them next to the previous allocation of the thread.
+	 *
+	 * @param aHint a preferred block index, typically the block following a block read together with the new blocks, or -1 for no
+	 * preference.
+	 */
+	public long allocBlock(int aBlockCount, long aHint)
+	{
+		long blockIndex;
+
+		if (aBlockCount <= mArenaSize / 4)
+		{
+			blockIndex = allocArenaBlock(aBlockCount) - mReservedBlocks;
+		}
+		else
+		{
+			blockIndex = allocBlockInternal(aBlockCount, aHint < 0 ? -1 : mReservedBlocks + aHint) - mReservedBlocks;
+		}
+
+		if (blockIndex < 0)
+		{
+			throw new RaccoonIOException("Illegal block index allocated.");
+		}
+
+		return blockIndex;
+	}
+
+
+	long allocBlockInternal(long aBlockCount)
+	{
+		return allocBlockInternal(aBlockCount, -1);
+	}
+
+
+	private long allocBlockInternal(long aBlockCount, long aHint)
+	{
+		mModified = true;
+
+		return getSpaceMap().alloc(aBlockCount, aHint < 0 ? mAllocationHint : aHint);
+	}
+
+
+	/**
+	 * Allocates the first free range located before the block index provided.
+	 *
+	 * @return the block index or -1 if no such range exists.
+	 */
+	long allocBlockBefore(int aBlockCount, long aBlockIndex)
+	{
+		return allocBlockInside(aBlockCount, 0, aBlockIndex + aBlockCount - 1);
+	}
+
+
+	/**
+	 * Allocates a free range located inside the range provided.
+	 *
+	 * @return the block index or -1 if no such range exists.
+	 */
+	long allocBlockInside(int aBlockCount, long aStart, long aEnd)
+	{
+		mModified = true;
+
+		long blockIndex = getSpaceMap().allocInside(aBlockCount, mReservedBlocks + aStart, mReservedBlocks + aEnd);
+
+		return blockIndex < 0 ? -1 : blockIndex - mReservedBlocks;
+	}
+
+
+	private long allocArenaBlock(int aBlockCount)
+	{
+		AllocationArena arena = mArena.get();
+
+		long blockIndex = arena == null ? -1 : arena.alloc(aBlockCount);
+
+		if (blockIndex == -1)
+		{
+			if (arena != null)
+			{
+				releaseArena(arena);
+			}
+
+			long start = allocBlockInternal(mArenaSize);
+
+			log.t("reserved arena {} +{}", start, mArenaSize);
+
+			arena = new AllocationArena(start, start + mArenaSize);
+			mArenas.add(arena);
+			mArena.set(arena);
+
+			blockIndex = arena.alloc(aBlockCount);
+		}
+
+		mModified = true;
+
+		return blockIndex;
+	}
+
+
+	private void releaseArena(AllocationArena aArena)
+	{
+		mArenas.remove(aArena);
+
+		long unused = aArena.close();
+
+		if (unused < aArena.getEnd())
+		{
+			freeBlockInternal(unused, (int)(aArena.getEnd() - unused));
+		}
+	}
+
+
+	/**
+	 * Closes all arenas. Unused blocks are returned to the space map unless the arenas are discarded by a rollback.
+	 */
+	private void releaseArenas(boolean aReturnUnused)
+	{
+		for (AllocationArena arena; (arena = mArenas.poll()) != null;)
+		{
+			if (aReturnUnused)
+			{
+				releaseArena(arena);
+			}
+			else
+			{
+				arena.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Free a block from the device.
+	 *
+	 * @param aBlockIndex the index of the block being freed.
+	 */
+	public void freeBlock(long aBlockIndex, int aBlockCount)
+	{
+		if (aBlockIndex < 0)
+		{
+			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+		}
+
+		freeBlockInternal(mReservedBlocks + aBlockIndex, aBlockCount);
+	}
+
+
+	void freeBlockInternal(long aBlockIndex, int aBlockCount)
+	{
+		log.t("free block {} +{}", aBlockIndex, aBlockCount);
+
+		mModified = true;
+		mPendingFrees.addAndGet(aBlockCount);
+
+		getSpaceMap().free(aBlockIndex, aBlockCount);
+	}
+
+
+	/**
+	 * Write one or more blocks to the device.
+	 *
+	 * @param aBlockIndex starting block index
+	 * @param aBuffer buffer to be written, must be a multiple of the device block size
+	 * @param aBlockKey 16 bytes (4 ints) key used to encrypt the block
+	 */
+	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		if (aBlockIndex < 0)
+		{
+			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+		}
+		if ((aBufferLength % mBlockSize) != 0)
+		{
+			throw new RaccoonIOException("Illegal buffer length: " + aBlockIndex);
+		}
+
+		writeBlockInternal(mReservedBlocks + aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+	}
+
+
+	private void writeBlockInternal(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assert aBufferLength > 0;
+		assert (aBufferLength % mBlockSize) == 0;
+
+		getSpaceMap().assertAllocated(aBlockIndex, aBufferLength / mBlockSize);
+
+		mModified = true;
+		mDirtyBytes.addAndGet(aBufferLength);
+
+		log.t("write block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
+		log.inc();
+
+		mBlockStorage.writeBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+
+		log.dec();
+	}
+
+
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		if (aBlockIndex < 0)
+		{
+			throw new RaccoonIOException("Illegal offset: " + aBlockIndex);
+		}
+		if ((aBufferLength % mBlockSize) != 0)
+		{
+			throw new RaccoonIOException("Illegal buffer length: " + aBlockIndex);
+		}
+
+		readBlockInternal(mReservedBlocks + aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+	}
+
+
+	private void readBlockInternal(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assert aBufferLength > 0;
+		assert (aBufferLength % mBlockSize) == 0;
+
+		// reads are only verified once the space map has been loaded
+		SpaceMap spaceMap = mSpaceMap;
+		if (spaceMap != null)
+		{
+			spaceMap.assertUsed(aBlockIndex, aBufferLength / mBlockSize);
+		}
+
+		log.t("read block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
+		log.inc();
+
+		mBlockStorage.readBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+
+		log.dec();
+	}
+
+
+	/**
+	 * Opens a read-only view of the device as it was at the last commit. Blocks freed by later commits are not reused until the snapshot
+	 * is closed. The view is consistent as long as committed blocks are never written in place, which BlockAccessor never does.
+	 */
+	public BlockDeviceSnapshot openSnapshot() throws IOException
+	{
+		awaitCommit();
+
+		long generation = getGeneration();
+
+		mDeferredFrees.acquire(generation);
+
+		try
+		{
+			SuperBlock superBlock = new SuperBlock(-1L);
+			superBlock.read(mBlockStorage, (int)(generation & 1));
+
+			if (superBlock.getGeneration() != generation)
+			{
+				throw new IOException("Super block generation changed while opening snapshot: expected " + generation + ", found " + superBlock.getGeneration());
+			}
+
+			log.d("opened snapshot at generation {}", generation);
+
+			return new BlockDeviceSnapshot(this, generation, SuperBlock.unmarshalMetadata(readMetadata(superBlock)));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			releaseSnapshot(generation);
+			throw e;
+		}
+	}
+
+
+	void releaseSnapshot(long aGeneration)
+	{
+		log.d("released snapshot at generation {}", aGeneration);
+
+		synchronized (this)
+		{
+			if (mSpaceMap == null)
+			{
+				// the space map excludes deferred blocks when loaded
+				mDeferredFrees.release(aGeneration);
+				return;
+			}
+		}
+
+		mSpaceMap.reclaim(aGeneration);
+	}
+
+
+	/**
+	 * @return the blocks used by the last commit excluding the SuperBlocks, space map and metadata as pairs of block index and count.
+	 */
+	long[] getUserRanges()
+	{
+		RangeMap used = getSpaceMap().getUsedRanges(mBlockSize);
+
+		BlockPointer metadataPointer = mSuperBlock.getMetadataPointer();
+
+		if (metadataPointer.getAllocatedSize() > 0)
+		{
+			used.remove(metadataPointer.getBlockIndex0(), metadataPointer.getAllocatedSize() / mBlockSize);
+		}
+
+		long[] ranges = used.toArray();
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			// the SuperBlocks are located first in the first range
+			long start = Math.max(ranges[i], mReservedBlocks);
+			ranges[i + 1] -= start - ranges[i];
+			ranges[i] = start - mReservedBlocks;
+		}
+
+		return ranges;
+	}
+
+
+	void readSnapshotBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		log.t("read snapshot block {} +{}", mReservedBlocks + aBlockIndex, aBufferLength / mBlockSize);
+
+		mBlockStorage.readBlock(mReservedBlocks + aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+	}
+
+
+	/**
+	 * Writes the blocks allocated by commits made after the base generation to a sequential archive together with the SuperBlock of the
+	 * last commit. The space map and metadata blocks are part of the blocks written. Committed blocks are never written in place, which
+	 * BlockAccessor never does, so applying the archive to a copy of the device at the base generation recreates the device at the last
+	 * commit. The blocks are read through a snapshot and the device may be changed while the archive is written. Blocks are copied as
+	 * stored, an archive of an encrypted device can only be restored into a copy of the same storage.
+	 *
+	 * @param aBaseGeneration the generation of the previous backup or -1 for a full backup
+	 * @return the generation of the archive, used as base generation for the next incremental backup
+	 */
+	public long backup(long aBaseGeneration, OutputStream aOutput) throws IOException
+	{
+		try (ChangeSet changes = captureChanges(aBaseGeneration))
+		{
+			writeChanges(changes, aOutput);
+
+			return changes.getGeneration();
+		}
+	}
+
+
+	/**
+	 * Captures the blocks allocated by commits made after the base generation. The blocks are held by a snapshot of the last commit until
+	 * the change set is closed.
+	 */
+	ChangeSet captureChanges(long aBaseGeneration) throws IOException
+	{
+		BlockDeviceSnapshot snapshot = openSnapshot();
+
+		try
+		{
+			long generation = snapshot.getGeneration();
+
+			if (aBaseGeneration >= generation)
+			{
+				throw new IllegalArgumentException("The base generation must be older than the current generation: " + aBaseGeneration + " >= " + generation);
+			}
+
+			long[] changed = getSpaceMap().getChangedSince(aBaseGeneration).toArray();
+
+			SuperBlock superBlock = new SuperBlock(-1L);
+			superBlock.read(mBlockStorage, (int)(generation & 1));
+
+			return new ChangeSet(snapshot, aBaseGeneration, changed, superBlock.marshal(mBlockSize), mBlockStorage.size());
+		}
+		catch (IOException | RuntimeException e)
+		{
+			snapshot.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Writes a change set as a backup archive. May be called by any thread.
+	 */
+	void writeChanges(ChangeSet aChanges, OutputStream aOutput) throws IOException
+	{
+		long[] changed = aChanges.getRanges();
+
+		log.d("backup generation {} to {}", aChanges.getBaseGeneration(), aChanges.getGeneration());
+		log.inc();
+
+		DataOutputStream output = new DataOutputStream(aOutput);
+		output.writeInt(BACKUP_MAGIC);
+		output.writeInt(BACKUP_VERSION);
+		output.writeInt(mBlockSize);
+		output.writeLong(aChanges.getBaseGeneration());
+		output.writeLong(aChanges.getGeneration());
+		output.writeLong(aChanges.getStorageSize());
+		output.write(aChanges.getSuperBlock());
+
+		byte[] buffer = new byte[BACKUP_CHUNK_BLOCKS * mBlockSize];
+		long blockCount = 0;
+
+		for (int i = 0; i < changed.length; i += 2)
+		{
+			// the SuperBlocks are written by the restore
+			long start = Math.max(changed[i], mReservedBlocks);
+			long end = changed[i] + changed[i + 1];
+
+			for (long blockIndex = start; blockIndex < end; blockIndex += BACKUP_CHUNK_BLOCKS)
+			{
+				int count = (int)Math.min(BACKUP_CHUNK_BLOCKS, end - blockIndex);
+
+				mBlockStorage.readBlock(blockIndex, buffer, 0, count * mBlockSize, RAW_BLOCK_KEY);
+
+				output.writeLong(blockIndex);
+				output.writeInt(count);
+				output.write(buffer, 0, count * mBlockSize);
+
+				blockCount += count;
+			}
+		}
+
+		output.writeLong(-1L);
+		output.flush();
+
+		log.d("wrote {} blocks", blockCount);
+		log.dec();
+	}
+
+
+	/**
+	 * Applies an archive written by the backup method to a storage. A full archive replaces the content of the storage and an incremental
+	 * archive must be applied to a storage at the base generation of the archive. The storage is opened and closed by this method and
+	 * isn't usable if the restore fails.
+	 *
+	 * @return the generation of the restored device
+	 */
+	public static long restore(InputStream aInput, BlockStorage aBlockStorage) throws IOException
+	{
+		DataInputStream input = new DataInputStream(aInput);
+
+		if (input.readInt() != BACKUP_MAGIC)
+		{
+			throw new IOException("Not a backup archive");
+		}
+		if (input.readInt() != BACKUP_VERSION)
+		{
+			throw new UnsupportedVersionException("Unsupported backup archive version");
+		}
+
+		int blockSize = input.readInt();
+		long baseGeneration = input.readLong();
+		long generation = input.readLong();
+		long size = input.readLong();
+
+		byte[] superBlockData = new byte[blockSize];
+		input.readFully(superBlockData);
+
+		SuperBlock superBlock = new SuperBlock(-1L);
+		superBlock.unmarshal(superBlockData, (int)(generation & 1));
+
+		aBlockStorage.open(baseGeneration == -1 ? BlockDeviceOpenOption.REPLACE : BlockDeviceOpenOption.OPEN);
+
+		try
+		{
+			if (aBlockStorage.getBlockSize() != blockSize)
+			{
+				throw new IOException("Block size mismatch, archive: " + blockSize + ", storage: " + aBlockStorage.getBlockSize());
+			}
+
+			if (baseGeneration != -1)
+			{
+				long storageGeneration = -1;
+
+				for (int index = 0; index < 2; index++)
+				{
+					SuperBlock current = new SuperBlock(-1L);
+					current.read(aBlockStorage, index);
+					storageGeneration = Math.max(storageGeneration, current.getGeneration());
+				}
+
+				if (storageGeneration != baseGeneration)
+				{
+					throw new IOException("The archive is based on generation " + baseGeneration + " but the storage is at generation " + storageGeneration);
+				}
+			}
+
+			byte[] buffer = new byte[BACKUP_CHUNK_BLOCKS * blockSize];
+
+			for (long blockIndex; (blockIndex = input.readLong()) != -1;)
+			{
+				int count = input.readInt();
+
+				if (blockIndex < 2 || count < 1 || count > BACKUP_CHUNK_BLOCKS)
+				{
+					throw new IOException("Backup archive is corrupt, illegal block range: " + blockIndex + " +" + count);
+				}
+
+				input.readFully(buffer, 0, count * blockSize);
+
+				aBlockStorage.writeBlock(blockIndex, buffer, 0, count * blockSize, RAW_BLOCK_KEY);
+			}
+
+			aBlockStorage.resize(size);
+			aBlockStorage.commit(0, false);
+
+			// the older SuperBlock is written as a copy of the newer keeping the pair valid
+			superBlock.setGeneration(generation - 1);
+			superBlock.write(aBlockStorage, (int)((generation - 1) & 1));
+			superBlock.setGeneration(generation);
+			superBlock.write(aBlockStorage, (int)(generation & 1));
+
+			aBlockStorage.commit(1, false);
+		}
+		finally
+		{
+			aBlockStorage.close();
+		}
+
+		return generation;
+	}
+
+
+	/**
+	 * Commit any pending blocks.
+	 *
+	 * @param aMetadata force update of metadata
+	 */
+	public void commit(boolean aMetadata) throws IOException
+	{
+		awaitCommit();
+
+		if (mModified)
+		{
+			log.d("committing managed block device");
+			log.inc();
+
+			mCommitIncomplete = true;
+
+			releaseArenas(true);
+
+			writeMetadata();
+
+			getSpaceMap().write(mSuperBlock.getSpaceMapPointer(), this, mBlockStorage);
+
+			mBlockStorage.commit(0, false);
+
+			writeSuperBlock();
+
+			mBlockStorage.commit(1, aMetadata);
+
+			mSpaceMap.reset();
+			mWasCreated = false;
+			mModified = false;
+			mCommitIncomplete = false;
+
+			resetCommitCounters();
+			reclaimTail();
+			updateAllocationHint();
+
+			log.dec();
+
+			fireCommitListeners(getGeneration());
+		}
+	}
+
+
+	/**
+	 * Commit any pending blocks without waiting for the changes to be written to the underlying storage. The space map and metadata are
+	 * written by the calling thread, the storage is then forced and the SuperBlock written by a background thread while the caller
+	 * continues with the next transaction. Blocks freed by the commit are not reused until the commit has completed. Commits complete in
+	 * the order they were made and a failed commit causes all following commits to fail. The tail of the device is only reclaimed by the
+	 * synchronous commit method. When commit listeners are registered the commit first waits for the previous asynchronous commit to
+	 * complete and notifies the listeners, since they must see the device as it was at that commit.
+	 *
+	 * @param aMetadata force update of metadata
+	 * @return a future completing with the generation of the commit when it's durable
+	 */
+	public CompletableFuture<Long> commitAsync(boolean aMetadata) throws IOException
+	{
+		// waits without holding the lock, the commit thread takes it when releasing the previous generation
+		if (hasUnnotifiedCommit())
+		{
+			awaitCommit();
+		}
+
+		return commitAsyncImpl(aMetadata);
+	}
+
+
+	private synchronized boolean hasUnnotifiedCommit()
+	{
+		return mUnnotifiedCommit != null;
+	}
+
+
+	private synchronized CompletableFuture<Long> commitAsyncImpl(boolean aMetadata) throws IOException
+	{
+		checkCommitFailure();
+
+		if (!mModified)
+		{
+			long generation = getGeneration();
+			return mPendingCommit == null ? CompletableFuture.completedFuture(generation) : mPendingCommit.thenApply(e -> generation);
+		}
+
+		log.d("committing managed block device asynchronously");
+		log.inc();
+
+		mCommitIncomplete = true;
+
+		releaseArenas(true);
+
+		writeMetadata();
+
+		// blocks freed by this commit are still used by the last durable generation
+		long previousGeneration = getGeneration();
+		mDeferredFrees.acquire(previousGeneration);
+
+		SpaceMap spaceMap = getSpaceMap();
+		spaceMap.write(mSuperBlock.getSpaceMapPointer(), this, mBlockStorage);
+
+		long generation = mSuperBlock.incrementGeneration();
+		mSuperBlock.setSpaceSummary(spaceMap.getUsedSpace(), spaceMap.getFreeSpace());
+		SuperBlock superBlock = mSuperBlock.copy();
+
+		spaceMap.reset();
+		mWasCreated = false;
+		mModified = false;
+		mCommitIncomplete = false;
+
+		resetCommitCounters();
+		updateAllocationHint();
+
+		if (mCommitExecutor == null)
+		{
+			mCommitExecutor = Executors.newSingleThreadExecutor(r ->
+			{
+				Thread thread = new Thread(r, "ManagedBlockDevice commit");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		CompletableFuture<Long> future = new CompletableFuture<>();
+
+		mCommitExecutor.execute(() ->
+		{
+			try
+			{
+				checkCommitFailure();
+
+				log.d("write super block {}", generation & 1);
+
+				mBlockStorage.commit(0, false);
+
+				superBlock.write(mBlockStorage, (int)(generation & 1));
+
+				mBlockStorage.commit(1, aMetadata);
+
+				future.complete(generation);
+			}
+			catch (Throwable e)
+			{
+				mCommitFailure = e;
+				future.completeExceptionally(e);
+			}
+			finally
+			{
+				releaseSnapshot(previousGeneration);
+			}
+		});
+
+		mPendingCommit = future;
+
+		if (!mCommitListeners.isEmpty())
+		{
+			mUnnotifiedCommit = future;
+		}
+
+		log.dec();
+
+		return future;
+	}
+
+
+	/**
+	 * Commit any pending blocks asynchronously.
+	 *
+	 * @see #commitAsync(boolean)
+	 */
+	public CompletableFuture<Long> commitAsync() throws IOException
+	{
+		return commitAsync(false);
+	}
+
+
+	/**
+	 * Waits for asynchronous commits to complete and notifies the commit listeners of the last one. May be called by any thread.
+	 */
+	void awaitCommit() throws IOException
+	{
+		CompletableFuture<Long> pendingCommit;
+
+		synchronized (this)
+		{
+			// the future is kept, a writer calling concurrently must also wait for it
+			pendingCommit = mPendingCommit;
+		}
+
+		if (pendingCommit != null)
+		{
+			try
+			{
+				pendingCommit.join();
+			}
+			catch (CompletionException e)
+			{
+				// the failure is reported below
+			}
+		}
+
+		checkCommitFailure();
+
+		notifyCommitListeners();
+	}
+
+
+	/**
+	 * Called with the device unchanged since the asynchronous commit completed.
+	 */
+	private synchronized void notifyCommitListeners() throws IOException
+	{
+		CompletableFuture<Long> commit = mUnnotifiedCommit;
+
+		if (commit == null || !commit.isDone() || commit.isCompletedExceptionally())
+		{
+			return;
+		}
+
+		mUnnotifiedCommit = null;
+
+		fireCommitListeners(commit.join());
+	}
+
+
+	private void fireCommitListeners(long aGeneration) throws IOException
+	{
+		for (CommitListener listener : mCommitListeners)
+		{
+			listener.committed(this, aGeneration);
+		}
+	}
+
+
+	private void checkCommitFailure() throws IOException
+	{
+		if (mCommitFailure != null)
+		{
+			throw new IOException("A previous asynchronous commit failed", mCommitFailure);
+		}
+	}
+
+
+	/**
+	 * Commit any pending blocks.
+	 */
+	public void commit() throws IOException
+	{
+		commit(false);
+	}
+
+
+	/**
+	 * Commits the device if any threshold of the auto commit policy has been reached. Applications call this method where the
+	 * structures stored in the device are consistent, typically after each logical update, instead of deciding themselves when to
+	 * commit.
+	 *
+	 * @return true if a commit was made
+	 */
+	public boolean commitIfNeeded() throws IOException
+	{
+		AutoCommitPolicy policy = mAutoCommitPolicy;
+
+		if (policy == null || !mModified)
+		{
+			return false;
+		}
+
+		long elapsed = (System.nanoTime() - mLastCommitTime) / 1_000_000;
+
+		if (!policy.isCommitRequired(mDirtyBytes.get(), mPendingFrees.get(), elapsed))
+		{
+			return false;
+		}
+
+		log.d("auto commit after {} bytes written, {} blocks freed and {} ms", mDirtyBytes.get(), mPendingFrees.get(), elapsed);
+
+		if (policy.isAsync())
+		{
+			commitAsync();
+		}
+		else
+		{
+			commit();
+		}
+
+		return true;
+	}
+
+
+	private void resetCommitCounters()
+	{
+		mDirtyBytes.set(0);
+		mPendingFrees.set(0);
+		mLastCommitTime = System.nanoTime();
+	}
+
+
+	/**
+	 * Rollback any pending blocks. The space map and metadata are restored from the state kept in memory since the last commit, the
+	 * block device is only read again if the last commit failed.
+	 */
+	public void rollback() throws IOException
+	{
+		awaitCommit();
+
+		if (mModified)
+		{
+			log.i("rollbacking block device");
+			log.inc();
+
+			releaseArenas(false);
+
+			if (mWasCreated)
+			{
+				getSpaceMap().reset();
+				getSpaceMap().rollback();
+
+				createBlockDevice();
+			}
+			else if (mCommitIncomplete)
+			{
+				// the SuperBlock and space map may have been partially updated by the failed commit
+				loadBlockDevice();
+
+				mCommitIncomplete = false;
+			}
+			else
+			{
+				if (mSpaceMap != null)
+				{
+					mSpaceMap.rollback();
+				}
+
+				mMetadata = null;
+				mMetadataChanged = false;
+			}
+
+			mModified = false;
+
+			resetCommitCounters();
+
+			log.dec();
+		}
+	}
+
+
+	private void readSuperBlock() throws IOException
+	{
+		log.d("read super block");
+		log.inc();
+
+		SuperBlock superBlockOne = new SuperBlock(-1L);
+		SuperBlock superBlockTwo = new SuperBlock(-1L);
+
+		superBlockOne.read(mBlockStorage, 0);
+		superBlockTwo.read(mBlockStorage, 1);
+
+		if (superBlockOne.getGeneration() == superBlockTwo.getGeneration() + 1)
+		{
+			mSuperBlock = superBlockOne;
+
+			log.t("using super block 0");
+		}
+		else if (superBlockTwo.getGeneration() == superBlockOne.getGeneration() + 1)
+		{
+			mSuperBlock = superBlockTwo;
+
+			log.t("using super block 1");
+		}
+		else
+		{
+			throw new IOException("BlockDevice appears to be corrupt. SuperBlock versions are illegal: " + superBlockOne.getGeneration() + " / " + superBlockTwo.getGeneration());
+		}
+
+		// metadata is loaded when first accessed
+		mMetadata = null;
+		mMetadataChanged = false;
+		mMetadataBytes = null;
+
+		log.dec();
+	}
+
+
+	/**
+	 * Adopts commits made by another process writing to the same storage. The device must be opened read-only. Both SuperBlocks are read
+	 * again and if a newer generation is found the metadata and space map are dropped and loaded again when next accessed. Blocks read
+	 * before a refresh may be reused by the writer, data read using pointers from an older generation is not guaranteed to be valid.
+	 *
+	 * @return true if a newer generation was found
+	 */
+	public boolean refresh() throws IOException
+	{
+		if (!isReadOnly())
+		{
+			throw new IllegalStateException("Only a read-only block device can be refreshed.");
+		}
+
+		SuperBlock newest = null;
+
+		for (int index = 0; index < 2; index++)
+		{
+			SuperBlock superBlock = new SuperBlock(-1L);
+
+			try
+			{
+				superBlock.read(mBlockStorage, index);
+			}
+			catch (IOException | RaccoonIOException e)
+			{
+				// the writer may be updating this SuperBlock, the other one is then intact
+				log.d("ignoring unreadable super block {}", index);
+				continue;
+			}
+
+			if (newest == null || superBlock.getGeneration() > newest.getGeneration())
+			{
+				newest = superBlock;
+			}
+		}
+
+		if (newest == null)
+		{
+			throw new IOException("BlockDevice appears to be corrupt. Failed to read both SuperBlocks.");
+		}
+
+		if (newest.getGeneration() <= mSuperBlock.getGeneration())
+		{
+			return false;
+		}
+
+		log.d("refreshed block device from generation {} to {}", mSuperBlock.getGeneration(), newest.getGeneration());
+
+		mSuperBlock = newest;
+		mMetadata = null;
+		mMetadataChanged = false;
+		mMetadataBytes = null;
+		mSpaceMap = null;
+
+		return true;
+	}
+
+
+	private void writeSuperBlock() throws IOException
+	{
+		int index = (int)(mSuperBlock.incrementGeneration() & 1);
+
+		log.d("write super block {}", index);
+		log.inc();
+
+		if (mSpaceMap != null)
+		{
+			mSuperBlock.setSpaceSummary(mSpaceMap.getUsedSpace(), mSpaceMap.getFreeSpace());
+		}
+
+		mSuperBlock.write(mBlockStorage, index);
+
+		log.dec();
+	}
+
+
+	/**
+	 * Stores the metadata in the SuperBlock or in blocks if it has been accessed and changed since last commit.
+	 */
+	private void writeMetadata()
+	{
+		if (!mMetadataChanged)
+		{
+			return;
+		}
+
+		byte[] metadata = SuperBlock.marshalMetadata(mMetadata);
+
+		mMetadataChanged = false;
+
+		if (Arrays.equals(metadata, mMetadataBytes))
+		{
+			return;
+		}
+
+		log.d("write metadata ({} bytes)", metadata.length);
+
+		BlockPointer oldPointer = mSuperBlock.getMetadataPointer();
+
+		if (oldPointer.getAllocatedSize() > 0)
+		{
+			freeBlockInternal(oldPointer.getBlockIndex0(), oldPointer.getAllocatedSize() / mBlockSize);
+		}
+
+		if (metadata.length <= SuperBlock.getMetadataLimit(mBlockSize))
+		{
+			mSuperBlock.setMetadata(metadata, new BlockPointer());
+		}
+		else
+		{
+			int allocSize = roundUp(metadata.length);
+			long blockIndex = allocBlockInternal(allocSize / mBlockSize);
+			int[] blockKey = PRNG.ints(4).toArray();
+
+			BlockPointer blockPointer = new BlockPointer();
+			blockPointer.setCompressionAlgorithm(CompressorAlgorithm.NONE.ordinal());
+			blockPointer.setBlockType(BlockType.METADATA);
+			blockPointer.setAllocatedSize(allocSize);
+			blockPointer.setBlockIndex0(blockIndex);
+			blockPointer.setLogicalSize(metadata.length);
+			blockPointer.setPhysicalSize(metadata.length);
+			blockPointer.setChecksumAlgorithm((byte)0); // not used
+			blockPointer.setChecksum(SHA3.hash128_512(metadata, 0, metadata.length, blockPointer.getGeneration()));
+			blockPointer.setBlockKey(blockKey);
+
+			mBlockStorage.writeBlock(blockIndex, Arrays.copyOf(metadata, allocSize), 0, allocSize, blockKey);
+
+			mSuperBlock.setMetadata(new byte[0], blockPointer);
+		}
+
+		mMetadataBytes = metadata;
+	}
+
+
+	private byte[] readMetadata(SuperBlock aSuperBlock)
+	{
+		BlockPointer blockPointer = aSuperBlock.getMetadataPointer();
+
+		if (blockPointer.getAllocatedSize() == 0)
+		{
+			return aSuperBlock.getMetadata();
+		}
+
+		log.d("read metadata {} +{}", blockPointer.getBlockIndex0(), blockPointer.getAllocatedSize() / mBlockSize);
+
+		byte[] buffer = new byte[blockPointer.getAllocatedSize()];
+
+		mBlockStorage.readBlock(blockPointer.getBlockIndex0(), buffer, 0, buffer.length, blockPointer.getBlockKey());
+
+		if (!Arrays.equals(blockPointer.getChecksum(), SHA3.hash128_512(buffer, 0, blockPointer.getLogicalSize(), blockPointer.getGeneration())))
+		{
+			throw new RaccoonIOException("Checksum error in metadata at block index " + blockPointer.getBlockIndex0());
+		}
+
+		return Arrays.copyOf(buffer, blockPointer.getLogicalSize());
+	}
+
+
+	/**
+	 * @return the maximum available space this block device can theoretically allocate. This value may be greater than what the underlying
+	 * block device can support.
 	 */
 	public long getMaximumSpace()
 	{
-		return mSpaceMap.getRangeMap().getFreeSpace();
+		SpaceMap spaceMap = mSpaceMap;
+		return spaceMap == null ? mSuperBlock.getMaximumSpace() : spaceMap.getFreeSpace();
 	}
 
 
@@ -457,7 +1907,7 @@ public class ManagedBlockDevice implements AutoCloseable
 	 */
 	public long getFreeSpace()
 	{
-		return mBlockStorage.size() - mSpaceMap.getRangeMap().getUsedSpace();
+		return mBlockStorage.size() - getUsedSpace();
 	}
 
 
@@ -466,7 +1916,20 @@ public class ManagedBlockDevice implements AutoCloseable
 	 */
 	public long getUsedSpace()
 	{
-		return mSpaceMap.getRangeMap().getUsedSpace();
+		SpaceMap spaceMap = mSpaceMap;
+		return spaceMap == null ? mSuperBlock.getUsedSpace() : spaceMap.getUsedSpace();
+	}
+
+
+	/**
+	 * Returns a summary of the free space in the device. The summary is maintained incrementally by the RANGE_MAP allocator and is cheap
+	 * to poll, the BITMAP allocator scans the bitmap. Blocks held by allocation classes are reported as used.
+	 *
+	 * @return free extent histogram, largest free extent, used extent count, fragmentation and tail slack.
+	 */
+	public SpaceStatistics getSpaceStatistics()
+	{
+		return getSpaceMap().getRangeMap().getStatistics(mBlockStorage.size());
 	}
 
 
@@ -488,7 +1951,12 @@ public class ManagedBlockDevice implements AutoCloseable
 	{
 		mBlockStorage.resize(0);
 
-		mSpaceMap.reset();
+		releaseArenas(false);
+
+		if (mSpaceMap != null)
+		{
+			mSpaceMap.reset();
+		}
 
 		createBlockDevice();
 	}
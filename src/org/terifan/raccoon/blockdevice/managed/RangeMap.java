@@ -1,23 +1,56 @@
 package org.terifan.raccoon.blockdevice.managed;
 
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Arrays;
 import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
 
 
-public class RangeMap implements Cloneable
+/**
+ * Set of free ranges. Ranges are kept in two primitive trees, one ordered by offset and one ordered by size. Cloning a RangeMap is
+ * cheap since the trees share their leaves with the clone until either is modified.
+ */
+public class RangeMap implements SpaceAllocator
 {
-	private TreeMap<Long, Long> mMap;
+	private final static int MAX_HINT_SCAN = 64;
+
+	private ExtentTree mRanges; // start, end
+	private ExtentTree mSizes; // size, start
+	private long[] mHistogram; // number of ranges by log2 of their size, the range extending to the end of the address space excluded
+	private AllocationPolicy mAllocationPolicy;
+	private long mNextFitOffset;
 	private long mSpace;
 
 
 	public RangeMap()
 	{
-		mMap = new TreeMap<>();
+		mRanges = new ExtentTree();
+		mSizes = new ExtentTree();
+		mHistogram = new long[64];
+		mAllocationPolicy = AllocationPolicy.FIRST_FIT;
 		mSpace = 0;
 	}
 
 
+	@Override
+	public synchronized AllocationPolicy getAllocationPolicy()
+	{
+		return mAllocationPolicy;
+	}
+
+
+	@Override
+	public synchronized RangeMap setAllocationPolicy(AllocationPolicy aAllocationPolicy)
+	{
+		if (aAllocationPolicy == null)
+		{
+			throw new IllegalArgumentException("aAllocationPolicy is null");
+		}
+
+		mAllocationPolicy = aAllocationPolicy;
+		return this;
+	}
+
+
+	@Override
 	public synchronized void add(long aOffset, long aSize)
 	{
 		if (aOffset < 0 || aSize <= 0)
@@ -30,45 +63,47 @@ public class RangeMap implements Cloneable
 
 		assert end > start : end + " > " + start;
 
-		Long before = mMap.floorKey(start);
-		Long after = mMap.ceilingKey(start);
+		long before = mRanges.floor(start, Long.MAX_VALUE);
+		long after = mRanges.ceiling(start, Long.MIN_VALUE);
 
-		Long v1 = mMap.lowerKey(end);
-		Long v2 = mMap.lowerKey(start);
-
-		if (v1 != null && v1 >= start)
+		if (after != -1 && mRanges.getFirst(after) < end)
 		{
-			throw new IllegalArgumentException("Offset overlap an existing region (1): offset: " + aOffset + ", size: " + aSize + ", existing start: " + v1 + ", existing end: " + mMap.get(v1));
+			throw new IllegalArgumentException("Offset overlap an existing region (1): offset: " + aOffset + ", size: " + aSize + ", existing start: " + mRanges.getFirst(after) + ", existing end: " + mRanges.getSecond(after));
 		}
-		if (v2 != null && v2 < start && mMap.get(v2) > start)
+		if (before != -1 && mRanges.getFirst(before) < start && mRanges.getSecond(before) > start)
 		{
-			throw new IllegalArgumentException("Offset overlap an existing region (2): offset: " + aOffset + ", size: " + aSize + ", existing start: " + v1 + ", existing end: " + mMap.get(v1));
+			throw new IllegalArgumentException("Offset overlap an existing region (2): offset: " + aOffset + ", size: " + aSize + ", existing start: " + mRanges.getFirst(before) + ", existing end: " + mRanges.getSecond(before));
 		}
 
-		boolean mergeBefore = (before != null && mMap.get(before) == start);
-		boolean mergeAfter = (after != null && after == end);
+		boolean mergeBefore = before != -1 && mRanges.getSecond(before) == start;
+		boolean mergeAfter = after != -1 && mRanges.getFirst(after) == end;
 
 		if (mergeBefore && mergeAfter)
 		{
-			mMap.put(before, mMap.remove(after));
+			long newStart = mRanges.getFirst(before);
+			long newEnd = mRanges.getSecond(after);
+			delete(end, newEnd);
+			update(newStart, start, newStart, newEnd);
 		}
 		else if (mergeBefore)
 		{
-			mMap.put(before, end);
+			long newStart = mRanges.getFirst(before);
+			update(newStart, start, newStart, end);
 		}
 		else if (mergeAfter)
 		{
-			mMap.put(start, mMap.remove(after));
+			update(end, mRanges.getSecond(after), start, mRanges.getSecond(after));
 		}
 		else
 		{
-			mMap.put(start, end);
+			insert(start, end);
 		}
 
 		mSpace += aSize;
 	}
 
 
+	@Override
 	public synchronized void remove(long aOffset, long aSize)
 	{
 		if (aSize <= 0)
@@ -83,14 +118,15 @@ public class RangeMap implements Cloneable
 		long start = aOffset;
 		long end = aOffset + aSize;
 
-		Long blockStart = mMap.floorKey(start);
+		long pos = mRanges.floor(start, Long.MAX_VALUE);
 
-		if (blockStart == null)
+		if (pos == -1)
 		{
 			throw new IllegalArgumentException("No free block at offset: offset: " + start);
 		}
 
-		long blockEnd = mMap.get(blockStart);
+		long blockStart = mRanges.getFirst(pos);
+		long blockEnd = mRanges.getSecond(pos);
 
 		if (end > blockEnd)
 		{
@@ -102,96 +138,438 @@ public class RangeMap implements Cloneable
 
 		if (leftOver && rightOver)
 		{
-			mMap.put(blockStart, start);
-			mMap.put(end, blockEnd);
+			update(blockStart, blockEnd, blockStart, start);
+			insert(end, blockEnd);
 		}
 		else if (leftOver)
 		{
-			mMap.put(blockStart, start);
+			update(blockStart, blockEnd, blockStart, start);
 		}
 		else if (rightOver)
 		{
-			mMap.remove(blockStart);
-			mMap.put(end, blockEnd);
+			update(blockStart, blockEnd, end, blockEnd);
 		}
 		else
 		{
-			mMap.remove(blockStart);
+			delete(blockStart, blockEnd);
 		}
 
 		mSpace -= aSize;
 	}
 
 
+	/**
+	 * The target is updated after the lock of this map is released, two maps transferring blocks to each other would otherwise
+	 * deadlock.
+	 */
+	@Override
+	public long transfer(long aOffset, long aSize, SpaceAllocator aTarget)
+	{
+		long[] ranges = extract(aOffset, aSize);
+		long moved = 0;
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			aTarget.add(ranges[i], ranges[i + 1]);
+			moved += ranges[i + 1];
+		}
+
+		return moved;
+	}
+
+
+	/**
+	 * Moves the ranges of this map found inside the range to the target and adds the parts of the range not found in this map to the
+	 * remainder.
+	 *
+	 * @return the number of blocks moved to the target
+	 */
+	long transfer(long aOffset, long aSize, SpaceAllocator aTarget, SpaceAllocator aRemainder)
+	{
+		long[] ranges = extract(aOffset, aSize);
+		long moved = 0;
+		long position = aOffset;
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			if (ranges[i] > position)
+			{
+				aRemainder.add(position, ranges[i] - position);
+			}
+
+			aTarget.add(ranges[i], ranges[i + 1]);
+			moved += ranges[i + 1];
+			position = ranges[i] + ranges[i + 1];
+		}
+
+		if (position < aOffset + aSize)
+		{
+			aRemainder.add(position, aOffset + aSize - position);
+		}
+
+		return moved;
+	}
+
+
+	/**
+	 * Removes the free blocks found inside the range.
+	 *
+	 * @return the blocks removed as pairs of offset and size
+	 */
+	private synchronized long[] extract(long aOffset, long aSize)
+	{
+		long end = aOffset + aSize;
+		long[] ranges = new long[8];
+		int count = 0;
+
+		long pos = mRanges.floor(aOffset, Long.MAX_VALUE);
+
+		if (pos == -1 || mRanges.getSecond(pos) <= aOffset)
+		{
+			pos = mRanges.higher(aOffset, Long.MAX_VALUE);
+		}
+
+		while (pos != -1 && mRanges.getFirst(pos) < end)
+		{
+			long start = Math.max(mRanges.getFirst(pos), aOffset);
+			long length = Math.min(mRanges.getSecond(pos), end) - start;
+
+			remove(start, length);
+
+			if (count == ranges.length)
+			{
+				ranges = Arrays.copyOf(ranges, 2 * count);
+			}
+			ranges[count++] = start;
+			ranges[count++] = length;
+
+			pos = mRanges.higher(start, Long.MAX_VALUE);
+		}
+
+		return Arrays.copyOf(ranges, count);
+	}
+
+
+	/**
+	 * Adds every range of this map to the allocator provided.
+	 */
+	void addTo(SpaceAllocator aAllocator)
+	{
+		long[] ranges = toArray();
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			aAllocator.add(ranges[i], ranges[i + 1]);
+		}
+	}
+
+
+	/**
+	 * Moves the free blocks of the source located inside the ranges of this map to the target.
+	 */
+	void collect(SpaceAllocator aSource, SpaceAllocator aTarget)
+	{
+		long[] ranges = toArray();
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			aSource.transfer(ranges[i], ranges[i + 1], aTarget);
+		}
+	}
+
+
+	/**
+	 * Removes every range of this map from the allocator provided.
+	 */
+	void removeFrom(SpaceAllocator aAllocator)
+	{
+		long[] ranges = toArray();
+
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			aAllocator.remove(ranges[i], ranges[i + 1]);
+		}
+	}
+
+
+	/**
+	 * @return the ranges of this map as pairs of offset and size.
+	 */
+	synchronized long[] toArray()
+	{
+		long[] ranges = new long[2 * mRanges.size()];
+		int i = 0;
+
+		for (long pos = mRanges.first(); pos != -1; pos = mRanges.next(pos))
+		{
+			ranges[i++] = mRanges.getFirst(pos);
+			ranges[i++] = mRanges.getSecond(pos) - mRanges.getFirst(pos);
+		}
+
+		return ranges;
+	}
+
+
+	@Override
 	public synchronized long next(long aSize)
 	{
-		Entry<Long, Long> entry = mMap.firstEntry();
+		if (mSizes.isEmpty() || mSizes.getFirst(mSizes.last()) < aSize)
+		{
+			return -1;
+		}
+
+		long offset;
+
+		switch (mAllocationPolicy)
+		{
+			case BEST_FIT:
+				offset = mSizes.getSecond(mSizes.ceiling(aSize, 0));
+				break;
+			case NEXT_FIT:
+				offset = findFirstFit(mNextFitOffset, aSize, false);
+				if (offset == -1)
+				{
+					offset = findFirstFit(0, aSize, true);
+				}
+				mNextFitOffset = offset + aSize;
+				break;
+			default:
+				offset = findFirstFit(0, aSize, true);
+				break;
+		}
+
+		remove(offset, aSize);
+
+		return offset;
+	}
+
+
+	@Override
+	public synchronized long next(long aSize, long aHint)
+	{
+		if (aHint < 0)
+		{
+			throw new IllegalArgumentException("Hint is negative: hint: " + aHint);
+		}
 
-		for (;;)
+		long pos = mRanges.floor(aHint, Long.MAX_VALUE);
+
+		if (pos != -1 && mRanges.getSecond(pos) - aHint >= aSize)
 		{
-			if (entry == null)
+			remove(aHint, aSize);
+			return aHint;
+		}
+
+		// scan a limited number of ranges following the hint, the range extending to the end of the address space is left to the
+		// allocation policy
+		long fit = mSizes.ceiling(aSize, 0);
+
+		if (fit != -1 && mSizes.getFirst(fit) + mSizes.getSecond(fit) != Long.MAX_VALUE)
+		{
+			pos = mRanges.higher(aHint, Long.MAX_VALUE);
+
+			for (int i = 0; pos != -1 && i < MAX_HINT_SCAN && mRanges.getSecond(pos) != Long.MAX_VALUE; i++, pos = mRanges.next(pos))
 			{
-				return -1;
+				if (mRanges.getSecond(pos) - mRanges.getFirst(pos) >= aSize)
+				{
+					long offset = mRanges.getFirst(pos);
+					remove(offset, aSize);
+					return offset;
+				}
 			}
+		}
+
+		return next(aSize);
+	}
+
+
+	@Override
+	public synchronized long next(long aSize, long aStart, long aEnd)
+	{
+		long offset = -1;
 
-			long offset = entry.getKey();
+		if (mAllocationPolicy == AllocationPolicy.BEST_FIT)
+		{
+			// visit the ranges in size order until one overlaps the range searched enough
+			for (long pos = mSizes.ceiling(aSize, 0); pos != -1 && offset == -1; pos = mSizes.next(pos))
+			{
+				long start = Math.max(mSizes.getSecond(pos), aStart);
 
-			if (entry.getValue() - offset >= aSize)
+				if (start + aSize <= Math.min(mSizes.getSecond(pos) + mSizes.getFirst(pos), aEnd))
+				{
+					offset = start;
+				}
+			}
+		}
+		else
+		{
+			if (mAllocationPolicy == AllocationPolicy.NEXT_FIT && mNextFitOffset > aStart)
 			{
-				remove(offset, aSize);
+				offset = findFirstFit(mNextFitOffset, aEnd, aSize);
+			}
+			if (offset == -1)
+			{
+				offset = findFirstFit(aStart, aEnd, aSize);
+			}
+			if (offset != -1 && mAllocationPolicy == AllocationPolicy.NEXT_FIT)
+			{
+				mNextFitOffset = offset + aSize;
+			}
+		}
+
+		if (offset != -1)
+		{
+			remove(offset, aSize);
+		}
+
+		return offset;
+	}
+
+
+	/**
+	 * @return the first offset at or after the start where a range of the size ends at or before the end, or -1
+	 */
+	private long findFirstFit(long aStart, long aEnd, long aSize)
+	{
+		long pos = mRanges.floor(aStart, Long.MAX_VALUE);
 
-				return offset;
+		if (pos == -1 || mRanges.getSecond(pos) <= aStart)
+		{
+			pos = mRanges.higher(aStart, Long.MAX_VALUE);
+		}
+
+		for (; pos != -1 && Math.max(mRanges.getFirst(pos), aStart) + aSize <= aEnd; pos = mRanges.next(pos))
+		{
+			long start = Math.max(mRanges.getFirst(pos), aStart);
+
+			if (start + aSize <= mRanges.getSecond(pos))
+			{
+				return start;
 			}
+		}
+
+		return -1;
+	}
+
 
-			entry = mMap.higherEntry(offset);
+	/**
+	 * @param aUseTail false to skip the range extending to the end of the address space
+	 */
+	private long findFirstFit(long aOffset, long aSize, boolean aUseTail)
+	{
+		long pos = mRanges.floor(aOffset, Long.MAX_VALUE);
+
+		if (pos == -1 || mRanges.getSecond(pos) <= aOffset)
+		{
+			pos = mRanges.higher(aOffset, Long.MAX_VALUE);
 		}
+
+		for (; pos != -1; pos = mRanges.next(pos))
+		{
+			if (mRanges.getSecond(pos) - mRanges.getFirst(pos) >= aSize && (aUseTail || mRanges.getSecond(pos) != Long.MAX_VALUE))
+			{
+				return mRanges.getFirst(pos);
+			}
+		}
+
+		return -1;
 	}
 
 
+	@Override
 	public synchronized long getFreeSpace()
 	{
 		return mSpace;
 	}
 
 
+	@Override
 	public synchronized long getUsedSpace()
 	{
-		return mMap.lastEntry().getValue() - mSpace;
+		return mRanges.isEmpty() ? 0 : mRanges.getSecond(mRanges.last()) - mSpace;
+	}
+
+
+	@Override
+	public synchronized boolean isUsed(long aOffset, long aSize)
+	{
+		return isUsed(mRanges, aOffset, aSize);
+	}
+
+
+	@Override
+	public synchronized AllocationState snapshot()
+	{
+		// the clone shares leaves with this map, leaves are copied by this map before they are modified
+		ExtentTree ranges = mRanges.clone();
+
+		return (aOffset, aSize) -> isUsed(ranges, aOffset, aSize);
 	}
 
 
-	public synchronized boolean isFree(long aOffset, long aSize)
+	private static boolean isUsed(ExtentTree aRanges, long aOffset, long aSize)
 	{
-		Long blockStart = mMap.floorKey(aOffset);
+		long pos = aRanges.floor(aOffset, Long.MAX_VALUE);
 
-		if (blockStart != null)
+		if (pos != -1 && aRanges.getSecond(pos) > aOffset)
 		{
-			long blockEnd = mMap.get(blockStart) - 1;
+			return false;
+		}
 
-			if (blockEnd >= aOffset + aSize || blockEnd >= aOffset)
-			{
-				return false;
-			}
+		pos = aRanges.higher(aOffset, Long.MAX_VALUE);
+
+		return pos == -1 || aRanges.getFirst(pos) >= aOffset + aSize;
+	}
+
+
+	@Override
+	public synchronized SpaceStatistics getStatistics(long aDeviceSize)
+	{
+		long last = mRanges.last();
+		long first = mRanges.first();
+
+		if (last == -1)
+		{
+			return new SpaceStatistics(new long[64], 0, 0, 0, 1, 0);
 		}
 
-		return true;
+		boolean tail = mRanges.getSecond(last) == Long.MAX_VALUE;
+		long tailStart = tail ? mRanges.getFirst(last) : 0;
+		long freeExtents = mRanges.size() - (tail ? 1 : 0);
+		long freeSpace = mSpace - (tail ? Long.MAX_VALUE - tailStart : 0);
+
+		long largest = mSizes.last();
+		if (tail && mSizes.getSecond(largest) == tailStart)
+		{
+			largest = mSizes.previous(largest);
+		}
+
+		// used runs precede every free range except the first if it starts at zero, and follow the last range unless it's the tail
+		long usedExtents = mRanges.size() - (mRanges.getFirst(first) == 0 ? 1 : 0) + (tail ? 0 : 1);
+
+		return new SpaceStatistics(mHistogram.clone(), freeExtents, largest == -1 ? 0 : mSizes.getFirst(largest), freeSpace, usedExtents, tail ? Math.max(0, aDeviceSize - tailStart) : 0);
 	}
 
 
+	@Override
 	public synchronized void clear()
 	{
-		mMap.clear();
+		mRanges.clear();
+		mSizes.clear();
+		mHistogram = new long[64];
 		mSpace = 0;
 	}
 
 
 	@Override
-	public RangeMap clone()
+	public synchronized RangeMap clone()
 	{
 		try
 		{
 			RangeMap map = (RangeMap)super.clone();
-			map.mMap = new TreeMap<>(mMap);
+			map.mRanges = mRanges.clone();
+			map.mSizes = mSizes.clone();
+			map.mHistogram = mHistogram.clone();
 			return map;
 		}
 		catch (CloneNotSupportedException e)
@@ -201,17 +579,18 @@ public class RangeMap implements Cloneable
 	}
 
 
-	public void marshal(ByteArrayBuffer aDataOutput)
+	@Override
+	public synchronized void marshal(ByteArrayBuffer aDataOutput)
 	{
 		long prev = 0;
 
-		aDataOutput.writeVar64U(mMap.size());
+		aDataOutput.writeVar64U(mRanges.size());
 
-		for (Entry<Long, Long> entry : mMap.entrySet())
+		for (long pos = mRanges.first(); pos != -1; pos = mRanges.next(pos))
 		{
-			long index = entry.getKey();
+			long index = mRanges.getFirst(pos);
 
-			aDataOutput.writeVar64U(entry.getValue() - index);
+			aDataOutput.writeVar64U(mRanges.getSecond(pos) - index);
 			aDataOutput.writeVar64U(index - prev);
 
 			prev = index;
@@ -219,6 +598,7 @@ public class RangeMap implements Cloneable
 	}
 
 
+	@Override
 	public void unmarshal(ByteArrayBuffer aDataInput)
 	{
 		long size = aDataInput.readVar64U();
@@ -235,24 +615,63 @@ public class RangeMap implements Cloneable
 
 
 	@Override
-	public String toString()
+	public synchronized String toString()
 	{
 		StringBuilder sb = new StringBuilder("{");
-		for (Entry<Long, Long> entry : mMap.entrySet())
+		for (long pos = mRanges.first(); pos != -1; pos = mRanges.next(pos))
 		{
 			if (sb.length() > 1)
 			{
 				sb.append(", ");
 			}
-			sb.append(entry.getKey() + "-" + (entry.getValue() - 1));
+			sb.append(mRanges.getFirst(pos) + "-" + (mRanges.getSecond(pos) - 1));
 		}
 		sb.append("}");
 		return sb.toString();
 	}
 
 
-	long getLastBlockIndex()
+	@Override
+	public synchronized long getLastBlockIndex()
+	{
+		return mRanges.getFirst(mRanges.last());
+	}
+
+
+	private void insert(long aStart, long aEnd)
+	{
+		mRanges.add(aStart, aEnd);
+		mSizes.add(aEnd - aStart, aStart);
+		count(aStart, aEnd, 1);
+	}
+
+
+	private void delete(long aStart, long aEnd)
+	{
+		mRanges.remove(aStart, aEnd);
+		mSizes.remove(aEnd - aStart, aStart);
+		count(aStart, aEnd, -1);
+	}
+
+
+	private void count(long aStart, long aEnd, int aDelta)
+	{
+		if (aEnd != Long.MAX_VALUE)
+		{
+			mHistogram[63 - Long.numberOfLeadingZeros(aEnd - aStart)] += aDelta;
+		}
+	}
+
+
+	/**
+	 * Replaces a range with another range occupying the same slot in the offset order.
+	 */
+	private void update(long aOldStart, long aOldEnd, long aNewStart, long aNewEnd)
 	{
-		return mMap.lastKey();
+		mRanges.replace(mRanges.floor(aOldStart, aOldEnd), aNewStart, aNewEnd);
+		mSizes.remove(aOldEnd - aOldStart, aOldStart);
+		mSizes.add(aNewEnd - aNewStart, aNewStart);
+		count(aOldStart, aOldEnd, -1);
+		count(aNewStart, aNewEnd, 1);
 	}
 }
@@ -0,0 +1,108 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
+
+
+/**
+ * Bookkeeping of the free blocks in a device. The free space is unbounded, a new allocator is made usable by adding the range
+ * (0, Long.MAX_VALUE).
+ */
+public interface SpaceAllocator extends Cloneable
+{
+	AllocationPolicy getAllocationPolicy();
+
+
+	SpaceAllocator setAllocationPolicy(AllocationPolicy aAllocationPolicy);
+
+
+	/**
+	 * Marks a range of used blocks as free.
+	 */
+	void add(long aOffset, long aSize);
+
+
+	/**
+	 * Marks a range of free blocks as used.
+	 */
+	void remove(long aOffset, long aSize);
+
+
+	/**
+	 * Finds a range of free blocks using the allocation policy and marks it as used.
+	 *
+	 * @return the offset of the range or -1 if no free range is large enough
+	 */
+	long next(long aSize);
+
+
+	/**
+	 * Finds the free range closest to and at or after the hint and marks it as used. Falls back to the allocation policy when no range
+	 * near the hint is large enough. The free range extending to the end of the address space is only used for the hint when the hint
+	 * is inside it, otherwise the policy is tried first.
+	 *
+	 * @param aHint a preferred block index, typically the block following a block the new range will be read together with
+	 * @return the offset of the range or -1 if no free range is large enough
+	 */
+	long next(long aSize, long aHint);
+
+
+	/**
+	 * Finds a range of free blocks located inside the range provided using the allocation policy and marks it as used.
+	 *
+	 * @param aStart first block index of the range searched
+	 * @param aEnd block index following the range searched
+	 * @return the offset of the range or -1 if no free range inside is large enough
+	 */
+	long next(long aSize, long aStart, long aEnd);
+
+
+	/**
+	 * Moves the free blocks found inside the range to the target allocator.
+	 *
+	 * @return the number of blocks moved
+	 */
+	long transfer(long aOffset, long aSize, SpaceAllocator aTarget);
+
+
+	long getFreeSpace();
+
+
+	long getUsedSpace();
+
+
+	/**
+	 * @return true if none of the blocks in the range are free.
+	 */
+	boolean isUsed(long aOffset, long aSize);
+
+
+	/**
+	 * @return an immutable view of the current state. The view is not affected by later changes and can be queried by any number of
+	 * threads without locking.
+	 */
+	AllocationState snapshot();
+
+
+	/**
+	 * @param aDeviceSize the number of blocks in the underlying storage, used to compute the tail slack
+	 */
+	SpaceStatistics getStatistics(long aDeviceSize);
+
+
+	/**
+	 * @return the first block of the free space extending to the end of the device.
+	 */
+	long getLastBlockIndex();
+
+
+	void clear();
+
+
+	SpaceAllocator clone();
+
+
+	void marshal(ByteArrayBuffer aDataOutput);
+
+
+	void unmarshal(ByteArrayBuffer aDataInput);
+}
@@ -0,0 +1,30 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+
+/**
+ * Implementation used to keep track of the free space in a device. The type is stored with the space map.
+ */
+public enum SpaceAllocatorType
+{
+	/**
+	 * Free space is stored as a set of ranges. Compact when the free space consists of few large ranges.
+	 */
+	RANGE_MAP,
+	/**
+	 * Free space is stored as a bitmap with one bit per block and summary levels. Size and allocation cost are predictable regardless
+	 * of how fragmented the free space is.
+	 */
+	BITMAP;
+
+
+	SpaceAllocator newInstance()
+	{
+		switch (this)
+		{
+			case BITMAP:
+				return new BitmapAllocator();
+			default:
+				return new RangeMap();
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package org.terifan.raccoon.blockdevice.managed;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import org.terifan.raccoon.blockdevice.RaccoonIOException;
 import org.terifan.raccoon.blockdevice.BlockPointer;
 import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
@@ -18,146 +18,675 @@ class SpaceMap
 	private final Logger log = Logger.getLogger();
 
 	private final static SecureRandom PRNG = new SecureRandom();
-	private HashSet<Long> mUncommittedAllocations;
-	private RangeMap mPendingRangeMap;
-	private RangeMap mRangeMap;
 
-
-	public SpaceMap()
+	/**
+	 * Number of log blocks written before the entire space map is written again.
+	 */
+	private final static int MAX_LOG_LENGTH = 32;
+	private final static int LOG_ALLOC = 0;
+	private final static int LOG_FREE = 1;
+
+	/**
+	 * Version of the generations following the free ranges in an image. Images written before generations were tracked end after the
+	 * free ranges.
+	 */
+	private final static int IMAGE_VERSION = 1;
+
+	private RangeMap mUncommittedAllocations;
+	private RangeMap mCommittedFrees;
+	private DeferredFrees mDeferredFrees;
+	private SpaceAllocatorType mAllocatorType;
+	private SpaceAllocator mPendingRangeMap;
+	private SpaceAllocator mRangeMap;
+	private SpaceAllocator mCommittedRangeMap;
+	private volatile AllocationState mAllocationState;
+	private GenerationMap mGenerations;
+	private ArrayList<BlockPointer> mChain;
+	private ByteArrayBuffer mLog;
+	private int mLogRecords;
+	private long mLogOffset;
+	private int mChainBaseSize;
+	private int mChainLogSize;
+	private long mTailLimit;
+	private boolean mLegacyImage;
+	private AllocationClass[] mClasses;
+	private RangeMap[] mClassChunks;
+	private RangeMap[] mClassFree;
+
+
+	public SpaceMap(SpaceAllocatorType aAllocatorType)
 	{
-		mUncommittedAllocations = new HashSet<>();
-
-		mRangeMap = new RangeMap();
+		mUncommittedAllocations = new RangeMap();
+		mCommittedFrees = new RangeMap();
+		mAllocatorType = aAllocatorType;
+		mChain = new ArrayList<>();
+		mLog = ByteArrayBuffer.alloc(256);
+		mTailLimit = Long.MAX_VALUE;
+		mClasses = new AllocationClass[0];
+		mClassChunks = new RangeMap[0];
+		mClassFree = new RangeMap[0];
+		mGenerations = new GenerationMap();
+
+		mRangeMap = aAllocatorType.newInstance();
 		mRangeMap.add(0, Long.MAX_VALUE);
 		mPendingRangeMap = mRangeMap.clone();
+		mCommittedRangeMap = mRangeMap.clone();
 	}
 
 
 	public SpaceMap(SuperBlock aSuperBlock, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
 	{
-		mUncommittedAllocations = new HashSet<>();
+		mUncommittedAllocations = new RangeMap();
+		mCommittedFrees = new RangeMap();
+		mChain = new ArrayList<>();
+		mLog = ByteArrayBuffer.alloc(256);
+		mTailLimit = Long.MAX_VALUE;
+		mClasses = new AllocationClass[0];
+		mClassChunks = new RangeMap[0];
+		mClassFree = new RangeMap[0];
+		mGenerations = new GenerationMap();
 
 		mRangeMap = read(aSuperBlock, aBlockDevice, aBlockDeviceDirect);
 
 		mPendingRangeMap = mRangeMap.clone();
+		mCommittedRangeMap = mRangeMap.clone();
 	}
 
 
-	public RangeMap getRangeMap()
+	public SpaceAllocator getRangeMap()
 	{
 		return mRangeMap;
 	}
 
 
-	public long alloc(long aBlockCount)
+	public SpaceAllocatorType getAllocatorType()
 	{
-		long blockIndex = mRangeMap.next(aBlockCount);
+		return mAllocatorType;
+	}
 
-		if (blockIndex < 0)
+
+	public synchronized void setAllocationPolicy(AllocationPolicy aAllocationPolicy)
+	{
+		mRangeMap.setAllocationPolicy(aAllocationPolicy);
+		mPendingRangeMap.setAllocationPolicy(aAllocationPolicy);
+		mCommittedRangeMap.setAllocationPolicy(aAllocationPolicy);
+	}
+
+
+	/**
+	 * Allocations ending after the limit are moved to a free range ending before the limit if the allocation policy finds one.
+	 */
+	public synchronized void setTailLimit(long aBlockIndex)
+	{
+		mTailLimit = aBlockIndex;
+	}
+
+
+	/**
+	 * Replaces the allocation classes. Free blocks in chunks of the previous classes are returned to the allocator.
+	 *
+	 * @param aClasses classes sorted by maximum block count
+	 */
+	public synchronized void setAllocationClasses(AllocationClass[] aClasses)
+	{
+		for (RangeMap free : mClassFree)
 		{
-			return -1;
+			free.addTo(mRangeMap);
 		}
 
-		log.t("alloc block {} +{}", blockIndex, aBlockCount);
+		mClasses = aClasses.clone();
+		mClassChunks = new RangeMap[aClasses.length];
+		mClassFree = new RangeMap[aClasses.length];
 
-		for (int i = 0; i < aBlockCount; i++)
+		for (int i = 0; i < aClasses.length; i++)
 		{
-			mUncommittedAllocations.add(blockIndex + i);
+			mClassChunks[i] = new RangeMap();
+			mClassFree[i] = new RangeMap();
 		}
 
-		mPendingRangeMap.remove(blockIndex, aBlockCount);
+		mAllocationState = null;
+	}
+
+
+	/**
+	 * @return the number of free blocks including blocks held by allocation classes.
+	 */
+	public synchronized long getFreeSpace()
+	{
+		return mRangeMap.getFreeSpace() + getClassFreeSpace();
+	}
+
+
+	/**
+	 * @return the number of used blocks excluding blocks held by allocation classes.
+	 */
+	public synchronized long getUsedSpace()
+	{
+		return mRangeMap.getUsedSpace() - getClassFreeSpace();
+	}
+
+
+	private long getClassFreeSpace()
+	{
+		long space = 0;
+		for (RangeMap free : mClassFree)
+		{
+			space += free.getFreeSpace();
+		}
+		return space;
+	}
+
+
+	/**
+	 * Moves the free blocks inside the chunks of the allocation classes from the allocator to the free maps of the classes.
+	 */
+	private void collectClassFreeSpace()
+	{
+		for (int i = 0; i < mClasses.length; i++)
+		{
+			mClassFree[i].clear();
+			mClassChunks[i].collect(mRangeMap, mClassFree[i]);
+		}
+	}
+
+
+	/**
+	 * @return the free map of the allocation class owning the block or the allocator if the block isn't part of a chunk.
+	 */
+	private SpaceAllocator getOwner(long aBlockIndex)
+	{
+		for (int i = 0; i < mClasses.length; i++)
+		{
+			// chunks are stored as ranges in a RangeMap, a block inside a chunk is therefore reported as not used
+			if (!mClassChunks[i].isUsed(aBlockIndex, 1))
+			{
+				return mClassFree[i];
+			}
+		}
+		return mRangeMap;
+	}
+
+
+	private long allocFromClass(int aClass, long aBlockCount, long aHint)
+	{
+		RangeMap free = mClassFree[aClass];
+
+		long blockIndex = aHint < 0 ? free.next(aBlockCount) : free.next(aBlockCount, aHint);
+
+		if (blockIndex == -1)
+		{
+			long chunkSize = mClasses[aClass].getChunkBlockCount();
+			long chunk = mRangeMap.next(chunkSize);
+
+			if (chunk == -1)
+			{
+				return -1;
+			}
+
+			reserveChunk(aClass, chunk, chunkSize);
+
+			blockIndex = free.next(aBlockCount);
+		}
 
 		return blockIndex;
 	}
 
 
-	public void free(long aBlockIndex, long aBlockCount)
+	private void reserveChunk(int aClass, long aChunk, long aChunkSize)
+	{
+		log.t("reserved chunk {} +{} for {}", aChunk, aChunkSize, mClasses[aClass]);
+
+		mClassChunks[aClass].add(aChunk, aChunkSize);
+		mClassFree[aClass].add(aChunk, aChunkSize);
+	}
+
+
+	/**
+	 * Sets the registry of blocks that must not be allocated since open snapshots may read them.
+	 */
+	public synchronized void setDeferredFrees(DeferredFrees aDeferredFrees)
+	{
+		mDeferredFrees = aDeferredFrees;
+		mDeferredFrees.removeFrom(mRangeMap);
+		mAllocationState = null;
+	}
+
+
+	/**
+	 * Releases a snapshot and makes blocks no longer visible to any snapshot available for allocation.
+	 */
+	public synchronized void reclaim(long aGeneration)
 	{
-		long blockIndex = aBlockIndex;
+		mDeferredFrees.release(aGeneration).addTo(mRangeMap);
+		collectClassFreeSpace();
+		mAllocationState = null;
+	}
+
+
+	public long alloc(long aBlockCount)
+	{
+		return alloc(aBlockCount, -1);
+	}
 
-		for (int i = 0; i < aBlockCount; i++)
+
+	/**
+	 * @param aHint preferred block index or -1
+	 */
+	public synchronized long alloc(long aBlockCount, long aHint)
+	{
+		int allocationClass = getAllocationClass(aBlockCount);
+		boolean classAllocation = allocationClass < mClasses.length;
+
+		long blockIndex;
+		if (classAllocation)
+		{
+			blockIndex = allocFromClass(allocationClass, aBlockCount, aHint);
+		}
+		else
+		{
+			blockIndex = aHint < 0 ? mRangeMap.next(aBlockCount) : mRangeMap.next(aBlockCount, aHint);
+		}
+
+		if (blockIndex < 0)
+		{
+			return -1;
+		}
+
+		if (!classAllocation && blockIndex + aBlockCount > mTailLimit)
+		{
+			// avoid growing the tail of the device when the allocation policy finds free space before the limit
+			long lower = mRangeMap.next(aBlockCount, 0, mTailLimit);
+
+			if (lower != -1)
+			{
+				mRangeMap.add(blockIndex, aBlockCount);
+				blockIndex = lower;
+			}
+		}
+
+		return allocated(blockIndex, aBlockCount);
+	}
+
+
+	/**
+	 * Allocates a range located inside the range provided.
+	 *
+	 * @param aStart first block index of the range searched
+	 * @param aEnd block index following the range searched
+	 * @return the block index or -1 if no free range inside is large enough
+	 */
+	public synchronized long allocInside(long aBlockCount, long aStart, long aEnd)
+	{
+		int allocationClass = getAllocationClass(aBlockCount);
+
+		long blockIndex;
+		if (allocationClass < mClasses.length)
 		{
-			if (mUncommittedAllocations.remove(blockIndex + i))
+			blockIndex = mClassFree[allocationClass].next(aBlockCount, aStart, aEnd);
+
+			if (blockIndex == -1)
 			{
-				mRangeMap.add(blockIndex + i, 1);
+				long chunkSize = mClasses[allocationClass].getChunkBlockCount();
+				long chunk = mRangeMap.next(chunkSize, aStart, aEnd);
+
+				if (chunk == -1)
+				{
+					return -1;
+				}
+
+				reserveChunk(allocationClass, chunk, chunkSize);
+
+				blockIndex = mClassFree[allocationClass].next(aBlockCount, aStart, aEnd);
 			}
 		}
+		else
+		{
+			blockIndex = mRangeMap.next(aBlockCount, aStart, aEnd);
+		}
+
+		if (blockIndex < 0)
+		{
+			return -1;
+		}
+
+		return allocated(blockIndex, aBlockCount);
+	}
+
+
+	private int getAllocationClass(long aBlockCount)
+	{
+		int allocationClass = 0;
+		while (allocationClass < mClasses.length && mClasses[allocationClass].getMaxBlockCount() < aBlockCount)
+		{
+			allocationClass++;
+		}
+		return allocationClass;
+	}
+
+
+	/**
+	 * Records a range taken from the free space.
+	 */
+	private long allocated(long aBlockIndex, long aBlockCount)
+	{
+		log.t("alloc block {} +{}", aBlockIndex, aBlockCount);
+
+		mUncommittedAllocations.add(aBlockIndex, aBlockCount);
+
+		mPendingRangeMap.remove(aBlockIndex, aBlockCount);
+
+		logChange(LOG_ALLOC, aBlockIndex, aBlockCount);
+
+		return aBlockIndex;
+	}
+
 
-		mPendingRangeMap.add(blockIndex, aBlockCount);
+	public synchronized void free(long aBlockIndex, long aBlockCount)
+	{
+		// blocks allocated in this transaction are immediately reusable, committed blocks are freed by the commit
+		mUncommittedAllocations.transfer(aBlockIndex, aBlockCount, getOwner(aBlockIndex), mCommittedFrees);
+
+		mPendingRangeMap.add(aBlockIndex, aBlockCount);
+
+		logChange(LOG_FREE, aBlockIndex, aBlockCount);
+
+		mAllocationState = null;
 	}
 
 
+	/**
+	 * Verifies the range is allocated. This method doesn't lock the space map, a snapshot of the allocation state is published on the first
+	 * call after blocks were freed and shared by all readers until blocks are freed again. Allocations don't replace the snapshot, a range
+	 * the snapshot reports as free is verified again with the space map locked.
+	 */
 	public void assertUsed(long aBlockIndex, long aBlockCount)
 	{
-		if (!mRangeMap.isFree((int)aBlockIndex, aBlockCount))
+		AllocationState state = mAllocationState;
+
+		if (state == null)
+		{
+			state = publishAllocationState();
+		}
+
+		if (!state.isUsed(aBlockIndex, aBlockCount))
+		{
+			assertAllocated(aBlockIndex, aBlockCount);
+		}
+	}
+
+
+	/**
+	 * Verifies the range is allocated with the space map locked. Used by writers which usually write blocks allocated after the last
+	 * published snapshot.
+	 */
+	public synchronized void assertAllocated(long aBlockIndex, long aBlockCount)
+	{
+		boolean used = mRangeMap.isUsed(aBlockIndex, aBlockCount);
+
+		for (int i = 0; used && i < mClassFree.length; i++)
+		{
+			used = mClassFree[i].isUsed(aBlockIndex, aBlockCount);
+		}
+
+		if (!used)
 		{
 			throw new RaccoonIOException("Range not allocated: " + aBlockIndex + " +" + aBlockCount);
 		}
 	}
 
 
-	public void rollback()
+	private synchronized AllocationState publishAllocationState()
 	{
-		mPendingRangeMap = mRangeMap.clone();
+		if (mAllocationState == null)
+		{
+			AllocationState state = mRangeMap.snapshot();
+
+			for (RangeMap free : mClassFree)
+			{
+				AllocationState main = state;
+				AllocationState classState = free.snapshot();
+				state = (aOffset, aSize) -> main.isUsed(aOffset, aSize) && classState.isUsed(aOffset, aSize);
+			}
+
+			mAllocationState = state;
+		}
+
+		return mAllocationState;
+	}
+
+
+	/**
+	 * Restores the state of the last commit from the copy-on-write image kept in memory.
+	 */
+	public synchronized void rollback()
+	{
+		mPendingRangeMap = mCommittedRangeMap.clone();
+		mRangeMap = mCommittedRangeMap.clone();
+
+		if (mDeferredFrees != null)
+		{
+			mDeferredFrees.removeFrom(mRangeMap);
+		}
+
+		collectClassFreeSpace();
+
+		mUncommittedAllocations.clear();
+		mCommittedFrees.clear();
+		mLog.position(0);
+		mLogRecords = 0;
+		mLogOffset = 0;
+		mAllocationState = null;
 	}
 
 
-	public void reset()
+	public synchronized void reset()
 	{
 		mUncommittedAllocations.clear();
 	}
 
 
-	public void write(BlockPointer aSpaceMapBlockPointer, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
+	/**
+	 * Records the blocks allocated by this transaction as allocated by the commit creating the generation and forgets blocks freed.
+	 */
+	private void updateGenerations(long aGeneration)
+	{
+		mGenerations.remove(mCommittedFrees.toArray());
+		mGenerations.put(mUncommittedAllocations.toArray(), aGeneration);
+	}
+
+
+	/**
+	 * @return the blocks allocated by commits made after the generation provided and still used by the last commit.
+	 */
+	public synchronized RangeMap getChangedSince(long aGeneration)
+	{
+		return mGenerations.getChangedSince(aGeneration);
+	}
+
+
+	/**
+	 * @return the blocks used by the last commit excluding the blocks of the space map.
+	 */
+	public synchronized RangeMap getUsedRanges(int aBlockSize)
+	{
+		RangeMap used = mGenerations.getChangedSince(-1);
+
+		for (BlockPointer blockPointer : mChain)
+		{
+			used.remove(blockPointer.getBlockIndex0(), blockPointer.getAllocatedSize() / aBlockSize);
+		}
+
+		return used;
+	}
+
+
+	public synchronized void write(BlockPointer aSpaceMapBlockPointer, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
 	{
 		log.d("write space map");
 		log.inc();
 
+		long generation = aBlockDevice.getGeneration() + 1;
+
+		updateGenerations(generation);
+
+		if (mChain.isEmpty() || mLegacyImage || mChain.size() > MAX_LOG_LENGTH || mChainLogSize + mLog.position() > mChainBaseSize || isChainInTail(aBlockDevice.getBlockSize()))
+		{
+			writeImage(aSpaceMapBlockPointer, aBlockDevice, aBlockDeviceDirect);
+		}
+		else if (mLogRecords > 0)
+		{
+			writeLog(aSpaceMapBlockPointer, aBlockDevice, aBlockDeviceDirect);
+		}
+
+		// the blocks of the image and log are allocated by the commit as well
+		updateGenerations(generation);
+
+		mLog.position(0);
+		mLogRecords = 0;
+		mLogOffset = 0;
+
+		mRangeMap = mPendingRangeMap.clone();
+		mCommittedRangeMap = mPendingRangeMap.clone();
+
+		if (mDeferredFrees != null)
+		{
+			// keep blocks freed by this commit from being reused while a snapshot may read them
+			if (mDeferredFrees.isActive() && mCommittedFrees.getFreeSpace() > 0)
+			{
+				mDeferredFrees.add(aBlockDevice.getGeneration() + 1, mCommittedFrees);
+				mCommittedFrees = new RangeMap();
+			}
+
+			mDeferredFrees.removeFrom(mRangeMap);
+		}
+
+		mCommittedFrees.clear();
+
+		collectClassFreeSpace();
+
+		mAllocationState = null;
+
+		log.dec();
+	}
+
+
+	/**
+	 * @return true if a block of the image or log is located after the tail limit, the chain is then rewritten to allow the end of the
+	 * device to be reclaimed.
+	 */
+	private boolean isChainInTail(int aBlockSize)
+	{
+		for (BlockPointer blockPointer : mChain)
+		{
+			if (blockPointer.getBlockIndex0() + blockPointer.getAllocatedSize() / aBlockSize > mTailLimit)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Writes the entire space map and releases the blocks of the previous image and log.
+	 */
+	private void writeImage(BlockPointer aSpaceMapBlockPointer, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
+	{
 		int blockSize = aBlockDevice.getBlockSize();
 
-		if (aSpaceMapBlockPointer.getAllocatedSize() > 0)
+		if (mChain.isEmpty() && aSpaceMapBlockPointer.getAllocatedSize() > 0)
 		{
-			aBlockDevice.freeBlockInternal(aSpaceMapBlockPointer.getBlockIndex0(), aSpaceMapBlockPointer.getAllocatedSize() / blockSize);
+			mChain.add(BlockPointer.fromByteArray(aSpaceMapBlockPointer.toByteArray().clone()));
 		}
 
+		for (BlockPointer blockPointer : mChain)
+		{
+			aBlockDevice.freeBlockInternal(blockPointer.getBlockIndex0(), blockPointer.getAllocatedSize() / blockSize);
+		}
+
+		// the blocks of the previous image and log were freed above
+		updateGenerations(aBlockDevice.getGeneration() + 1);
+
 		ByteArrayBuffer buffer = ByteArrayBuffer.alloc(blockSize);
 
 		mPendingRangeMap.marshal(buffer);
+		buffer.writeInt8(IMAGE_VERSION);
+		mGenerations.marshal(buffer);
+
+		writeBlock(aSpaceMapBlockPointer, BlockType.SPACEMAP, buffer, aBlockDevice, aBlockDeviceDirect);
 
-		int allocSize = aBlockDevice.roundUp(buffer.position());
+		mChain.clear();
+		mChain.add(BlockPointer.fromByteArray(aSpaceMapBlockPointer.toByteArray().clone()));
+		mChainBaseSize = buffer.position();
+		mChainLogSize = 0;
+		mLegacyImage = false;
+	}
+
+
+	/**
+	 * Writes the changes made in this transaction as a log block linked to the previous space map block.
+	 */
+	private void writeLog(BlockPointer aSpaceMapBlockPointer, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
+	{
+		ByteArrayBuffer buffer = ByteArrayBuffer.alloc(BlockPointer.SIZE + 5 + mLog.position());
+
+		buffer.write(aSpaceMapBlockPointer.toByteArray());
+		buffer.writeVar32U(mLogRecords);
+		buffer.write(mLog.array(), 0, mLog.position());
+
+		log.d("write space map log, {} records", mLogRecords);
+
+		writeBlock(aSpaceMapBlockPointer, BlockType.SPACEMAP_LOG, buffer, aBlockDevice, aBlockDeviceDirect);
+
+		mChain.add(BlockPointer.fromByteArray(aSpaceMapBlockPointer.toByteArray().clone()));
+		mChainLogSize += buffer.position();
+	}
+
+
+	private void writeBlock(BlockPointer aSpaceMapBlockPointer, int aBlockType, ByteArrayBuffer aBuffer, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
+	{
+		int blockSize = aBlockDevice.getBlockSize();
+		int allocSize = aBlockDevice.roundUp(aBuffer.position());
 
 		long blockIndex = aBlockDevice.allocBlockInternal(allocSize / blockSize);
 		int[] blockKey = PRNG.ints(4).toArray();
 
 		aSpaceMapBlockPointer.setCompressionAlgorithm(CompressorAlgorithm.NONE.ordinal());
-		aSpaceMapBlockPointer.setBlockType(BlockType.SPACEMAP);
+		aSpaceMapBlockPointer.setBlockType(aBlockType);
+		aSpaceMapBlockPointer.setBlockLevel(mAllocatorType.ordinal());
 		aSpaceMapBlockPointer.setAllocatedSize(allocSize);
 		aSpaceMapBlockPointer.setBlockIndex0(blockIndex);
-		aSpaceMapBlockPointer.setLogicalSize(buffer.position());
-		aSpaceMapBlockPointer.setPhysicalSize(buffer.position());
+		aSpaceMapBlockPointer.setLogicalSize(aBuffer.position());
+		aSpaceMapBlockPointer.setPhysicalSize(aBuffer.position());
 		aSpaceMapBlockPointer.setChecksumAlgorithm((byte)0); // not used
-		aSpaceMapBlockPointer.setChecksum(SHA3.hash128_512(buffer.array(), 0, buffer.position(), aSpaceMapBlockPointer.getGeneration()));
+		aSpaceMapBlockPointer.setGeneration(aBlockDevice.getGeneration() + 1);
+		aSpaceMapBlockPointer.setChecksum(SHA3.hash128_512(aBuffer.array(), 0, aBuffer.position(), aSpaceMapBlockPointer.getGeneration()));
 		aSpaceMapBlockPointer.setBlockKey(blockKey);
 
 		// Pad buffer to block size
-		buffer.capacity(allocSize);
-
-		aBlockDeviceDirect.writeBlock(blockIndex, buffer.array(), 0, buffer.capacity(), blockKey);
+		aBuffer.capacity(allocSize);
 
-		mRangeMap = mPendingRangeMap.clone();
-
-		log.dec();
+		aBlockDeviceDirect.writeBlock(blockIndex, aBuffer.array(), 0, aBuffer.capacity(), blockKey);
 	}
 
 
-	private RangeMap read(SuperBlock aSuperBlock, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
+	private SpaceAllocator read(SuperBlock aSuperBlock, ManagedBlockDevice aBlockDevice, BlockStorage aBlockDeviceDirect)
 	{
-		BlockPointer blockPointer = aSuperBlock.getSpaceMapPointer();
+		// copy since the pointer in the super block is updated when the space map is written
+		BlockPointer blockPointer = BlockPointer.fromByteArray(aSuperBlock.getSpaceMapPointer().toByteArray().clone());
 
 		log.d("read space map {} +{} (bytes used {})", blockPointer.getBlockIndex0(), blockPointer.getAllocatedSize() / aBlockDevice.getBlockSize(), blockPointer.getLogicalSize());
 		log.inc();
 
-		RangeMap rangeMap = new RangeMap();
+		if (blockPointer.getBlockLevel() >= SpaceAllocatorType.values().length)
+		{
+			throw new UnsupportedVersionException("Unsupported space allocator type: " + blockPointer.getBlockLevel());
+		}
+
+		// the type of the allocator is stored in the level field of the space map pointer
+		mAllocatorType = SpaceAllocatorType.values()[blockPointer.getBlockLevel()];
+
+		SpaceAllocator rangeMap = mAllocatorType.newInstance();
 
 		if (blockPointer.getAllocatedSize() == 0)
 		{
@@ -166,33 +695,145 @@ class SpaceMap
 		}
 		else
 		{
-			if (blockPointer.getBlockIndex0() < 0)
+			int blockSize = aBlockDevice.getBlockSize();
+
+			// follow the log blocks back to the image, then replay the logs in the order they were written
+			ArrayList<ByteArrayBuffer> logs = new ArrayList<>();
+
+			for (;;)
 			{
-				throw new RaccoonIOException("Block at illegal offset: " + blockPointer.getBlockIndex0());
+				ByteArrayBuffer buffer = readBlock(blockPointer, aBlockDeviceDirect);
+
+				mChain.add(0, blockPointer);
+
+				if (blockPointer.getBlockType() == BlockType.SPACEMAP)
+				{
+					mChainBaseSize = blockPointer.getLogicalSize();
+					rangeMap.unmarshal(buffer);
+					readGenerations(buffer, rangeMap, blockPointer.getGeneration());
+					break;
+				}
+				if (blockPointer.getBlockType() != BlockType.SPACEMAP_LOG)
+				{
+					throw new RaccoonIOException("Space map block has illegal type: " + blockPointer);
+				}
+
+				mChainLogSize += blockPointer.getLogicalSize();
+				logs.add(0, buffer);
+
+				blockPointer = new BlockPointer().fromByteArray(buffer.read(new byte[BlockPointer.SIZE]));
 			}
 
-			int blockSize = aBlockDevice.getBlockSize();
+			for (int i = 0; i < logs.size(); i++)
+			{
+				// the chain starts with the image followed by the logs, each block stamped with the generation of the commit writing it
+				replay(logs.get(i), rangeMap, mGenerations, mChain.get(i + 1).getGeneration());
+			}
 
-			ByteArrayBuffer buffer = ByteArrayBuffer.alloc(blockPointer.getAllocatedSize());
+			for (BlockPointer chainPointer : mChain)
+			{
+				rangeMap.remove(chainPointer.getBlockIndex0(), chainPointer.getAllocatedSize() / blockSize);
+				mGenerations.put(chainPointer.getBlockIndex0(), chainPointer.getAllocatedSize() / blockSize, chainPointer.getGeneration());
+			}
+		}
 
-			aBlockDeviceDirect.readBlock(blockPointer.getBlockIndex0(), buffer.array(), 0, blockPointer.getAllocatedSize(), blockPointer.getBlockKey());
+		log.dec();
 
-			int[] checksum = SHA3.hash128_512(buffer.array(), 0, blockPointer.getLogicalSize(), blockPointer.getGeneration());
+		return rangeMap;
+	}
+
+
+	/**
+	 * Reads the generations of an image. An image written before generations were tracked is given the generation of the image for all
+	 * used blocks, this makes every block appear changed since any earlier generation, and the image is written again by the next
+	 * commit.
+	 */
+	private void readGenerations(ByteArrayBuffer aBuffer, SpaceAllocator aRangeMap, long aGeneration)
+	{
+		if (aBuffer.remaining() > 0)
+		{
+			int version = aBuffer.readInt8();
 
-			if (!Arrays.equals(blockPointer.getChecksum(), checksum))
+			if (version != IMAGE_VERSION)
 			{
-				throw new RaccoonIOException("Checksum error at block index ");
+				throw new UnsupportedVersionException("Unsupported space map version: " + version);
 			}
 
-			buffer.limit(blockPointer.getLogicalSize());
+			mGenerations.unmarshal(aBuffer);
+			return;
+		}
+
+		log.d("seeding generations of legacy space map");
 
-			rangeMap.unmarshal(buffer);
+		long end = aRangeMap.getLastBlockIndex();
+
+		if (end > 0)
+		{
+			RangeMap free = new RangeMap();
+			aRangeMap.clone().transfer(0, end, free);
 
-			rangeMap.remove((int)blockPointer.getBlockIndex0(), blockPointer.getAllocatedSize() / blockSize);
+			mGenerations.put(0, end, aGeneration);
+			mGenerations.remove(free.toArray());
 		}
 
-		log.dec();
+		mLegacyImage = true;
+	}
 
-		return rangeMap;
+
+	private ByteArrayBuffer readBlock(BlockPointer aBlockPointer, BlockStorage aBlockDeviceDirect)
+	{
+		if (aBlockPointer.getBlockIndex0() < 0)
+		{
+			throw new RaccoonIOException("Block at illegal offset: " + aBlockPointer.getBlockIndex0());
+		}
+
+		ByteArrayBuffer buffer = ByteArrayBuffer.alloc(aBlockPointer.getAllocatedSize());
+
+		aBlockDeviceDirect.readBlock(aBlockPointer.getBlockIndex0(), buffer.array(), 0, aBlockPointer.getAllocatedSize(), aBlockPointer.getBlockKey());
+
+		int[] checksum = SHA3.hash128_512(buffer.array(), 0, aBlockPointer.getLogicalSize(), aBlockPointer.getGeneration());
+
+		if (!Arrays.equals(aBlockPointer.getChecksum(), checksum))
+		{
+			throw new RaccoonIOException("Checksum error at block index " + aBlockPointer.getBlockIndex0());
+		}
+
+		buffer.limit(aBlockPointer.getLogicalSize());
+
+		return buffer;
+	}
+
+
+	private void logChange(int aType, long aBlockIndex, long aBlockCount)
+	{
+		mLog.writeInt8(aType);
+		mLog.writeVar64(aBlockIndex - mLogOffset);
+		mLog.writeVar64U(aBlockCount);
+		mLogOffset = aBlockIndex;
+		mLogRecords++;
+	}
+
+
+	private static void replay(ByteArrayBuffer aBuffer, SpaceAllocator aRangeMap, GenerationMap aGenerations, long aGeneration)
+	{
+		long offset = 0;
+
+		for (int i = aBuffer.readVar32U(); --i >= 0;)
+		{
+			int type = aBuffer.readInt8();
+			offset += aBuffer.readVar64();
+			long count = aBuffer.readVar64U();
+
+			if (type == LOG_ALLOC)
+			{
+				aRangeMap.remove(offset, count);
+				aGenerations.put(offset, count, aGeneration);
+			}
+			else
+			{
+				aRangeMap.add(offset, count);
+				aGenerations.remove(offset, count);
+			}
+		}
 	}
 }
@@ -0,0 +1,97 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.util.Arrays;
+
+
+/**
+ * Immutable summary of the free space of a device. The free space extending to the end of the address space is not counted as a free
+ * extent, it's reported as the tail slack.
+ */
+public final class SpaceStatistics
+{
+	private final long[] mHistogram;
+	private final long mFreeExtentCount;
+	private final long mLargestFreeExtent;
+	private final long mFreeSpace;
+	private final long mUsedExtentCount;
+	private final long mTailSlack;
+
+
+	SpaceStatistics(long[] aHistogram, long aFreeExtentCount, long aLargestFreeExtent, long aFreeSpace, long aUsedExtentCount, long aTailSlack)
+	{
+		mHistogram = aHistogram;
+		mFreeExtentCount = aFreeExtentCount;
+		mLargestFreeExtent = aLargestFreeExtent;
+		mFreeSpace = aFreeSpace;
+		mUsedExtentCount = aUsedExtentCount;
+		mTailSlack = aTailSlack;
+	}
+
+
+	/**
+	 * @return the number of free extents by size, element N counts extents of 2^N to 2^(N+1)-1 blocks.
+	 */
+	public long[] getFreeExtentHistogram()
+	{
+		return mHistogram.clone();
+	}
+
+
+	public long getFreeExtentCount()
+	{
+		return mFreeExtentCount;
+	}
+
+
+	/**
+	 * @return the size in blocks of the largest contiguous free extent.
+	 */
+	public long getLargestFreeExtent()
+	{
+		return mLargestFreeExtent;
+	}
+
+
+	/**
+	 * @return the number of free blocks in all free extents.
+	 */
+	public long getFreeSpace()
+	{
+		return mFreeSpace;
+	}
+
+
+	/**
+	 * @return the number of contiguous runs of used blocks.
+	 */
+	public long getUsedExtentCount()
+	{
+		return mUsedExtentCount;
+	}
+
+
+	/**
+	 * @return the number of blocks of the underlying storage following the last used block.
+	 */
+	public long getTailSlack()
+	{
+		return mTailSlack;
+	}
+
+
+	/**
+	 * @return a value between 0 and 1 where 0 means all free blocks are contiguous and values approaching 1 mean the free space is
+	 * split into many small extents.
+	 */
+	public double getFragmentation()
+	{
+		return mFreeSpace == 0 ? 0 : 1 - mLargestFreeExtent / (double)mFreeSpace;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "SpaceStatistics{freeExtents=" + mFreeExtentCount + ", freeSpace=" + mFreeSpace + ", largestFreeExtent=" + mLargestFreeExtent + ", usedExtents=" + mUsedExtentCount + ", tailSlack=" + mTailSlack + ", fragmentation=" + getFragmentation() + ", histogram=" + Arrays.toString(mHistogram) + "}";
+	}
+}
@@ -16,26 +16,113 @@ class SuperBlock
 {
 	private final static int DIGEST_LENGTH = 64;
 
+	/**
+	 * Space kept for the fields preceding the metadata in the serialized SuperBlock.
+	 */
+	private final static int HEADER_LENGTH = 512;
+
 	private long mGeneration;
 	private long mCreateTime;
 	private long mChangedTime;
 	private BlockPointer mSpaceMapBlockPointer;
+	private BlockPointer mMetadataBlockPointer;
+	private byte[] mMetadata;
+	private long mUsedSpace;
+	private long mMaximumSpace;
 
 
 	public SuperBlock(long aWriteCounter)
 	{
 		mCreateTime = System.currentTimeMillis();
 		mSpaceMapBlockPointer = new BlockPointer();
+		mMetadataBlockPointer = new BlockPointer();
+		mMetadata = new byte[0];
 		mGeneration = aWriteCounter;
 	}
 
 
+	/**
+	 * @return a copy not affected by changes made to this instance.
+	 */
+	public SuperBlock copy()
+	{
+		SuperBlock copy = new SuperBlock(mGeneration);
+		copy.mCreateTime = mCreateTime;
+		copy.mChangedTime = mChangedTime;
+		copy.mSpaceMapBlockPointer = BlockPointer.fromByteArray(mSpaceMapBlockPointer.toByteArray().clone());
+		copy.mMetadataBlockPointer = BlockPointer.fromByteArray(mMetadataBlockPointer.toByteArray().clone());
+		copy.mMetadata = mMetadata;
+		copy.mUsedSpace = mUsedSpace;
+		copy.mMaximumSpace = mMaximumSpace;
+		return copy;
+	}
+
+
 	public BlockPointer getSpaceMapPointer()
 	{
 		return mSpaceMapBlockPointer;
 	}
 
 
+	/**
+	 * @return pointer to the blocks containing the metadata when it's too large to be stored in the SuperBlock.
+	 */
+	public BlockPointer getMetadataPointer()
+	{
+		return mMetadataBlockPointer;
+	}
+
+
+	/**
+	 * @return the serialized metadata stored in the SuperBlock, empty if the metadata is stored in blocks.
+	 */
+	public byte[] getMetadata()
+	{
+		return mMetadata;
+	}
+
+
+	public void setMetadata(byte[] aMetadata, BlockPointer aMetadataBlockPointer)
+	{
+		mMetadata = aMetadata;
+		mMetadataBlockPointer = aMetadataBlockPointer;
+	}
+
+
+	/**
+	 * @return the maximum length of serialized metadata stored in the SuperBlock.
+	 */
+	public static int getMetadataLimit(int aBlockSize)
+	{
+		return aBlockSize - DIGEST_LENGTH - HEADER_LENGTH;
+	}
+
+
+	/**
+	 * @return the number of used blocks when the SuperBlock was written.
+	 */
+	public long getUsedSpace()
+	{
+		return mUsedSpace;
+	}
+
+
+	/**
+	 * @return the number of free blocks in the space map when the SuperBlock was written.
+	 */
+	public long getMaximumSpace()
+	{
+		return mMaximumSpace;
+	}
+
+
+	public void setSpaceSummary(long aUsedSpace, long aMaximumSpace)
+	{
+		mUsedSpace = aUsedSpace;
+		mMaximumSpace = aMaximumSpace;
+	}
+
+
 	public long getGeneration()
 	{
 		return mGeneration;
@@ -48,6 +135,12 @@ class SuperBlock
 	}
 
 
+	public void setGeneration(long aGeneration)
+	{
+		mGeneration = aGeneration;
+	}
+
+
 	public long getCreatedTime()
 	{
 		return mCreateTime;
@@ -60,43 +153,66 @@ class SuperBlock
 	}
 
 
-	public Document read(BlockStorage aBlockDevice, int aIndex) throws IOException
+	public void read(BlockStorage aBlockDevice, int aIndex) throws IOException
 	{
 		int blockIndex = aIndex;
 
 		byte[] buffer = new byte[aBlockDevice.getBlockSize()];
 		aBlockDevice.readBlock(blockIndex, buffer, 0, buffer.length, createBlockKey(blockIndex));
 
+		unmarshal(buffer, aIndex);
+	}
+
+
+	/**
+	 * Decodes a SuperBlock read from a block device or a backup archive.
+	 *
+	 * @param aIndex the index of the SuperBlock, used in error messages
+	 */
+	public void unmarshal(byte[] aBuffer, int aIndex) throws IOException
+	{
 		SHA3 sha = new SHA3(512);
-		sha.update(buffer, 0, buffer.length - DIGEST_LENGTH);
+		sha.update(aBuffer, 0, aBuffer.length - DIGEST_LENGTH);
 
 		byte[] found = sha.digest();
-		byte[] expected = Arrays.copyOfRange(buffer, buffer.length - DIGEST_LENGTH, buffer.length);
+		byte[] expected = Arrays.copyOfRange(aBuffer, aBuffer.length - DIGEST_LENGTH, aBuffer.length);
 
 		if (!Arrays.equals(found, expected))
 		{
 			throw new RaccoonIOException("Checksum error in SuperBlock #" + aIndex);
 		}
 
-		try (StreamMarshaller marshaller = new StreamMarshaller(new ByteArrayInputStream(buffer)))
+		try (StreamMarshaller marshaller = new StreamMarshaller(new ByteArrayInputStream(aBuffer)))
 		{
 			mGeneration = marshaller.read();
 			mCreateTime = marshaller.read();
 			mChangedTime = marshaller.read();
 			mSpaceMapBlockPointer = new BlockPointer().fromByteArray((byte[])marshaller.read());
-			Document metadata = marshaller.read();
-
-			return metadata;
+			mMetadataBlockPointer = new BlockPointer().fromByteArray((byte[])marshaller.read());
+			mUsedSpace = marshaller.read();
+			mMaximumSpace = marshaller.read();
+			mMetadata = marshaller.read();
 		}
 	}
 
 
-	public void write(BlockStorage aBlockDevice, int aIndex, Document aMetadata) throws IOException
+	public void write(BlockStorage aBlockDevice, int aIndex) throws IOException
 	{
 		int blockIndex = aIndex;
 
 		mChangedTime = System.currentTimeMillis();
 
+		byte[] buffer = marshal(aBlockDevice.getBlockSize());
+
+		aBlockDevice.writeBlock(blockIndex, buffer, 0, buffer.length, createBlockKey(blockIndex));
+	}
+
+
+	/**
+	 * @return the SuperBlock serialized and padded to the block size with a digest in the last bytes.
+	 */
+	public byte[] marshal(int aBlockSize) throws IOException
+	{
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		try (StreamMarshaller marshaller = new StreamMarshaller(baos))
 		{
@@ -104,23 +220,59 @@ class SuperBlock
 			marshaller.write(mCreateTime);
 			marshaller.write(mChangedTime);
 			marshaller.write(mSpaceMapBlockPointer.toByteArray());
-			marshaller.write(aMetadata);
+			marshaller.write(mMetadataBlockPointer.toByteArray());
+			marshaller.write(mUsedSpace);
+			marshaller.write(mMaximumSpace);
+			marshaller.write(mMetadata);
 		}
 
 		byte[] buffer = baos.toByteArray();
 
-		if (buffer.length > aBlockDevice.getBlockSize() - DIGEST_LENGTH)
+		if (buffer.length > aBlockSize - DIGEST_LENGTH)
 		{
-			throw new RaccoonIOException("Fatal error: SuperBlock serialized too larger than " + (aBlockDevice.getBlockSize() - DIGEST_LENGTH) + " bytes: " + baos.size());
+			throw new RaccoonIOException("Fatal error: SuperBlock serialized too larger than " + (aBlockSize - DIGEST_LENGTH) + " bytes: " + baos.size());
 		}
 
-		buffer = Arrays.copyOfRange(buffer, 0, aBlockDevice.getBlockSize());
+		buffer = Arrays.copyOfRange(buffer, 0, aBlockSize);
 
 		SHA3 sha = new SHA3(512);
 		sha.update(buffer, 0, buffer.length - DIGEST_LENGTH);
 		System.arraycopy(sha.digest(), 0, buffer, buffer.length - DIGEST_LENGTH, DIGEST_LENGTH);
 
-		aBlockDevice.writeBlock(blockIndex, buffer, 0, buffer.length, createBlockKey(blockIndex));
+		return buffer;
+	}
+
+
+	public static byte[] marshalMetadata(Document aMetadata)
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (StreamMarshaller marshaller = new StreamMarshaller(baos))
+		{
+			marshaller.write(aMetadata);
+		}
+		catch (IOException e)
+		{
+			throw new RaccoonIOException("Failed to serialize metadata", e);
+		}
+		return baos.toByteArray();
+	}
+
+
+	public static Document unmarshalMetadata(byte[] aMetadata)
+	{
+		if (aMetadata.length == 0)
+		{
+			return new Document();
+		}
+
+		try (StreamMarshaller marshaller = new StreamMarshaller(new ByteArrayInputStream(aMetadata)))
+		{
+			return marshaller.read();
+		}
+		catch (IOException e)
+		{
+			throw new RaccoonIOException("Failed to deserialize metadata", e);
+		}
 	}
 
 
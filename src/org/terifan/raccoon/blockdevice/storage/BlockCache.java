@@ -0,0 +1,268 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * A cache of blocks shared by any number of CachedBlockStorage instances. The least recently used blocks are evicted when the capacity
+ * of the cache is reached. Each storage has a quota limiting the space its blocks may occupy, a storage exceeding its quota evicts its
+ * own blocks leaving the blocks of other storages in the cache.
+ */
+public class BlockCache
+{
+	private final LinkedHashMap<Key, byte[]> mBlocks;
+	private final HashMap<Integer, Owner> mOwners;
+	private long mCapacity;
+	private long mUsedSpace;
+	private int mNextOwnerId;
+	private long mHits;
+	private long mMisses;
+
+
+	/**
+	 * @param aCapacity maximum number of bytes held by the cache
+	 */
+	public BlockCache(long aCapacity)
+	{
+		mBlocks = new LinkedHashMap<>(16, 0.75f, true);
+		mOwners = new HashMap<>();
+
+		setCapacity(aCapacity);
+	}
+
+
+	public synchronized long getCapacity()
+	{
+		return mCapacity;
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes held by the cache, blocks are evicted if the cache is larger.
+	 */
+	public synchronized BlockCache setCapacity(long aCapacity)
+	{
+		if (aCapacity < 0)
+		{
+			throw new IllegalArgumentException("aCapacity is negative");
+		}
+
+		mCapacity = aCapacity;
+
+		evict(null, 0);
+
+		return this;
+	}
+
+
+	/**
+	 * @return number of bytes held by the cache.
+	 */
+	public synchronized long getUsedSpace()
+	{
+		return mUsedSpace;
+	}
+
+
+	public synchronized long getHitCount()
+	{
+		return mHits;
+	}
+
+
+	public synchronized long getMissCount()
+	{
+		return mMisses;
+	}
+
+
+	/**
+	 * @return number of storages using the cache.
+	 */
+	public synchronized int getOwnerCount()
+	{
+		return mOwners.size();
+	}
+
+
+	/**
+	 * @param aQuota maximum number of bytes held for the owner
+	 * @return an id identifying the owner in later calls
+	 */
+	synchronized int register(long aQuota)
+	{
+		int id = mNextOwnerId++;
+		mOwners.put(id, new Owner(aQuota));
+		return id;
+	}
+
+
+	/**
+	 * Removes the owner and all its blocks.
+	 */
+	synchronized void unregister(int aOwner)
+	{
+		Owner owner = mOwners.remove(aOwner);
+
+		if (owner != null)
+		{
+			for (Iterator<Key> it = owner.mBlocks.keySet().iterator(); it.hasNext();)
+			{
+				mUsedSpace -= mBlocks.remove(it.next()).length;
+			}
+		}
+	}
+
+
+	/**
+	 * @return the cached block or null
+	 */
+	synchronized byte[] get(int aOwner, long aBlockIndex)
+	{
+		Key key = new Key(aOwner, aBlockIndex);
+		byte[] block = mBlocks.get(key);
+
+		if (block == null)
+		{
+			mMisses++;
+			return null;
+		}
+
+		mOwners.get(aOwner).mBlocks.get(key);
+		mHits++;
+
+		return block;
+	}
+
+
+	/**
+	 * Adds or replaces a block. The array is kept by the cache and must not be changed by the caller.
+	 */
+	synchronized void put(int aOwner, long aBlockIndex, byte[] aBlock)
+	{
+		Owner owner = mOwners.get(aOwner);
+
+		if (aBlock.length > mCapacity || aBlock.length > owner.mQuota)
+		{
+			remove(aOwner, aBlockIndex);
+			return;
+		}
+
+		Key key = new Key(aOwner, aBlockIndex);
+		byte[] old = mBlocks.put(key, aBlock);
+		owner.mBlocks.put(key, Boolean.TRUE);
+
+		long change = aBlock.length - (old == null ? 0 : old.length);
+		mUsedSpace += change;
+		owner.mUsedSpace += change;
+
+		evict(owner, aBlock.length);
+	}
+
+
+	synchronized void remove(int aOwner, long aBlockIndex)
+	{
+		Key key = new Key(aOwner, aBlockIndex);
+		byte[] old = mBlocks.remove(key);
+
+		if (old != null)
+		{
+			Owner owner = mOwners.get(aOwner);
+			owner.mBlocks.remove(key);
+			owner.mUsedSpace -= old.length;
+			mUsedSpace -= old.length;
+		}
+	}
+
+
+	/**
+	 * Removes all blocks of the owner at or after the block index.
+	 */
+	synchronized void removeFrom(int aOwner, long aBlockIndex)
+	{
+		Owner owner = mOwners.get(aOwner);
+
+		for (Iterator<Key> it = owner.mBlocks.keySet().iterator(); it.hasNext();)
+		{
+			Key key = it.next();
+
+			if (key.mBlockIndex >= aBlockIndex)
+			{
+				it.remove();
+
+				long length = mBlocks.remove(key).length;
+				owner.mUsedSpace -= length;
+				mUsedSpace -= length;
+			}
+		}
+	}
+
+
+	private void evict(Owner aOwner, int aKeep)
+	{
+		// the block just added is the most recently used and is never evicted
+		while (aOwner != null && aOwner.mUsedSpace > aOwner.mQuota && aOwner.mUsedSpace > aKeep)
+		{
+			Key key = aOwner.mBlocks.keySet().iterator().next();
+			remove(key.mOwner, key.mBlockIndex);
+		}
+
+		while (mUsedSpace > mCapacity)
+		{
+			Key key = mBlocks.keySet().iterator().next();
+			remove(key.mOwner, key.mBlockIndex);
+		}
+	}
+
+
+	@Override
+	public synchronized String toString()
+	{
+		return "BlockCache{capacity=" + mCapacity + ", used=" + mUsedSpace + ", blocks=" + mBlocks.size() + ", owners=" + mOwners.size() + ", hits=" + mHits + ", misses=" + mMisses + "}";
+	}
+
+
+	private static class Owner
+	{
+		final LinkedHashMap<Key, Boolean> mBlocks;
+		final long mQuota;
+		long mUsedSpace;
+
+
+		Owner(long aQuota)
+		{
+			mBlocks = new LinkedHashMap<>(16, 0.75f, true);
+			mQuota = aQuota;
+		}
+	}
+
+
+	private static class Key
+	{
+		final int mOwner;
+		final long mBlockIndex;
+
+
+		Key(int aOwner, long aBlockIndex)
+		{
+			mOwner = aOwner;
+			mBlockIndex = aBlockIndex;
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(mBlockIndex) * 31 + mOwner;
+		}
+
+
+		@Override
+		public boolean equals(Object aOther)
+		{
+			return aOther instanceof Key && ((Key)aOther).mOwner == mOwner && ((Key)aOther).mBlockIndex == mBlockIndex;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+
+/**
+ * Wire protocol shared by BlockStorageServer and RemoteBlockStorage.
+ * <p>
+ * The server starts each connection with a greeting: magic, version, block size and a read only flag. Requests are sent without
+ * waiting for the responses of earlier requests and are processed in the order sent. A request is a header followed by the blocks of a
+ * write, a response is a header followed by the payload: the blocks of a read, the size of the storage or an error message.
+ */
+final class BlockProtocol
+{
+	final static int MAGIC = 0x52424453; // RBDS
+	final static int VERSION = 1;
+
+	final static int GREETING_SIZE = 4 + 4 + 4 + 1;
+	final static int REQUEST_HEADER_SIZE = 4 + 1 + 8 + 4 + 16; // id, op, block index or value, block count or flag, block key
+	final static int RESPONSE_HEADER_SIZE = 4 + 1 + 4; // id, status, payload length
+
+	final static byte OP_READ = 1;
+	final static byte OP_WRITE = 2;
+	final static byte OP_COMMIT = 3;
+	final static byte OP_SIZE = 4;
+	final static byte OP_RESIZE = 5;
+
+	final static byte STATUS_OK = 0;
+	final static byte STATUS_ERROR = 1;
+
+	/**
+	 * Largest number of blocks read or written by a single request, larger transfers are split into several pipelined requests.
+	 */
+	final static int MAX_REQUEST_BLOCKS = 64;
+
+
+	private BlockProtocol()
+	{
+	}
+}
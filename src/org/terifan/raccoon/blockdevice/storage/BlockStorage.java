@@ -18,6 +18,16 @@ public abstract class BlockStorage<T extends BlockStorage> implements BlockDevic
 	}
 
 
+	/**
+	 * @return pairs of the first block and number of blocks of each independent device the storage is made of, or null if the storage
+	 * is a single device. The last device may grow past its size.
+	 */
+	public long[] getRegions()
+	{
+		return null;
+	}
+
+
 	protected void setOpenState()
 	{
 		assertNotOpen();
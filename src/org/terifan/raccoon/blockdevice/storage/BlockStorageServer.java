@@ -0,0 +1,376 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.terifan.logging.Logger;
+import static org.terifan.raccoon.blockdevice.storage.BlockProtocol.*;
+
+
+/**
+ * Exposes a storage to RemoteBlockStorage clients over a TCP or Unix domain socket. Each connection is served by its own thread
+ * processing requests in the order received. Responses to pipelined requests are buffered and sent together when no more requests are
+ * waiting. Reads from a FileBlockStorage are sent directly from the file to the socket using FileChannel.transferTo.
+ * <p>
+ * The storage must be open while the server is running and is not closed by the server. Clients share the storage and only one
+ * device built on top of it may write to it.
+ */
+public class BlockStorageServer implements AutoCloseable
+{
+	private final Logger log = Logger.getLogger();
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final BlockStorage mStorage;
+	private final SocketAddress mAddress;
+	private final Set<SocketChannel> mConnections;
+	private ServerSocketChannel mServerChannel;
+
+
+	/**
+	 * @param aAddress an InetSocketAddress or UnixDomainSocketAddress to listen on
+	 */
+	public BlockStorageServer(BlockStorage aStorage, SocketAddress aAddress)
+	{
+		if (aStorage == null)
+		{
+			throw new IllegalArgumentException("aStorage is null");
+		}
+		if (aAddress == null)
+		{
+			throw new IllegalArgumentException("aAddress is null");
+		}
+
+		mStorage = aStorage;
+		mAddress = aAddress;
+		mConnections = ConcurrentHashMap.newKeySet();
+	}
+
+
+	public synchronized BlockStorageServer start() throws IOException
+	{
+		if (mServerChannel != null)
+		{
+			throw new IllegalStateException("Server already started.");
+		}
+
+		mServerChannel = mAddress instanceof UnixDomainSocketAddress ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+		mServerChannel.bind(mAddress);
+
+		log.i("block server listening on {}", mServerChannel.getLocalAddress());
+
+		Thread thread = new Thread(this::accept, "BlockStorageServer acceptor");
+		thread.setDaemon(true);
+		thread.start();
+
+		return this;
+	}
+
+
+	/**
+	 * @return the address the server is listening on, useful when started on an ephemeral port.
+	 */
+	public SocketAddress getLocalAddress() throws IOException
+	{
+		return mServerChannel.getLocalAddress();
+	}
+
+
+	/**
+	 * Stops accepting connections and closes all connections.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (mServerChannel != null)
+		{
+			mServerChannel.close();
+
+			for (SocketChannel channel : mConnections)
+			{
+				channel.close();
+			}
+		}
+	}
+
+
+	private void accept()
+	{
+		try
+		{
+			for (;;)
+			{
+				SocketChannel channel = mServerChannel.accept();
+
+				if (channel.getLocalAddress() instanceof InetSocketAddress)
+				{
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				}
+
+				mConnections.add(channel);
+
+				Thread thread = new Thread(() -> serve(channel), "BlockStorageServer connection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		catch (ClosedChannelException e)
+		{
+			// server closed
+		}
+		catch (IOException e)
+		{
+			log.e("Block server stopped accepting connections", e);
+		}
+	}
+
+
+	private void serve(SocketChannel aChannel)
+	{
+		log.d("client connected");
+
+		try (aChannel)
+		{
+			new Connection(aChannel).run();
+		}
+		catch (ClosedChannelException | EOFException e)
+		{
+			// client or server closed
+		}
+		catch (IOException e)
+		{
+			log.e("Block server connection failed", e);
+		}
+		finally
+		{
+			mConnections.remove(aChannel);
+
+			log.d("client disconnected");
+		}
+	}
+
+
+	private class Connection
+	{
+		private final SocketChannel mChannel;
+		private final ByteBuffer mInput;
+		private final ByteBuffer mOutput;
+		private final byte[] mBuffer;
+		private final int mBlockSize;
+
+
+		Connection(SocketChannel aChannel)
+		{
+			mChannel = aChannel;
+			mBlockSize = mStorage.getBlockSize();
+			mBuffer = new byte[MAX_REQUEST_BLOCKS * mBlockSize];
+			mInput = ByteBuffer.allocate(BUFFER_SIZE).flip();
+			mOutput = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+
+		void run() throws IOException
+		{
+			mOutput.putInt(MAGIC).putInt(VERSION).putInt(mBlockSize).put((byte)(mStorage.isReadOnly() ? 1 : 0));
+			flush();
+
+			while (fill(REQUEST_HEADER_SIZE))
+			{
+				int id = mInput.getInt();
+				byte op = mInput.get();
+				long value = mInput.getLong();
+				int count = mInput.getInt();
+				int[] blockKey = new int[]{mInput.getInt(), mInput.getInt(), mInput.getInt(), mInput.getInt()};
+
+				if ((op == OP_READ || op == OP_WRITE) && (count < 1 || count > MAX_REQUEST_BLOCKS))
+				{
+					throw new IOException("Illegal block count in request: " + count);
+				}
+
+				if (op == OP_WRITE)
+				{
+					readFully(mBuffer, count * mBlockSize);
+				}
+
+				try
+				{
+					switch (op)
+					{
+						case OP_READ:
+							read(id, value, count, blockKey);
+							break;
+						case OP_WRITE:
+							mStorage.writeBlock(value, mBuffer, 0, count * mBlockSize, blockKey);
+							respond(id, STATUS_OK, 0);
+							break;
+						case OP_COMMIT:
+							mStorage.commit((int)value, count != 0);
+							respond(id, STATUS_OK, 0);
+							break;
+						case OP_SIZE:
+							long size = mStorage.size();
+							respond(id, STATUS_OK, 8);
+							mOutput.putLong(size);
+							break;
+						case OP_RESIZE:
+							mStorage.resize(value);
+							respond(id, STATUS_OK, 0);
+							break;
+						default:
+							throw new IOException("Unsupported operation: " + op);
+					}
+				}
+				catch (RuntimeException e)
+				{
+					byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+					respond(id, STATUS_ERROR, message.length);
+					write(message, 0, message.length);
+				}
+
+				// responses to pipelined requests are sent together
+				if (!mInput.hasRemaining())
+				{
+					flush();
+				}
+			}
+		}
+
+
+		private void read(int aId, long aBlockIndex, int aBlockCount, int[] aBlockKey) throws IOException
+		{
+			int length = aBlockCount * mBlockSize;
+
+			if (mStorage.getClass() == FileBlockStorage.class)
+			{
+				FileChannel fileChannel = ((FileBlockStorage)mStorage).mFileChannel;
+				long position = aBlockIndex * mBlockSize;
+
+				if (position + length <= fileChannel.size())
+				{
+					respond(aId, STATUS_OK, length);
+					flush();
+
+					for (long offset = 0; offset < length;)
+					{
+						offset += fileChannel.transferTo(position + offset, length - offset, mChannel);
+					}
+					return;
+				}
+			}
+
+			mStorage.readBlock(aBlockIndex, mBuffer, 0, length, aBlockKey);
+
+			respond(aId, STATUS_OK, length);
+			write(mBuffer, 0, length);
+		}
+
+
+		private void respond(int aId, byte aStatus, int aLength) throws IOException
+		{
+			if (mOutput.remaining() < RESPONSE_HEADER_SIZE + 8)
+			{
+				flush();
+			}
+
+			mOutput.putInt(aId).put(aStatus).putInt(aLength);
+		}
+
+
+		private void write(byte[] aBuffer, int aOffset, int aLength) throws IOException
+		{
+			while (aLength > 0)
+			{
+				if (!mOutput.hasRemaining())
+				{
+					flush();
+				}
+
+				int length = Math.min(aLength, mOutput.remaining());
+				mOutput.put(aBuffer, aOffset, length);
+				aOffset += length;
+				aLength -= length;
+			}
+		}
+
+
+		private void flush() throws IOException
+		{
+			mOutput.flip();
+
+			while (mOutput.hasRemaining())
+			{
+				mChannel.write(mOutput);
+			}
+
+			mOutput.clear();
+		}
+
+
+		/**
+		 * Reads until the input holds at least the number of bytes requested.
+		 *
+		 * @return false if the connection was closed before a new request
+		 */
+		private boolean fill(int aLength) throws IOException
+		{
+			if (mInput.remaining() >= aLength)
+			{
+				return true;
+			}
+
+			boolean empty = !mInput.hasRemaining();
+
+			mInput.compact();
+
+			try
+			{
+				while (mInput.position() < aLength)
+				{
+					if (mChannel.read(mInput) < 0)
+					{
+						if (empty && mInput.position() == 0)
+						{
+							return false;
+						}
+						throw new EOFException();
+					}
+				}
+			}
+			finally
+			{
+				mInput.flip();
+			}
+
+			return true;
+		}
+
+
+		private void readFully(byte[] aBuffer, int aLength) throws IOException
+		{
+			int offset = Math.min(aLength, mInput.remaining());
+			mInput.get(aBuffer, 0, offset);
+
+			ByteBuffer buffer = ByteBuffer.wrap(aBuffer, offset, aLength - offset);
+
+			while (buffer.hasRemaining())
+			{
+				if (mChannel.read(buffer) < 0)
+				{
+					throw new EOFException();
+				}
+			}
+		}
+	}
+}
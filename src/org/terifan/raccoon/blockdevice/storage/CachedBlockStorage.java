@@ -0,0 +1,206 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.util.Arrays;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+
+
+/**
+ * A storage keeping recently used blocks of another storage in a BlockCache shared with other storages. Writes are passed through to
+ * the storage and update the cache. A read is served from the cache only when all blocks of the read are cached, otherwise the whole
+ * range is read from the storage.
+ */
+public class CachedBlockStorage extends BlockStorage<CachedBlockStorage>
+{
+	private final Logger log = Logger.getLogger();
+
+	private final BlockStorage mBlockStorage;
+	private final BlockCache mBlockCache;
+	private final long mQuota;
+	private int mOwner;
+	private int mBlockSize;
+
+
+	/**
+	 * @param aQuota maximum number of bytes this storage may occupy in the cache
+	 */
+	public CachedBlockStorage(BlockStorage aBlockStorage, BlockCache aBlockCache, long aQuota)
+	{
+		if (aBlockStorage == null)
+		{
+			throw new IllegalArgumentException("aBlockStorage is null");
+		}
+		if (aBlockCache == null)
+		{
+			throw new IllegalArgumentException("aBlockCache is null");
+		}
+		if (aQuota < 0)
+		{
+			throw new IllegalArgumentException("aQuota is negative");
+		}
+
+		mBlockStorage = aBlockStorage;
+		mBlockCache = aBlockCache;
+		mQuota = aQuota;
+	}
+
+
+	@Override
+	public CachedBlockStorage open(BlockDeviceOpenOption aOptions)
+	{
+		setOpenState();
+
+		try
+		{
+			mBlockStorage.open(aOptions);
+		}
+		catch (RuntimeException e)
+		{
+			setClosedState();
+			throw e;
+		}
+
+		mBlockSize = mBlockStorage.getBlockSize();
+		mOwner = mBlockCache.register(mQuota);
+
+		return this;
+	}
+
+
+	public BlockCache getBlockCache()
+	{
+		return mBlockCache;
+	}
+
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return mBlockStorage.isReadOnly();
+	}
+
+
+	@Override
+	public long[] getRegions()
+	{
+		return mBlockStorage.getRegions();
+	}
+
+
+	@Override
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+
+		int count = aBufferLength / mBlockSize;
+		byte[][] blocks = new byte[count][];
+
+		for (int i = 0; i < count; i++)
+		{
+			blocks[i] = mBlockCache.get(mOwner, aBlockIndex + i);
+
+			if (blocks[i] == null)
+			{
+				log.t("cache miss {} +{}", aBlockIndex, count);
+
+				mBlockStorage.readBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+
+				put(aBlockIndex, aBuffer, aBufferOffset, aBufferLength);
+				return;
+			}
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			System.arraycopy(blocks[i], 0, aBuffer, aBufferOffset + i * mBlockSize, mBlockSize);
+		}
+	}
+
+
+	@Override
+	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+
+		try
+		{
+			mBlockStorage.writeBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+		}
+		catch (RuntimeException e)
+		{
+			for (int i = 0, count = aBufferLength / mBlockSize; i < count; i++)
+			{
+				mBlockCache.remove(mOwner, aBlockIndex + i);
+			}
+			throw e;
+		}
+
+		put(aBlockIndex, aBuffer, aBufferOffset, aBufferLength);
+	}
+
+
+	@Override
+	public void commit(int aIndex, boolean aMetadata)
+	{
+		assertOpen();
+
+		mBlockStorage.commit(aIndex, aMetadata);
+	}
+
+
+	@Override
+	public long size()
+	{
+		assertOpen();
+
+		return mBlockStorage.size();
+	}
+
+
+	@Override
+	public void resize(long aNumberOfBlocks)
+	{
+		assertOpen();
+
+		mBlockCache.removeFrom(mOwner, aNumberOfBlocks);
+
+		mBlockStorage.resize(aNumberOfBlocks);
+	}
+
+
+	@Override
+	public int getBlockSize()
+	{
+		return mBlockStorage.getBlockSize();
+	}
+
+
+	/**
+	 * Removes the blocks of this storage from the cache and closes the storage.
+	 */
+	@Override
+	public void close()
+	{
+		setClosedState();
+
+		mBlockCache.unregister(mOwner);
+
+		mBlockStorage.close();
+	}
+
+
+	private void put(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength)
+	{
+		for (int offset = 0; offset < aBufferLength; offset += mBlockSize)
+		{
+			mBlockCache.put(mOwner, aBlockIndex + offset / mBlockSize, Arrays.copyOfRange(aBuffer, aBufferOffset + offset, aBufferOffset + offset + mBlockSize));
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "CachedBlockStorage{storage=" + mBlockStorage + ", quota=" + mQuota + "}";
+	}
+}
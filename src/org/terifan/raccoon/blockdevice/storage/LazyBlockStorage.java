@@ -0,0 +1,324 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+
+
+/**
+ * A storage releasing the file handles and connections of another storage while it's idle. The storage is closed by closeIfIdle when
+ * it hasn't been used for a while and all its writes have been committed, and is opened again by the next call using it. Reopening
+ * uses the OPEN or READ_ONLY option whatever option the storage was first opened with.
+ * <p>
+ * Note: a file lock held by the storage is released while the storage is closed.
+ */
+public class LazyBlockStorage extends BlockStorage<LazyBlockStorage>
+{
+	private final Logger log = Logger.getLogger();
+
+	private final BlockStorage mBlockStorage;
+	private final Consumer<LazyBlockStorage> mCloseListener;
+	private final ReentrantReadWriteLock mLock;
+	private BlockDeviceOpenOption mReopenOption;
+	private volatile long mLastAccessTime;
+	private volatile boolean mModified;
+	private volatile boolean mStorageOpen;
+	private volatile int mReopenCount;
+
+
+	public LazyBlockStorage(BlockStorage aBlockStorage)
+	{
+		this(aBlockStorage, null);
+	}
+
+
+	/**
+	 * @param aCloseListener called when this storage is closed, null if not used
+	 */
+	public LazyBlockStorage(BlockStorage aBlockStorage, Consumer<LazyBlockStorage> aCloseListener)
+	{
+		if (aBlockStorage == null)
+		{
+			throw new IllegalArgumentException("aBlockStorage is null");
+		}
+
+		mBlockStorage = aBlockStorage;
+		mCloseListener = aCloseListener;
+		mLock = new ReentrantReadWriteLock();
+	}
+
+
+	@Override
+	public LazyBlockStorage open(BlockDeviceOpenOption aOptions)
+	{
+		mLock.writeLock().lock();
+
+		try
+		{
+			setOpenState();
+
+			try
+			{
+				mBlockStorage.open(aOptions);
+			}
+			catch (RuntimeException e)
+			{
+				setClosedState();
+				throw e;
+			}
+
+			mReopenOption = aOptions == BlockDeviceOpenOption.READ_ONLY ? BlockDeviceOpenOption.READ_ONLY : BlockDeviceOpenOption.OPEN;
+			mStorageOpen = true;
+			mModified = false;
+			mLastAccessTime = System.nanoTime();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+
+		return this;
+	}
+
+
+	/**
+	 * Closes the underlying storage if it hasn't been used for the time specified and has no uncommitted writes. Calls in progress are
+	 * never waited for.
+	 *
+	 * @return true if the underlying storage was closed
+	 */
+	public boolean closeIfIdle(long aIdleMillis)
+	{
+		if (!mLock.writeLock().tryLock())
+		{
+			return false;
+		}
+
+		try
+		{
+			if (!isOpen() || !mStorageOpen || mModified || System.nanoTime() - mLastAccessTime < TimeUnit.MILLISECONDS.toNanos(aIdleMillis))
+			{
+				return false;
+			}
+
+			log.d("close idle storage");
+
+			mStorageOpen = false;
+			mBlockStorage.close();
+
+			return true;
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return true if the underlying storage is open.
+	 */
+	public boolean isStorageOpen()
+	{
+		return mStorageOpen;
+	}
+
+
+	/**
+	 * @return number of times the underlying storage has been opened again after being idle.
+	 */
+	public int getReopenCount()
+	{
+		return mReopenCount;
+	}
+
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return mReopenOption == BlockDeviceOpenOption.READ_ONLY;
+	}
+
+
+	@Override
+	public long[] getRegions()
+	{
+		acquire();
+		try
+		{
+			return mBlockStorage.getRegions();
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		acquire();
+		try
+		{
+			mBlockStorage.readBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		acquire();
+		try
+		{
+			mModified = true;
+			mBlockStorage.writeBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void commit(int aIndex, boolean aMetadata)
+	{
+		acquire();
+		try
+		{
+			// a write made while committing keeps the storage modified
+			mModified = false;
+			mBlockStorage.commit(aIndex, aMetadata);
+		}
+		catch (RuntimeException e)
+		{
+			mModified = true;
+			throw e;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public long size()
+	{
+		acquire();
+		try
+		{
+			return mBlockStorage.size();
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void resize(long aNumberOfBlocks)
+	{
+		acquire();
+		try
+		{
+			mModified = true;
+			mBlockStorage.resize(aNumberOfBlocks);
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public int getBlockSize()
+	{
+		return mBlockStorage.getBlockSize();
+	}
+
+
+	@Override
+	public void close()
+	{
+		mLock.writeLock().lock();
+
+		try
+		{
+			setClosedState();
+
+			if (mStorageOpen)
+			{
+				mStorageOpen = false;
+				mBlockStorage.close();
+			}
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+
+		if (mCloseListener != null)
+		{
+			mCloseListener.accept(this);
+		}
+	}
+
+
+	/**
+	 * Takes the read lock opening the underlying storage again if it was closed while idle.
+	 */
+	private void acquire()
+	{
+		mLock.readLock().lock();
+
+		if (mStorageOpen)
+		{
+			mLastAccessTime = System.nanoTime();
+			return;
+		}
+
+		mLock.readLock().unlock();
+		mLock.writeLock().lock();
+
+		try
+		{
+			assertOpen();
+
+			if (!mStorageOpen)
+			{
+				log.d("reopen idle storage");
+
+				mBlockStorage.open(mReopenOption);
+				mStorageOpen = true;
+				mReopenCount++;
+			}
+
+			mLastAccessTime = System.nanoTime();
+
+			// downgrade to the read lock
+			mLock.readLock().lock();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "LazyBlockStorage{storage=" + mBlockStorage + ", open=" + mStorageOpen + ", reopened=" + mReopenCount + "}";
+	}
+}
@@ -0,0 +1,442 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.RaccoonIOException;
+
+
+/**
+ * A storage concatenating several storages into one block address space. Each member covers a range of blocks following the previous
+ * member, the last member grows past its capacity like a single storage. Members can be added while the pool is open, the new member is
+ * placed after the end of the last member.
+ * <p>
+ * The first block of each member holds a label describing its place in the pool, the members of an existing pool can be added in any
+ * order before the pool is opened. Members added to an open pool must be added by the thread writing to the pool.
+ */
+public class PooledBlockStorage extends BlockStorage<PooledBlockStorage>
+{
+	private final Logger log = Logger.getLogger();
+
+	private final static int LABEL_MAGIC = 0x52424450; // RBDP
+	private final static int LABEL_VERSION = 1;
+
+	private final ArrayList<Member> mPendingMembers;
+	private volatile Member[] mMembers;
+	private int mBlockSize;
+	private long mPoolId;
+	private boolean mReadOnly;
+
+
+	public PooledBlockStorage()
+	{
+		this(4096);
+	}
+
+
+	public PooledBlockStorage(int aBlockSize)
+	{
+		mBlockSize = aBlockSize;
+		mPendingMembers = new ArrayList<>();
+		mMembers = new Member[0];
+	}
+
+
+	/**
+	 * Adds a storage to the pool. A member added to an open pool is replaced and placed after the end of the last member.
+	 *
+	 * @param aCapacity number of blocks of the member used before the next member, ignored for members of an existing pool
+	 */
+	public synchronized PooledBlockStorage addMember(BlockStorage aStorage, long aCapacity)
+	{
+		if (aStorage == null)
+		{
+			throw new IllegalArgumentException("aStorage is null");
+		}
+		if (aStorage.getBlockSize() != mBlockSize)
+		{
+			throw new IllegalArgumentException("Member block size differ from pool: " + aStorage.getBlockSize());
+		}
+		if (aCapacity <= 0)
+		{
+			throw new IllegalArgumentException("aCapacity must be positive: " + aCapacity);
+		}
+
+		Member member = new Member(aStorage, aCapacity);
+
+		if (!isOpen())
+		{
+			mPendingMembers.add(member);
+			return this;
+		}
+		if (mReadOnly)
+		{
+			throw new IllegalStateException("Pool is read only.");
+		}
+
+		Member last = mMembers[mMembers.length - 1];
+		long end = last.mStart + Math.max(last.mCapacity, last.getDataSize());
+
+		log.i("adding pool member {} at block {}", mMembers.length, end);
+
+		if (end > last.mStart + last.mCapacity)
+		{
+			// the last member has grown past its capacity and is sealed at its current size
+			last.mCapacity = end - last.mStart;
+			writeLabel(last);
+		}
+
+		aStorage.open(BlockDeviceOpenOption.REPLACE);
+
+		member.mIndex = mMembers.length;
+		member.mStart = end;
+		writeLabel(member);
+
+		last.mStorage.commit(1, true);
+		aStorage.commit(1, true);
+
+		Member[] members = Arrays.copyOf(mMembers, mMembers.length + 1);
+		members[members.length - 1] = member;
+		mMembers = members;
+
+		return this;
+	}
+
+
+	public int getMemberCount()
+	{
+		return isOpen() ? mMembers.length : mPendingMembers.size();
+	}
+
+
+	@Override
+	public synchronized PooledBlockStorage open(BlockDeviceOpenOption aOptions)
+	{
+		if (mPendingMembers.isEmpty())
+		{
+			throw new IllegalStateException("Pool has no members.");
+		}
+
+		setOpenState();
+
+		mReadOnly = aOptions == BlockDeviceOpenOption.READ_ONLY;
+
+		for (Member member : mPendingMembers)
+		{
+			member.mStorage.open(aOptions);
+		}
+
+		boolean empty = mPendingMembers.stream().allMatch(e -> e.mStorage.size() == 0);
+
+		if (aOptions == BlockDeviceOpenOption.REPLACE || aOptions == BlockDeviceOpenOption.CREATE && empty)
+		{
+			log.d("create pool with {} members", mPendingMembers.size());
+
+			mPoolId = new SecureRandom().nextLong();
+
+			long start = 0;
+			for (int i = 0; i < mPendingMembers.size(); i++)
+			{
+				Member member = mPendingMembers.get(i);
+				member.mIndex = i;
+				member.mStart = start;
+				writeLabel(member);
+				start += member.mCapacity;
+			}
+		}
+		else
+		{
+			for (int i = 0; i < mPendingMembers.size(); i++)
+			{
+				readLabel(mPendingMembers.get(i), i == 0);
+			}
+
+			mPendingMembers.sort(Comparator.comparingInt(e -> e.mIndex));
+
+			for (int i = 0; i < mPendingMembers.size(); i++)
+			{
+				Member member = mPendingMembers.get(i);
+				if (member.mIndex != i || member.mStart != (i == 0 ? 0 : mPendingMembers.get(i - 1).mStart + mPendingMembers.get(i - 1).mCapacity))
+				{
+					throw new RaccoonIOException("Pool member missing or misplaced: " + i);
+				}
+			}
+		}
+
+		mMembers = mPendingMembers.toArray(Member[]::new);
+		mPendingMembers.clear();
+
+		return this;
+	}
+
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return mReadOnly;
+	}
+
+
+	@Override
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+
+		Member[] members = mMembers;
+
+		while (aBufferLength > 0)
+		{
+			int i = indexOf(members, aBlockIndex);
+			long blockCount = Math.min(aBufferLength / mBlockSize, getEnd(members, i) - aBlockIndex);
+			int length = (int)blockCount * mBlockSize;
+
+			members[i].mStorage.readBlock(1 + aBlockIndex - members[i].mStart, aBuffer, aBufferOffset, length, aBlockKey);
+
+			aBlockIndex += blockCount;
+			aBufferOffset += length;
+			aBufferLength -= length;
+		}
+	}
+
+
+	@Override
+	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+
+		if (mReadOnly)
+		{
+			throw new IllegalStateException("Pool is read only.");
+		}
+
+		Member[] members = mMembers;
+
+		while (aBufferLength > 0)
+		{
+			int i = indexOf(members, aBlockIndex);
+			long blockCount = Math.min(aBufferLength / mBlockSize, getEnd(members, i) - aBlockIndex);
+			int length = (int)blockCount * mBlockSize;
+
+			members[i].mStorage.writeBlock(1 + aBlockIndex - members[i].mStart, aBuffer, aBufferOffset, length, aBlockKey);
+
+			aBlockIndex += blockCount;
+			aBufferOffset += length;
+			aBufferLength -= length;
+		}
+	}
+
+
+	@Override
+	public void commit(int aIndex, boolean aMetadata)
+	{
+		assertOpen();
+
+		for (Member member : mMembers)
+		{
+			member.mStorage.commit(aIndex, aMetadata);
+		}
+	}
+
+
+	/**
+	 * Closes all members. The members are kept by the pool and can be opened again.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		setClosedState();
+
+		try
+		{
+			for (Member member : mMembers)
+			{
+				member.mStorage.close();
+			}
+		}
+		finally
+		{
+			mPendingMembers.addAll(Arrays.asList(mMembers));
+			mMembers = new Member[0];
+		}
+	}
+
+
+	@Override
+	public int getBlockSize()
+	{
+		return mBlockSize;
+	}
+
+
+	@Override
+	public long size()
+	{
+		assertOpen();
+
+		Member[] members = mMembers;
+
+		for (int i = members.length; --i >= 0;)
+		{
+			long dataSize = members[i].getDataSize();
+
+			if (dataSize > 0)
+			{
+				return members[i].mStart + dataSize;
+			}
+		}
+
+		return 0;
+	}
+
+
+	@Override
+	public void resize(long aNumberOfBlocks)
+	{
+		assertOpen();
+
+		if (mReadOnly)
+		{
+			throw new IllegalStateException("Pool is read only.");
+		}
+
+		Member[] members = mMembers;
+
+		for (int i = 0; i < members.length; i++)
+		{
+			long dataSize = Math.max(0, Math.min(aNumberOfBlocks, getEnd(members, i)) - members[i].mStart);
+
+			if (dataSize < members[i].getDataSize())
+			{
+				members[i].mStorage.resize(1 + dataSize);
+			}
+		}
+	}
+
+
+	/**
+	 * @return pairs of the first block and number of blocks of each member.
+	 */
+	@Override
+	public long[] getRegions()
+	{
+		Member[] members = mMembers;
+		long[] regions = new long[2 * members.length];
+
+		for (int i = 0; i < members.length; i++)
+		{
+			regions[2 * i] = members[i].mStart;
+			regions[2 * i + 1] = i + 1 < members.length ? members[i].mCapacity : Math.max(members[i].mCapacity, members[i].getDataSize());
+		}
+
+		return regions;
+	}
+
+
+	private static int indexOf(Member[] aMembers, long aBlockIndex)
+	{
+		int i = aMembers.length;
+		while (--i > 0 && aMembers[i].mStart > aBlockIndex)
+		{
+		}
+		return i;
+	}
+
+
+	private static long getEnd(Member[] aMembers, int aIndex)
+	{
+		return aIndex + 1 < aMembers.length ? aMembers[aIndex + 1].mStart : Long.MAX_VALUE;
+	}
+
+
+	private void writeLabel(Member aMember)
+	{
+		byte[] buffer = new byte[mBlockSize];
+
+		ByteBuffer.wrap(buffer)
+			.putInt(LABEL_MAGIC)
+			.putInt(LABEL_VERSION)
+			.putInt(mBlockSize)
+			.putLong(mPoolId)
+			.putInt(aMember.mIndex)
+			.putLong(aMember.mStart)
+			.putLong(aMember.mCapacity);
+
+		aMember.mStorage.writeBlock(0, buffer, 0, mBlockSize, new int[4]);
+	}
+
+
+	private void readLabel(Member aMember, boolean aFirst)
+	{
+		if (aMember.mStorage.size() == 0)
+		{
+			throw new RaccoonIOException("Storage is not a member of a pool.");
+		}
+
+		byte[] buffer = new byte[mBlockSize];
+
+		aMember.mStorage.readBlock(0, buffer, 0, mBlockSize, new int[4]);
+
+		ByteBuffer label = ByteBuffer.wrap(buffer);
+
+		if (label.getInt() != LABEL_MAGIC)
+		{
+			throw new RaccoonIOException("Storage is not a member of a pool.");
+		}
+		if (label.getInt() != LABEL_VERSION)
+		{
+			throw new RaccoonIOException("Unsupported pool label version.");
+		}
+		if (label.getInt() != mBlockSize)
+		{
+			throw new RaccoonIOException("Pool member has a different block size.");
+		}
+
+		long poolId = label.getLong();
+
+		if (aFirst)
+		{
+			mPoolId = poolId;
+		}
+		else if (poolId != mPoolId)
+		{
+			throw new RaccoonIOException("Storage is a member of another pool.");
+		}
+
+		aMember.mIndex = label.getInt();
+		aMember.mStart = label.getLong();
+		aMember.mCapacity = label.getLong();
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "PooledBlockStorage{blockSize=" + mBlockSize + ", members=" + getMemberCount() + "}";
+	}
+
+
+	private static class Member
+	{
+		final BlockStorage mStorage;
+		int mIndex;
+		long mStart;
+		long mCapacity;
+
+
+		Member(BlockStorage aStorage, long aCapacity)
+		{
+			mStorage = aStorage;
+			mCapacity = aCapacity;
+		}
+
+
+		long getDataSize()
+		{
+			return Math.max(0, mStorage.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.terifan.logging.Logger;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.RaccoonIOException;
+import static org.terifan.raccoon.blockdevice.storage.BlockProtocol.*;
+
+
+/**
+ * A storage served by a BlockStorageServer. Requests are pipelined over a single connection: large reads and writes are split into
+ * several requests sent without waiting for the responses, and writes return as soon as they are sent. A failed write is reported by
+ * the next commit. Responses are received by a background thread.
+ */
+public class RemoteBlockStorage extends BlockStorage<RemoteBlockStorage>
+{
+	private final Logger log = Logger.getLogger();
+
+	private final static int MAX_IN_FLIGHT = 256;
+
+	private final SocketAddress mAddress;
+	private final ConcurrentHashMap<Integer, Request> mRequests;
+	private final AtomicInteger mNextId;
+	private final Semaphore mInFlight;
+	private final ByteBuffer mHeader;
+	private SocketChannel mChannel;
+	private int mBlockSize;
+	private boolean mReadOnly;
+	private volatile boolean mClosing;
+	private volatile RaccoonIOException mFailure;
+
+
+	public RemoteBlockStorage(SocketAddress aAddress)
+	{
+		this(aAddress, 4096);
+	}
+
+
+	/**
+	 * @param aBlockSize expected block size of the remote storage
+	 */
+	public RemoteBlockStorage(SocketAddress aAddress, int aBlockSize)
+	{
+		mAddress = aAddress;
+		mBlockSize = aBlockSize;
+		mRequests = new ConcurrentHashMap<>();
+		mNextId = new AtomicInteger();
+		mInFlight = new Semaphore(MAX_IN_FLIGHT);
+		mHeader = ByteBuffer.allocate(REQUEST_HEADER_SIZE);
+	}
+
+
+	/**
+	 * Connects to the server. The REPLACE option truncates the remote storage.
+	 */
+	@Override
+	public RemoteBlockStorage open(BlockDeviceOpenOption aOptions)
+	{
+		setOpenState();
+
+		mReadOnly = aOptions == BlockDeviceOpenOption.READ_ONLY;
+		mClosing = false;
+		mFailure = null;
+
+		try
+		{
+			mChannel = SocketChannel.open(mAddress);
+
+			if (mChannel.getLocalAddress() instanceof InetSocketAddress)
+			{
+				mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+
+			ByteBuffer greeting = ByteBuffer.allocate(GREETING_SIZE);
+			readFully(greeting);
+			greeting.flip();
+
+			if (greeting.getInt() != MAGIC || greeting.getInt() != VERSION)
+			{
+				throw new RaccoonIOException("Not a supported block server: " + mAddress);
+			}
+			if (greeting.getInt() != mBlockSize)
+			{
+				throw new RaccoonIOException("Remote storage has a different block size.");
+			}
+			if (greeting.get() != 0 && !mReadOnly)
+			{
+				throw new RaccoonIOException("Remote storage is read only.");
+			}
+		}
+		catch (IOException e)
+		{
+			closeChannel();
+			setClosedState();
+			throw new RaccoonIOException("Failed to connect to block server: " + mAddress, e);
+		}
+		catch (RuntimeException e)
+		{
+			closeChannel();
+			setClosedState();
+			throw e;
+		}
+
+		Thread thread = new Thread(this::receive, "RemoteBlockStorage receiver");
+		thread.setDaemon(true);
+		thread.start();
+
+		if (aOptions == BlockDeviceOpenOption.REPLACE)
+		{
+			resize(0);
+		}
+
+		return this;
+	}
+
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return mReadOnly;
+	}
+
+
+	@Override
+	public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+
+		log.t("read block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
+
+		ArrayList<Request> requests = new ArrayList<>();
+
+		for (int offset = 0; offset < aBufferLength;)
+		{
+			int length = Math.min(aBufferLength - offset, MAX_REQUEST_BLOCKS * mBlockSize);
+
+			Request request = new Request(aBuffer, aBufferOffset + offset, length);
+			send(OP_READ, aBlockIndex + offset / mBlockSize, length / mBlockSize, aBlockKey, request, null, 0, 0);
+			requests.add(request);
+
+			offset += length;
+		}
+
+		for (Request request : requests)
+		{
+			await(request);
+		}
+	}
+
+
+	@Override
+	public void writeBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+	{
+		assertOpen();
+		assertWritable();
+
+		log.t("write block {} +{}", aBlockIndex, aBufferLength / mBlockSize);
+
+		for (int offset = 0; offset < aBufferLength;)
+		{
+			int length = Math.min(aBufferLength - offset, MAX_REQUEST_BLOCKS * mBlockSize);
+
+			send(OP_WRITE, aBlockIndex + offset / mBlockSize, length / mBlockSize, aBlockKey, new Request(), aBuffer, aBufferOffset + offset, length);
+
+			offset += length;
+		}
+	}
+
+
+	/**
+	 * Commits the remote storage after all writes sent before have been applied.
+	 */
+	@Override
+	public void commit(int aIndex, boolean aMetadata)
+	{
+		assertOpen();
+
+		Request request = new Request(null, 0, 0);
+		send(OP_COMMIT, aIndex, aMetadata ? 1 : 0, null, request, null, 0, 0);
+		await(request);
+
+		checkFailure();
+	}
+
+
+	@Override
+	public long size()
+	{
+		assertOpen();
+
+		Request request = new Request(null, 0, 0);
+		send(OP_SIZE, 0, 0, null, request, null, 0, 0);
+
+		return await(request);
+	}
+
+
+	@Override
+	public void resize(long aNumberOfBlocks)
+	{
+		assertOpen();
+		assertWritable();
+
+		Request request = new Request(null, 0, 0);
+		send(OP_RESIZE, aNumberOfBlocks, 0, null, request, null, 0, 0);
+		await(request);
+	}
+
+
+	@Override
+	public int getBlockSize()
+	{
+		return mBlockSize;
+	}
+
+
+	/**
+	 * Closes the connection. Writes not yet committed may be lost.
+	 */
+	@Override
+	public void close()
+	{
+		setClosedState();
+
+		mClosing = true;
+
+		closeChannel();
+	}
+
+
+	private void assertWritable()
+	{
+		if (mReadOnly)
+		{
+			throw new IllegalStateException("Storage is read only.");
+		}
+	}
+
+
+	private void checkFailure()
+	{
+		if (mFailure != null)
+		{
+			throw mFailure;
+		}
+	}
+
+
+	private void send(byte aOp, long aValue, int aCount, int[] aBlockKey, Request aRequest, byte[] aPayload, int aPayloadOffset, int aPayloadLength)
+	{
+		checkFailure();
+
+		try
+		{
+			mInFlight.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RaccoonIOException("Interrupted while waiting for block server", e);
+		}
+
+		int id = mNextId.incrementAndGet();
+		mRequests.put(id, aRequest);
+
+		try
+		{
+			synchronized (mHeader)
+			{
+				mHeader.clear();
+				mHeader.putInt(id).put(aOp).putLong(aValue).putInt(aCount);
+				for (int i = 0; i < 4; i++)
+				{
+					mHeader.putInt(aBlockKey == null ? 0 : aBlockKey[i]);
+				}
+				mHeader.flip();
+
+				ByteBuffer[] buffers = {mHeader, ByteBuffer.wrap(aPayload == null ? new byte[0] : aPayload, aPayloadOffset, aPayloadLength)};
+
+				while (buffers[1].hasRemaining() || mHeader.hasRemaining())
+				{
+					mChannel.write(buffers);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			fail(new RaccoonIOException("Failed to send request to block server", e));
+			throw mFailure;
+		}
+	}
+
+
+	private long await(Request aRequest)
+	{
+		try
+		{
+			return aRequest.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RaccoonIOException("Interrupted while waiting for block server", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RaccoonIOException)
+			{
+				throw (RaccoonIOException)e.getCause();
+			}
+			throw new RaccoonIOException(e.getCause());
+		}
+	}
+
+
+	private void receive()
+	{
+		ByteBuffer header = ByteBuffer.allocate(RESPONSE_HEADER_SIZE);
+
+		try
+		{
+			for (;;)
+			{
+				header.clear();
+				readFully(header);
+				header.flip();
+
+				int id = header.getInt();
+				byte status = header.get();
+				int length = header.getInt();
+
+				Request request = mRequests.remove(id);
+
+				if (request == null)
+				{
+					throw new IOException("Response to unknown request: " + id);
+				}
+
+				if (status != STATUS_OK)
+				{
+					ByteBuffer message = ByteBuffer.allocate(length);
+					readFully(message);
+
+					RaccoonIOException error = new RaccoonIOException("Block server error: " + new String(message.array(), StandardCharsets.UTF_8));
+
+					if (request.mAsync && mFailure == null)
+					{
+						mFailure = error;
+					}
+
+					request.completeExceptionally(error);
+				}
+				else if (request.mBuffer != null)
+				{
+					if (length != request.mLength)
+					{
+						throw new IOException("Unexpected response length: " + length);
+					}
+
+					readFully(ByteBuffer.wrap(request.mBuffer, request.mOffset, length));
+
+					request.complete(0L);
+				}
+				else if (length == 8)
+				{
+					ByteBuffer value = ByteBuffer.allocate(8);
+					readFully(value);
+
+					request.complete(value.getLong(0));
+				}
+				else
+				{
+					request.complete(0L);
+				}
+
+				mInFlight.release();
+			}
+		}
+		catch (IOException e)
+		{
+			fail(new RaccoonIOException(mClosing ? "Storage closed" : "Connection to block server lost", e));
+		}
+	}
+
+
+	private synchronized void fail(RaccoonIOException aFailure)
+	{
+		if (mFailure == null)
+		{
+			if (!mClosing)
+			{
+				log.e("Remote block storage failed", aFailure);
+			}
+
+			mFailure = aFailure;
+		}
+
+		closeChannel();
+
+		for (Integer id : mRequests.keySet())
+		{
+			Request request = mRequests.remove(id);
+
+			if (request != null)
+			{
+				request.completeExceptionally(aFailure);
+				mInFlight.release();
+			}
+		}
+	}
+
+
+	private void closeChannel()
+	{
+		try
+		{
+			if (mChannel != null)
+			{
+				mChannel.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// nothing to do
+		}
+	}
+
+
+	private void readFully(ByteBuffer aBuffer) throws IOException
+	{
+		while (aBuffer.hasRemaining())
+		{
+			if (mChannel.read(aBuffer) < 0)
+			{
+				throw new EOFException();
+			}
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "RemoteBlockStorage{address=" + mAddress + ", blockSize=" + mBlockSize + ", inFlight=" + mRequests.size() + "}";
+	}
+
+
+	/**
+	 * A request waiting for its response, completed with the value of the response.
+	 */
+	private static class Request extends CompletableFuture<Long>
+	{
+		final byte[] mBuffer;
+		final int mOffset;
+		final int mLength;
+		final boolean mAsync;
+
+
+		/**
+		 * A write not waited for.
+		 */
+		Request()
+		{
+			mBuffer = null;
+			mOffset = 0;
+			mLength = 0;
+			mAsync = true;
+		}
+
+
+		/**
+		 * @param aBuffer destination of the blocks read or null
+		 */
+		Request(byte[] aBuffer, int aOffset, int aLength)
+		{
+			mBuffer = aBuffer;
+			mOffset = aOffset;
+			mLength = aLength;
+			mAsync = false;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.terifan.raccoon.blockdevice.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Runs tasks one at a time in the order submitted using the threads of another executor. Allows many users to share a thread pool
+ * while each one keeps its tasks ordered.
+ */
+public class SerialExecutor implements Executor
+{
+	private final Executor mExecutor;
+	private final ArrayDeque<Runnable> mTasks;
+	private Runnable mActive;
+
+
+	public SerialExecutor(Executor aExecutor)
+	{
+		if (aExecutor == null)
+		{
+			throw new IllegalArgumentException("aExecutor is null");
+		}
+
+		mExecutor = aExecutor;
+		mTasks = new ArrayDeque<>();
+	}
+
+
+	@Override
+	public synchronized void execute(Runnable aTask)
+	{
+		mTasks.add(() ->
+		{
+			try
+			{
+				aTask.run();
+			}
+			finally
+			{
+				scheduleNext();
+			}
+		});
+
+		if (mActive == null)
+		{
+			scheduleNext();
+		}
+	}
+
+
+	private synchronized void scheduleNext()
+	{
+		mActive = mTasks.poll();
+
+		if (mActive != null)
+		{
+			mExecutor.execute(mActive);
+		}
+	}
+}
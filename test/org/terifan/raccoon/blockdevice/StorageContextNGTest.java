@@ -0,0 +1,53 @@
+package org.terifan.raccoon.blockdevice;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.terifan.raccoon.blockdevice.compressor.CompressorAlgorithm;
+import org.terifan.raccoon.blockdevice.compressor.CompressorPool;
+import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
+import org.terifan.raccoon.blockdevice.storage.MemoryBlockStorage;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+
+public class StorageContextNGTest
+{
+	@Test
+	public void testCompressorPoolCapacityChange() throws Exception
+	{
+		byte[] input = new byte[3 * 4096];
+		Random rnd = new Random(1);
+		for (int i = 0; i < input.length; i++)
+		{
+			input[i] = (byte)rnd.nextInt(4);
+		}
+
+		try (StorageContext context = new StorageContext(1 << 20))
+		{
+			ManagedBlockDevice device = new RaccoonStorageInstance(new MemoryBlockStorage(4096), context).open(BlockDeviceOpenOption.CREATE);
+			device.open(BlockDeviceOpenOption.CREATE);
+
+			try (BlockAccessor accessor = new BlockAccessor(device, true))
+			{
+				BlockPointer blockPointer = accessor.writeBlock(input, BlockType.BTREE_NODE, 0, CompressorAlgorithm.DEFLATE_DEFAULT.ordinal());
+
+				CompressorPool pool = device.getCompressorPool();
+				assertSame(pool, context.getCompressorPool());
+
+				context.setCompressorPoolCapacity(4);
+
+				// the open device follows the context to the new pool
+				assertTrue(pool.isClosed());
+				assertSame(device.getCompressorPool(), context.getCompressorPool());
+				assertFalse(device.getCompressorPool().isClosed());
+				assertEquals(device.getCompressorPool().getCapacity(), 4);
+
+				assertTrue(Arrays.equals(accessor.readBlock(blockPointer), input));
+
+				blockPointer = accessor.writeBlock(input, BlockType.BTREE_NODE, 0, CompressorAlgorithm.DEFLATE_DEFAULT.ordinal());
+				assertTrue(blockPointer.getPhysicalSize() < input.length);
+				assertTrue(Arrays.equals(accessor.readBlock(blockPointer), input));
+			}
+		}
+	}
+}
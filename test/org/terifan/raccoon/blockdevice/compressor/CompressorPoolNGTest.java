@@ -0,0 +1,44 @@
+package org.terifan.raccoon.blockdevice.compressor;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+
+public class CompressorPoolNGTest
+{
+	@Test
+	public void testPooledCompression()
+	{
+		CompressorPool pool = new CompressorPool(2);
+
+		byte[] input = new byte[64 * 1024];
+		Random rnd = new Random(1);
+		for (int i = 0; i < input.length; i++)
+		{
+			input[i] = (byte)rnd.nextInt(4);
+		}
+
+		for (int algorithm = CompressorAlgorithm.DEFLATE_FAST.ordinal(); algorithm <= CompressorAlgorithm.DEFLATE_BEST.ordinal(); algorithm++)
+		{
+			for (int i = 0; i < 5; i++)
+			{
+				if (i == 3)
+				{
+					// instances returned to a closed pool are released and new ones created
+					pool.close();
+				}
+
+				ByteBlockOutputStream baos = new ByteBlockOutputStream(512);
+				assertTrue(CompressorAlgorithm.compress(algorithm, input, 0, input.length, baos, pool));
+
+				byte[] output = new byte[input.length];
+				assertTrue(CompressorAlgorithm.decompress(algorithm, baos.getBuffer(), baos.size(), output, output.length, pool));
+				assertTrue(Arrays.equals(output, input));
+			}
+
+			pool = new CompressorPool(2);
+		}
+	}
+}
@@ -5,13 +5,17 @@ import org.terifan.raccoon.blockdevice.lob.LobByteChannel;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import org.terifan.raccoon.blockdevice.managed.BlockDeviceCopier;
+import org.terifan.raccoon.blockdevice.managed.BlockRemapper;
 import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
 import org.terifan.raccoon.blockdevice.storage.MemoryBlockStorage;
 import org.terifan.logging.Level;
 import org.terifan.logging.Logger;
 import org.terifan.raccoon.blockdevice.BlockAccessor;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
 import org.terifan.raccoon.document.Document;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 import org.testng.annotations.Test;
 
 
@@ -119,4 +123,117 @@ public class LobByteChannelNGTest
 			}
 		}
 	}
+
+
+	@Test
+	public void testRelocateBlocks() throws IOException
+	{
+		MemoryBlockStorage blockStorage = new MemoryBlockStorage(4096);
+
+		byte[] data = new byte[1024 * 1024];
+		new Random(1).nextBytes(data);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(blockStorage).open(BlockDeviceOpenOption.CREATE))
+		{
+			long filler = dev.allocBlock(500);
+
+			Document header = new Document();
+			try (LobByteChannel lob = new LobByteChannel(new BlockAccessor(dev), header, LobOpenOption.CREATE, null))
+			{
+				lob.writeAllBytes(data);
+			}
+			dev.getMetadata().put("lob", header);
+			dev.freeBlock(filler, 500);
+			dev.commit();
+
+			long allocatedSpace = dev.getAllocatedSpace();
+
+			try (LobByteChannel lob = new LobByteChannel(new BlockAccessor(dev), header, LobOpenOption.WRITE, null))
+			{
+				dev.addBlockOwner(lob);
+
+				long moved = 0;
+				for (long n; (n = dev.defragment(64)) > 0;)
+				{
+					assertTrue(n <= 64 + 32);
+					moved += n;
+					dev.commit();
+				}
+
+				dev.removeBlockOwner(lob);
+
+				assertTrue(moved >= 256);
+			}
+			dev.getMetadata().put("lob", header);
+			dev.commit();
+			dev.truncate();
+
+			assertTrue(dev.getAllocatedSpace() < allocatedSpace - 400);
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(blockStorage).open(BlockDeviceOpenOption.OPEN))
+		{
+			try (LobByteChannel lob = new LobByteChannel(new BlockAccessor(dev), dev.getMetadata().get("lob"), LobOpenOption.READ, null))
+			{
+				assertEquals(lob.readAllBytes(), data);
+			}
+		}
+	}
+
+
+	@Test
+	public void testCompactingCopy() throws IOException
+	{
+		MemoryBlockStorage sourceStorage = new MemoryBlockStorage(4096);
+		MemoryBlockStorage targetStorage = new MemoryBlockStorage(4096);
+		long sourceSpace;
+
+		byte[] data = new byte[1024 * 1024];
+		new Random(1).nextBytes(data);
+		Arrays.fill(data, 300_000, 600_000, (byte)0);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(sourceStorage).open(BlockDeviceOpenOption.CREATE))
+		{
+			long filler = dev.allocBlock(500);
+
+			for (String name : new String[]{"a", "b"})
+			{
+				Document header = new Document();
+				try (LobByteChannel lob = new LobByteChannel(new BlockAccessor(dev), header, LobOpenOption.CREATE, null))
+				{
+					lob.writeAllBytes(data);
+				}
+				dev.getMetadata().put(name, header);
+			}
+
+			dev.freeBlock(filler, 500);
+			dev.commit();
+
+			sourceSpace = dev.getAllocatedSpace();
+
+			BlockRemapper remapper = new BlockDeviceCopier(dev)
+				.setThreads(4)
+				.addRemapHook((target, r) ->
+				{
+					LobByteChannel.remapBlocks(new BlockAccessor(target), target.getMetadata().get("a"), r);
+					LobByteChannel.remapBlocks(new BlockAccessor(target), target.getMetadata().get("b"), r);
+				})
+				.copyTo(targetStorage);
+
+			assertTrue(remapper.getRangeCount() <= 2);
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(targetStorage).open(BlockDeviceOpenOption.OPEN))
+		{
+			for (String name : new String[]{"a", "b"})
+			{
+				try (LobByteChannel lob = new LobByteChannel(new BlockAccessor(dev), dev.getMetadata().get(name), LobOpenOption.READ, null))
+				{
+					assertEquals(lob.readAllBytes(), data);
+				}
+			}
+
+			assertTrue(dev.getAllocatedSpace() < sourceSpace - 400);
+		}
+	}
 }
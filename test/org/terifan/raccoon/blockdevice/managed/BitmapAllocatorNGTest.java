@@ -0,0 +1,204 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.IOException;
+import java.util.Random;
+import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+
+public class BitmapAllocatorNGTest
+{
+	@Test
+	public void testSerialization() throws IOException
+	{
+		ByteArrayBuffer buffer = ByteArrayBuffer.alloc(16);
+
+		BitmapAllocator inMap = new BitmapAllocator();
+		inMap.add(0, Long.MAX_VALUE);
+		inMap.remove(0, 10);
+		inMap.remove(20, 10000);
+		inMap.remove(20000, 5);
+		inMap.marshal(buffer);
+
+		BitmapAllocator outMap = new BitmapAllocator();
+		outMap.unmarshal(ByteArrayBuffer.wrap(buffer.array()));
+
+		assertEquals(outMap.toString(), "{10-19, 10020-19999, 20005-9223372036854775806}");
+		assertEquals(outMap.toString(), inMap.toString());
+		assertEquals(outMap.getFreeSpace(), inMap.getFreeSpace());
+		assertEquals(outMap.getUsedSpace(), 10015);
+	}
+
+
+	@Test
+	public void testAddRemove() throws IOException
+	{
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, Long.MAX_VALUE);
+
+		assertEquals(map.next(10), 0);
+		assertEquals(map.next(5000), 10);
+		assertEquals(map.next(1), 5010);
+		assertTrue(map.isUsed(0, 5011));
+		assertFalse(map.isUsed(5010, 2));
+
+		map.add(3, 4);
+
+		assertFalse(map.isUsed(0, 10));
+		assertEquals(map.next(4), 3);
+		assertEquals(map.next(5), 5011);
+		assertEquals(map.getLastBlockIndex(), 5016);
+		assertEquals(map.toString(), "{5016-9223372036854775806}");
+	}
+
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testAddFreeRange() throws IOException
+	{
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 100);
+		map.add(50, 51);
+	}
+
+
+	@Test
+	public void testClone() throws IOException
+	{
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 100);
+
+		BitmapAllocator clone = map.clone();
+		map.add(10, 10);
+		clone.add(50, 10);
+
+		assertEquals(map.toString(), "{10-19, 100-9223372036854775806}");
+		assertEquals(clone.toString(), "{50-59, 100-9223372036854775806}");
+	}
+
+
+	@Test
+	public void testAllocationHint() throws IOException
+	{
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 10000);
+		map.add(5000, 10);
+		map.add(9000, 100);
+
+		assertEquals(map.clone().next(5, 9010), 9010);
+		assertEquals(map.clone().next(5, 9098), 10000);
+		assertEquals(map.clone().next(50, 4000), 9000);
+		assertEquals(map.clone().next(5, 2000), 5000);
+	}
+
+
+	@Test
+	public void testTransfer() throws IOException
+	{
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 10000);
+		map.add(100, 10);
+		map.add(200, 10);
+
+		RangeMap target = new RangeMap();
+
+		assertEquals(map.transfer(105, 100, target), 10);
+		assertEquals(target.toString(), "{105-109, 200-204}");
+		assertEquals(map.toString(), "{100-104, 205-209, 10000-9223372036854775806}");
+		assertEquals(map.transfer(9990, 20, target), 10);
+		assertEquals(map.toString(), "{100-104, 205-209, 10010-9223372036854775806}");
+	}
+
+
+	@Test
+	public void testRandomOperations() throws IOException
+	{
+		int limit = 100_000;
+
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, limit);
+
+		RangeMap expected = new RangeMap();
+		expected.add(0, limit);
+
+		BitmapAllocator snapshot = null;
+		String snapshotState = null;
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < 200_000; i++)
+		{
+			int size = 1 + rnd.nextInt(rnd.nextInt(10) == 0 ? 10_000 : 20);
+
+			if (rnd.nextInt(3) > 0)
+			{
+				assertEquals(map.next(size), expected.next(size));
+			}
+			else
+			{
+				int offset = rnd.nextInt(limit - size);
+				if (expected.isUsed(offset, size))
+				{
+					map.add(offset, size);
+					expected.add(offset, size);
+				}
+			}
+
+			if (i == 100_000)
+			{
+				snapshot = map.clone();
+				snapshotState = snapshot.toString();
+			}
+		}
+
+		assertEquals(map.toString(), expected.toString());
+		assertEquals(map.getFreeSpace(), expected.getFreeSpace());
+		assertEquals(snapshot.toString(), snapshotState);
+
+		SpaceStatistics stats = map.getStatistics(limit);
+		SpaceStatistics expectedStats = expected.getStatistics(limit);
+		assertEquals(stats.getFreeExtentHistogram(), expectedStats.getFreeExtentHistogram());
+		assertEquals(stats.getFreeExtentCount(), expectedStats.getFreeExtentCount());
+		assertEquals(stats.getLargestFreeExtent(), expectedStats.getLargestFreeExtent());
+		assertEquals(stats.getUsedExtentCount(), expectedStats.getUsedExtentCount());
+	}
+
+
+	@Test
+	public void testSuperGroups() throws IOException
+	{
+		int limit = 4 * 64 * 4096;
+
+		BitmapAllocator map = new BitmapAllocator();
+		map.add(0, limit);
+
+		RangeMap expected = new RangeMap();
+		expected.add(0, limit);
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < 20_000; i++)
+		{
+			int size = 1 + rnd.nextInt(rnd.nextInt(20) == 0 ? 300_000 : 5_000);
+
+			if (rnd.nextInt(3) > 0)
+			{
+				assertEquals(map.next(size), expected.next(size));
+			}
+			else
+			{
+				int offset = rnd.nextInt(limit - size);
+				if (expected.isUsed(offset, size))
+				{
+					map.add(offset, size);
+					expected.add(offset, size);
+				}
+			}
+		}
+
+		assertEquals(map.toString(), expected.toString());
+		assertEquals(map.getFreeSpace(), expected.getFreeSpace());
+	}
+}
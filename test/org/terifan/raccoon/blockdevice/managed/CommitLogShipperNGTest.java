@@ -0,0 +1,119 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.storage.MemoryBlockStorage;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static resources.__TestUtils.createRandomBuffer;
+import static resources.__TestUtils.verifyRandomBuffer;
+
+
+public class CommitLogShipperNGTest
+{
+	@Test
+	public void testShipping() throws Exception
+	{
+		MemoryBlockStorage standby = new MemoryBlockStorage(4096);
+		long[] blocks = new long[20];
+		int[] seeds = new int[blocks.length];
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < blocks.length; i++)
+			{
+				blocks[i] = dev.allocBlock(1);
+				seeds[i] = i;
+				dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+			}
+			dev.commit();
+
+			long shippedBytes;
+
+			try (CommitLogShipper shipper = new CommitLogShipper(dev, standby))
+			{
+				shipper.flush();
+				assertEquals(shipper.getAppliedGeneration(), dev.getGeneration());
+				shippedBytes = shipper.getShippedBytes();
+
+				// rewrite blocks the way BlockAccessor does
+				for (int i = 0; i < 50; i++)
+				{
+					int j = i % blocks.length;
+					long block = dev.allocBlock(1);
+					dev.writeBlock(block, createRandomBuffer(100 + i, 4096), 0, 4096, new int[4]);
+					dev.freeBlock(blocks[j], 1);
+					blocks[j] = block;
+					seeds[j] = 100 + i;
+					dev.getMetadata().put("version", i);
+					dev.commit();
+				}
+
+				shipper.flush();
+
+				assertEquals(shipper.getLag(), 0);
+				assertEquals(shipper.getLagMillis(), 0);
+				assertEquals(shipper.getAppliedGeneration(), dev.getGeneration());
+
+				// only the changed blocks are shipped after the full copy
+				assertTrue(shipper.getShippedBytes() - shippedBytes < 50 * 3 * 4096);
+			}
+
+			// commits made after the shipper is closed are not shipped
+			dev.writeBlock(blocks[0], createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+			dev.commit();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(standby).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getMetadata().getInt("version"), Integer.valueOf(49));
+
+			byte[] buffer = new byte[4096];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				dev.readBlock(blocks[i], buffer, 0, 4096, new int[4]);
+				assertTrue(verifyRandomBuffer(seeds[i], buffer));
+			}
+		}
+	}
+
+
+	@Test
+	public void testShippingAsync() throws Exception
+	{
+		MemoryBlockStorage standby = new MemoryBlockStorage(4096);
+		long[] blocks = new long[10];
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			dev.commit();
+
+			try (CommitLogShipper shipper = new CommitLogShipper(dev, standby))
+			{
+				for (int i = 0; i < blocks.length; i++)
+				{
+					blocks[i] = dev.allocBlock(1);
+					dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+					dev.getMetadata().put("version", i);
+					dev.commitAsync();
+				}
+
+				shipper.flush();
+
+				assertEquals(shipper.getLag(), 0);
+				assertEquals(shipper.getAppliedGeneration(), dev.getGeneration());
+			}
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(standby).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getMetadata().getInt("version"), Integer.valueOf(blocks.length - 1));
+
+			byte[] buffer = new byte[4096];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				dev.readBlock(blocks[i], buffer, 0, 4096, new int[4]);
+				assertTrue(verifyRandomBuffer(i, buffer));
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.terifan.raccoon.blockdevice.managed;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.terifan.raccoon.blockdevice.util.ByteArrayBuffer;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+
+public class GenerationMapNGTest
+{
+	@Test
+	public void testPutRemove() throws IOException
+	{
+		GenerationMap map = new GenerationMap();
+		map.put(0, 10, 1);
+		map.put(10, 5, 1);
+		map.put(20, 10, 2);
+		map.put(25, 10, 3);
+
+		assertEquals(map.toString(), "{0-14@1, 20-24@2, 25-34@3}");
+
+		map.remove(5, 25);
+
+		assertEquals(map.toString(), "{0-4@1, 30-34@3}");
+		assertEquals(map.getGeneration(3), 1);
+		assertEquals(map.getGeneration(10), -1);
+		assertEquals(map.getGeneration(34), 3);
+		assertEquals(map.getChangedSince(1).toString(), "{30-34}");
+		assertEquals(map.getChangedSince(-1).toString(), "{0-4, 30-34}");
+	}
+
+
+	@Test
+	public void testSerialization() throws IOException
+	{
+		ByteArrayBuffer buffer = ByteArrayBuffer.alloc(16);
+
+		GenerationMap inMap = new GenerationMap();
+		inMap.put(2, 100, 7);
+		inMap.put(500, 1, 3);
+		inMap.put(1000, 20, 9);
+		inMap.marshal(buffer);
+
+		GenerationMap outMap = new GenerationMap();
+		outMap.unmarshal(ByteArrayBuffer.wrap(buffer.array()));
+
+		assertEquals(outMap.toString(), "{2-101@7, 500-500@3, 1000-1019@9}");
+	}
+
+
+	@Test
+	public void testRandomOperations() throws IOException
+	{
+		long[] expected = new long[2000];
+		Arrays.fill(expected, -1);
+
+		GenerationMap map = new GenerationMap();
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < 20_000; i++)
+		{
+			int size = 1 + rnd.nextInt(50);
+			int offset = rnd.nextInt(expected.length - size);
+
+			if (rnd.nextBoolean())
+			{
+				int generation = rnd.nextInt(5);
+				map.put(offset, size, generation);
+				Arrays.fill(expected, offset, offset + size, generation);
+			}
+			else
+			{
+				map.remove(offset, size);
+				Arrays.fill(expected, offset, offset + size, -1);
+			}
+		}
+
+		RangeMap changed = map.getChangedSince(2);
+
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(map.getGeneration(i), expected[i]);
+			assertEquals(!changed.isUsed(i, 1), expected[i] > 2);
+		}
+	}
+}
@@ -1,8 +1,21 @@
 package org.terifan.raccoon.blockdevice.managed;
 
 import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
+import org.terifan.raccoon.blockdevice.storage.FileBlockStorage;
 import org.terifan.raccoon.blockdevice.storage.MemoryBlockStorage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
 import static resources.__TestUtils.createRandomBuffer;
@@ -99,6 +112,682 @@ public class ManagedBlockDeviceNGTest
 	}
 
 
+	@Test
+	public void testAllocationArenas() throws Exception
+	{
+		int threads = 4;
+		int count = 100;
+		long[][] positions = new long[threads][count];
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).setAllocationArenaSize(64).open(BlockDeviceOpenOption.CREATE))
+		{
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++)
+			{
+				int thread = t;
+				workers[t] = new Thread(() ->
+				{
+					for (int i = 0; i < count; i++)
+					{
+						positions[thread][i] = dev.allocBlock(1);
+					}
+				});
+				workers[t].start();
+			}
+			for (Thread worker : workers)
+			{
+				worker.join();
+			}
+
+			dev.commit();
+
+			HashSet<Long> unique = new HashSet<>();
+			for (long[] blocks : positions)
+			{
+				for (int i = 0; i < count; i++)
+				{
+					assertTrue(unique.add(blocks[i]));
+
+					// each arena hold 64 blocks
+					if (i % 64 != 0)
+					{
+						assertEquals(blocks[i], blocks[i - 1] + 1);
+					}
+				}
+			}
+
+			// super blocks, allocated blocks and the space map
+			assertEquals(dev.getUsedSpace(), 2 + threads * count + 1);
+		}
+	}
+
+
+	@Test
+	public void testSpaceMapLog() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096);
+		Random rnd = new Random(1);
+		ArrayList<Long> blocks = new ArrayList<>();
+		long usedSpace;
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < 2000; i++)
+			{
+				blocks.add(dev.allocBlock(1));
+			}
+			for (int i = 0; i < 1000; i++)
+			{
+				dev.freeBlock(blocks.remove(i), 1);
+			}
+			dev.commit();
+
+			// small transactions are written as log blocks until the log is compacted
+			for (int i = 0; i < 100; i++)
+			{
+				blocks.add(dev.allocBlock(1 + rnd.nextInt(3)));
+				dev.freeBlock(blocks.remove(rnd.nextInt(blocks.size())), 1);
+				dev.commit();
+			}
+
+			for (long block : blocks)
+			{
+				dev.writeBlock(block, new byte[4096], 0, 4096, new int[4]);
+			}
+			dev.commit();
+
+			usedSpace = dev.getUsedSpace();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getUsedSpace(), usedSpace);
+
+			for (long block : blocks)
+			{
+				dev.readBlock(block, new byte[4096], 0, 4096, new int[4]);
+			}
+		}
+	}
+
+
+	@Test
+	public void testTailReclaim() throws Exception
+	{
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).setAllocationPolicy(AllocationPolicy.NEXT_FIT).setTailReclaimThreshold(16).open(BlockDeviceOpenOption.CREATE))
+		{
+			long[] blocks = new long[100];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				blocks[i] = dev.allocBlock(1);
+				dev.writeBlock(blocks[i], new byte[4096], 0, 4096, new int[4]);
+			}
+			dev.commit();
+
+			long size = dev.getAllocatedSpace();
+
+			for (int i = 10; i < blocks.length; i++)
+			{
+				dev.freeBlock(blocks[i], 1);
+			}
+			dev.commit();
+
+			// the space map of the previous commit is located at the end of the device until the next commit
+			dev.freeBlock(blocks[9], 1);
+			dev.commit();
+
+			assertTrue(dev.getAllocatedSpace() < size - 80);
+
+			// the free blocks before the tail are used before the device grows
+			dev.freeBlock(blocks[5], 1);
+			dev.commit();
+			long block = dev.allocBlock(1);
+			assertEquals(block, blocks[5]);
+		}
+	}
+
+
+	@Test
+	public void testSnapshot() throws Exception
+	{
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			byte[] data = createRandomBuffer(0, 4096);
+
+			long block = dev.allocBlock(1);
+			dev.writeBlock(block, data, 0, 4096, new int[4]);
+			dev.getMetadata().put("block", block);
+			dev.commit();
+
+			BlockDeviceSnapshot snapshot = dev.openSnapshot();
+
+			assertEquals(snapshot.getGeneration(), dev.getGeneration());
+
+			dev.freeBlock(block, 1);
+			dev.getMetadata().put("block", -1L);
+			dev.commit();
+
+			for (int i = 0; i < 10; i++)
+			{
+				long other = dev.allocBlock(1);
+				assertNotEquals(other, block);
+				dev.writeBlock(other, new byte[4096], 0, 4096, new int[4]);
+				dev.commit();
+			}
+
+			byte[] buffer = new byte[4096];
+			snapshot.readBlock(snapshot.getMetadata().getLong("block"), buffer, 0, 4096, new int[4]);
+			assertEquals(buffer, data);
+
+			snapshot.close();
+
+			assertEquals(dev.allocBlock(1), block);
+		}
+	}
+
+
+	@Test
+	public void testMetadataOverflow() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096);
+		byte[] large = createRandomBuffer(0, 20_000);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			dev.getMetadata().put("large", large);
+			dev.allocBlock(1);
+			dev.commit();
+
+			BlockDeviceSnapshot snapshot = dev.openSnapshot();
+			assertEquals(snapshot.getMetadata().getBinary("large"), large);
+			snapshot.close();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			// commits not touching the metadata keep the overflow blocks
+			dev.allocBlock(1);
+			dev.commit();
+
+			assertEquals(dev.getMetadata().getBinary("large"), large);
+
+			dev.getMetadata().remove("large");
+			dev.getMetadata().put("small", 1);
+			dev.allocBlock(1);
+			dev.commit();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getMetadata().getInt("small"), Integer.valueOf(1));
+			assertFalse(dev.getMetadata().containsKey("large"));
+		}
+	}
+
+
+	@Test
+	public void testLazySpaceMap() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096);
+		byte[] data = createRandomBuffer(0, 4096);
+		long block;
+		long usedSpace;
+		long freeSpace;
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				dev.allocBlock(1 + i);
+			}
+			block = dev.allocBlock(1);
+			dev.writeBlock(block, data, 0, 4096, new int[4]);
+			dev.commit();
+
+			usedSpace = dev.getUsedSpace();
+			freeSpace = dev.getFreeSpace();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getUsedSpace(), usedSpace);
+			assertEquals(dev.getFreeSpace(), freeSpace);
+
+			byte[] buffer = new byte[4096];
+			dev.readBlock(block, buffer, 0, 4096, new int[4]);
+			assertEquals(buffer, data);
+
+			assertFalse(dev.isSpaceMapLoaded());
+
+			long other = dev.allocBlock(1);
+
+			assertTrue(dev.isSpaceMapLoaded());
+			assertNotEquals(other, block);
+			assertEquals(dev.getUsedSpace(), usedSpace + 1);
+		}
+	}
+
+
+	@Test
+	public void testCommitAsync() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096);
+		ArrayList<CompletableFuture<Long>> commits = new ArrayList<>();
+		long block = -1;
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < 20; i++)
+			{
+				if (block != -1)
+				{
+					dev.freeBlock(block, 1);
+				}
+
+				block = dev.allocBlock(1);
+				dev.writeBlock(block, createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+				dev.getMetadata().put("block", block);
+
+				commits.add(dev.commitAsync());
+			}
+
+			long generation = 0;
+			for (CompletableFuture<Long> commit : commits)
+			{
+				assertTrue(commit.get() > generation);
+				generation = commit.get();
+			}
+
+			assertEquals(generation, dev.getGeneration());
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			byte[] buffer = new byte[4096];
+			dev.readBlock(dev.getMetadata().getLong("block"), buffer, 0, 4096, new int[4]);
+
+			assertEquals(dev.getMetadata().getLong("block"), Long.valueOf(block));
+			assertTrue(verifyRandomBuffer(19, buffer));
+		}
+	}
+
+
+	@Test
+	public void testCommitAsyncListener() throws Exception
+	{
+		ArrayList<Long> notified = new ArrayList<>();
+		ArrayList<Long> committed = new ArrayList<>();
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			dev.addCommitListener((device, generation) ->
+			{
+				// the device is still at the generation notified
+				assertEquals(device.getGeneration(), generation);
+				notified.add(generation);
+			});
+
+			for (int i = 0; i < 5; i++)
+			{
+				long block = dev.allocBlock(1);
+				dev.writeBlock(block, createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+
+				committed.add(dev.commitAsync().get());
+			}
+		}
+
+		assertEquals(notified, committed);
+	}
+
+
+	@Test
+	public void testRefresh() throws Exception
+	{
+		Path file = Files.createTempFile("managedblockdevice", ".tmp");
+
+		try (ManagedBlockDevice writer = new ManagedBlockDevice(new FileBlockStorage(file)).open(BlockDeviceOpenOption.REPLACE))
+		{
+			long block = writer.allocBlock(1);
+			writer.writeBlock(block, createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+			writer.getMetadata().put("block", block);
+			writer.commit();
+
+			try (ManagedBlockDevice reader = new ManagedBlockDevice(new FileBlockStorage(file)).open(BlockDeviceOpenOption.READ_ONLY))
+			{
+				assertEquals(reader.getMetadata().getLong("block"), Long.valueOf(block));
+				assertFalse(reader.refresh());
+
+				for (int i = 1; i <= 3; i++)
+				{
+					writer.freeBlock(block, 1);
+					block = writer.allocBlock(1);
+					writer.writeBlock(block, createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+					writer.getMetadata().put("block", block);
+					writer.commit();
+
+					assertTrue(reader.refresh());
+					assertEquals(reader.getGeneration(), writer.getGeneration());
+
+					byte[] buffer = new byte[4096];
+					reader.readBlock(reader.getMetadata().getLong("block"), buffer, 0, 4096, new int[4]);
+					assertTrue(verifyRandomBuffer(i, buffer));
+				}
+			}
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+
+
+	@Test
+	public void testRollbackWithoutIO() throws Exception
+	{
+		int[] reads = new int[1];
+
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096)
+		{
+			@Override
+			public void readBlock(long aBlockIndex, byte[] aBuffer, int aBufferOffset, int aBufferLength, int[] aBlockKey)
+			{
+				reads[0]++;
+				super.readBlock(aBlockIndex, aBuffer, aBufferOffset, aBufferLength, aBlockKey);
+			}
+		};
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			long block = dev.allocBlock(1);
+			dev.writeBlock(block, createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+			dev.getMetadata().put("block", block);
+			dev.commit();
+
+			long usedSpace = dev.getUsedSpace();
+			long next = dev.allocBlock(1);
+			dev.rollback();
+
+			reads[0] = 0;
+
+			for (int i = 0; i < 10; i++)
+			{
+				dev.freeBlock(block, 1);
+				dev.allocBlock(5);
+				dev.getMetadata().put("block", -1L);
+				dev.rollback();
+			}
+
+			assertEquals(reads[0], 0);
+			assertEquals(dev.getUsedSpace(), usedSpace);
+			assertEquals(dev.getMetadata().getLong("block"), Long.valueOf(block));
+			assertEquals(dev.allocBlock(1), next);
+
+			byte[] buffer = new byte[4096];
+			dev.readBlock(block, buffer, 0, 4096, new int[4]);
+			assertTrue(verifyRandomBuffer(0, buffer));
+		}
+	}
+
+
+	@Test
+	public void testIncrementalBackup() throws Exception
+	{
+		MemoryBlockStorage source = new MemoryBlockStorage(4096);
+		MemoryBlockStorage target = new MemoryBlockStorage(4096);
+		long[] blocks = new long[40];
+
+		ByteArrayOutputStream full = new ByteArrayOutputStream();
+		ByteArrayOutputStream incremental = new ByteArrayOutputStream();
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(source).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < blocks.length; i++)
+			{
+				blocks[i] = dev.allocBlock(1);
+				dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+				dev.getMetadata().put("version", 1);
+				dev.commit();
+			}
+
+			long generation = dev.backup(-1, full);
+
+			// rewrite a few blocks the way BlockAccessor does
+			for (int i = 0; i < 5; i++)
+			{
+				long block = dev.allocBlock(1);
+				dev.writeBlock(block, createRandomBuffer(100 + i, 4096), 0, 4096, new int[4]);
+				dev.freeBlock(blocks[i], 1);
+				blocks[i] = block;
+				dev.getMetadata().put("version", 2);
+				dev.commit();
+			}
+
+			assertEquals(dev.backup(generation, incremental), dev.getGeneration());
+		}
+
+		assertTrue(incremental.size() < full.size() / 3, incremental.size() + " " + full.size());
+
+		ManagedBlockDevice.restore(new ByteArrayInputStream(full.toByteArray()), target);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(target).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getMetadata().getInt("version"), Integer.valueOf(1));
+		}
+
+		ManagedBlockDevice.restore(new ByteArrayInputStream(incremental.toByteArray()), target);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(target).open(BlockDeviceOpenOption.OPEN))
+		{
+			assertEquals(dev.getMetadata().getInt("version"), Integer.valueOf(2));
+
+			byte[] buffer = new byte[4096];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				dev.readBlock(blocks[i], buffer, 0, 4096, new int[4]);
+				assertTrue(verifyRandomBuffer(i < 5 ? 100 + i : i, buffer));
+			}
+
+			// the restored space map is usable
+			long block = dev.allocBlock(1);
+			dev.writeBlock(block, createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+			dev.commit();
+		}
+
+		try
+		{
+			ManagedBlockDevice.restore(new ByteArrayInputStream(incremental.toByteArray()), target);
+			fail("archive applied to a storage at the wrong generation");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testAllocationClasses() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096);
+		ArrayList<Long> small = new ArrayList<>();
+		ArrayList<Long> large = new ArrayList<>();
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.CREATE))
+		{
+			dev.setAllocationClasses(new AllocationClass(2, 64));
+
+			for (int i = 0; i < 32; i++)
+			{
+				small.add(dev.allocBlock(1 + (i & 1)));
+				large.add(dev.allocBlock(8));
+			}
+
+			// small allocations are packed into chunks and never interleave with the large extents
+			long smallMin = small.stream().mapToLong(e -> e).min().getAsLong();
+			long smallMax = small.stream().mapToLong(e -> e).max().getAsLong();
+			assertTrue(smallMax - smallMin < 64);
+			for (long block : large)
+			{
+				assertTrue(block + 8 <= smallMin || block > smallMax);
+			}
+
+			long usedSpace = dev.getUsedSpace();
+			dev.commit();
+
+			for (int i = 0; i < small.size(); i += 2)
+			{
+				dev.freeBlock(small.get(i), 1);
+			}
+			dev.commit();
+
+			assertTrue(dev.getUsedSpace() < usedSpace);
+
+			// freed small blocks are reused by the class after the commit
+			long block = dev.allocBlock(1);
+			assertTrue(block >= smallMin && block <= smallMax);
+
+			dev.writeBlock(block, createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+			dev.commit();
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).open(BlockDeviceOpenOption.OPEN))
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				long block = dev.allocBlock(8);
+				assertFalse(small.contains(block));
+			}
+		}
+	}
+
+
+
+	@Test
+	public void testAllocationClassesInside() throws Exception
+	{
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			dev.setAllocationClasses(new AllocationClass(4, 16));
+
+			// leaves free blocks of the class in the first chunk
+			long first = dev.allocBlock(1);
+			assertTrue(first < 100);
+
+			for (int i = 0; i < 10; i++)
+			{
+				long block = dev.allocBlockInside(1, 100, 200);
+				assertTrue(block >= 100 && block < 200, "" + block);
+			}
+
+			// the free blocks of the first chunk follow the first block
+			long block = dev.allocBlockBefore(1, first + 2);
+			assertEquals(block, first + 1);
+		}
+	}
+
+	@Test
+	public void testAutoCommit() throws Exception
+	{
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			assertFalse(dev.commitIfNeeded());
+
+			dev.setAutoCommitPolicy(new AutoCommitPolicy().setMaxDirtyBytes(10 * 4096).setMaxPendingFrees(5));
+
+			long generation = dev.getGeneration();
+			long[] blocks = new long[35];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				blocks[i] = dev.allocBlock(1);
+				dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+				dev.commitIfNeeded();
+			}
+
+			assertEquals(dev.getGeneration(), generation + 3);
+			assertEquals(dev.getDirtyBytes(), 5 * 4096);
+
+			dev.commit();
+			assertEquals(dev.getDirtyBytes(), 0);
+
+			generation = dev.getGeneration();
+			for (int i = 0; i < 4; i++)
+			{
+				dev.freeBlock(blocks[i], 1);
+				assertFalse(dev.commitIfNeeded());
+			}
+			dev.freeBlock(blocks[4], 1);
+			assertTrue(dev.commitIfNeeded());
+			assertEquals(dev.getGeneration(), generation + 1);
+			assertEquals(dev.getPendingFrees(), 0);
+
+			// an unmodified device is never committed
+			dev.setAutoCommitPolicy(new AutoCommitPolicy().setMaxDelay(1).setAsync(true));
+			Thread.sleep(5);
+			assertFalse(dev.commitIfNeeded());
+
+			dev.writeBlock(blocks[5], createRandomBuffer(5, 4096), 0, 4096, new int[4]);
+			Thread.sleep(5);
+			assertTrue(dev.commitIfNeeded());
+			dev.commitAsync().get();
+			assertEquals(dev.getGeneration(), generation + 2);
+		}
+	}
+
+
+	@Test
+	public void testConcurrentReaders() throws Exception
+	{
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new MemoryBlockStorage(4096)).open(BlockDeviceOpenOption.CREATE))
+		{
+			long[] blocks = new long[100];
+			for (int i = 0; i < blocks.length; i++)
+			{
+				blocks[i] = dev.allocBlock(1);
+				dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+			}
+			dev.commit();
+
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try
+			{
+				ArrayList<Future<?>> readers = new ArrayList<>();
+				for (int t = 0; t < 4; t++)
+				{
+					readers.add(executor.submit(() ->
+					{
+						byte[] buffer = new byte[4096];
+						for (int i = 0; i < 10_000; i++)
+						{
+							int j = i % blocks.length;
+							dev.readBlock(blocks[j], buffer, 0, 4096, new int[4]);
+							assertTrue(verifyRandomBuffer(j, buffer));
+						}
+						return null;
+					}));
+				}
+
+				// the writer allocates, frees and commits while the readers are running
+				for (int i = 0; i < 100; i++)
+				{
+					long block = dev.allocBlock(1);
+					dev.writeBlock(block, new byte[4096], 0, 4096, new int[4]);
+					dev.freeBlock(block, 1);
+					dev.commit();
+				}
+
+				for (Future<?> reader : readers)
+				{
+					reader.get();
+				}
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+		}
+	}
+
+
 //	@Test(expectedExceptions = DatabaseException.class)
 //	public void testDatabaseVersionConflict() throws Exception
 //	{
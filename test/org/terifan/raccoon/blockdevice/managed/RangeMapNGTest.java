@@ -85,4 +85,251 @@ public class RangeMapNGTest
 
 		assertEquals(inMap.toString(), outMap.toString());
 	}
+
+
+	@Test
+	public void testTransfer() throws IOException
+	{
+		RangeMap source = new RangeMap();
+		source.add(10, 10);
+		source.add(30, 10);
+
+		RangeMap target = new RangeMap();
+		target.add(0, 5);
+
+		assertEquals(source.transfer(15, 20, target), 10);
+		assertEquals(source.toString(), "{10-14, 35-39}");
+		assertEquals(target.toString(), "{0-4, 15-19, 30-34}");
+
+		assertEquals(source.transfer(20, 10, target), 0);
+		assertEquals(source.getFreeSpace(), 10);
+		assertEquals(target.getFreeSpace(), 15);
+	}
+
+
+	@Test
+	public void testTransferRemainder() throws IOException
+	{
+		RangeMap source = new RangeMap();
+		source.add(10, 10);
+		source.add(30, 10);
+
+		RangeMap target = new RangeMap();
+		RangeMap remainder = new RangeMap();
+
+		assertEquals(source.transfer(5, 40, target, remainder), 20);
+		assertEquals(target.toString(), "{10-19, 30-39}");
+		assertEquals(remainder.toString(), "{5-9, 20-29, 40-44}");
+		assertEquals(source.getFreeSpace(), 0);
+	}
+
+
+	@Test
+	public void testStatistics() throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 1000);
+		map.add(10, 1);
+		map.add(20, 2);
+		map.add(30, 3);
+		map.add(100, 100);
+
+		SpaceStatistics stats = map.getStatistics(1200);
+
+		assertEquals(stats.getFreeExtentCount(), 4);
+		assertEquals(stats.getFreeSpace(), 106);
+		assertEquals(stats.getLargestFreeExtent(), 100);
+		assertEquals(stats.getUsedExtentCount(), 5);
+		assertEquals(stats.getTailSlack(), 200);
+		assertEquals(stats.getFreeExtentHistogram()[0], 1);
+		assertEquals(stats.getFreeExtentHistogram()[1], 2);
+		assertEquals(stats.getFreeExtentHistogram()[6], 1);
+		assertEquals(stats.getFragmentation(), 1 - 100 / 106.0, 0.0001);
+
+		map.remove(100, 100);
+		map.add(0, 10);
+
+		stats = map.getStatistics(1000);
+
+		assertEquals(stats.getFreeExtentCount(), 3);
+		assertEquals(stats.getLargestFreeExtent(), 11);
+		assertEquals(stats.getUsedExtentCount(), 3);
+		assertEquals(stats.getFreeExtentHistogram()[6], 0);
+		assertEquals(stats.getFreeExtentHistogram()[3], 1);
+	}
+
+
+	@Test
+	public void testAllocationPolicies() throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, 100);
+		map.remove(10, 10);
+		map.remove(25, 10);
+		map.remove(38, 10);
+		map.remove(60, 10);
+
+		// free: 0-9, 20-24, 35-37, 48-59, 70-99
+		assertEquals(map.clone().next(3), 0);
+		assertEquals(map.clone().setAllocationPolicy(AllocationPolicy.BEST_FIT).next(3), 35);
+		assertEquals(map.clone().setAllocationPolicy(AllocationPolicy.BEST_FIT).next(11), 48);
+		assertEquals(map.clone().next(1000), -1);
+
+		RangeMap nextFit = map.clone().setAllocationPolicy(AllocationPolicy.NEXT_FIT);
+		assertEquals(nextFit.next(4), 0);
+		assertEquals(nextFit.next(4), 4);
+		assertEquals(nextFit.next(4), 20);
+		assertEquals(nextFit.next(20), 70);
+		assertEquals(nextFit.next(2), 90);
+		assertEquals(nextFit.next(12), 48);
+		assertEquals(nextFit.next(2), 92);
+		assertEquals(nextFit.next(6), 94);
+		assertEquals(nextFit.next(2), 8);
+	}
+
+
+	@Test
+	public void testAllocationHint() throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, 100);
+		map.remove(10, 10);
+		map.remove(25, 10);
+		map.remove(60, 10);
+
+		// free: 0-9, 20-24, 35-59, 70-99
+		assertEquals(map.clone().next(3, 21), 21);
+		assertEquals(map.clone().next(4, 22), 35);
+		assertEquals(map.clone().next(5, 10), 20);
+		assertEquals(map.clone().next(20, 50), 70);
+		assertEquals(map.clone().next(20, 90), 35);
+		assertEquals(map.clone().next(50, 0), -1);
+	}
+
+
+	@Test
+	public void testAllocationHintTail() throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, Long.MAX_VALUE);
+		map.remove(0, 100);
+		map.add(10, 10);
+		map.add(40, 5);
+
+		// free: 10-19, 40-44, 100-
+		assertEquals(map.clone().next(5, 100), 100);
+		assertEquals(map.clone().next(5, 30), 40);
+		assertEquals(map.clone().next(8, 30), 10);
+		assertEquals(map.clone().next(8, 200), 200);
+		assertEquals(map.clone().next(20, 30), 100);
+	}
+
+
+	@Test
+	public void testAllocationInside() throws IOException
+	{
+		RangeMap map = new RangeMap();
+		map.add(0, 100);
+		map.remove(10, 10);
+		map.remove(25, 10);
+		map.remove(60, 10);
+
+		// free: 0-9, 20-24, 35-59, 70-99
+		assertEquals(map.clone().next(5, 22, 100), 35);
+		assertEquals(map.clone().next(5, 40, 100), 40);
+		assertEquals(map.clone().next(9, 0, 8), -1);
+		assertEquals(map.clone().next(20, 0, 60), 35);
+		assertEquals(map.clone().next(25, 36, 60), -1);
+		assertEquals(map.clone().setAllocationPolicy(AllocationPolicy.BEST_FIT).next(5, 15, 100), 20);
+		assertEquals(map.clone().setAllocationPolicy(AllocationPolicy.BEST_FIT).next(5, 21, 100), 35);
+
+		BitmapAllocator bitmap = new BitmapAllocator();
+		bitmap.add(0, 100);
+		bitmap.remove(10, 10);
+		bitmap.remove(25, 10);
+		bitmap.remove(60, 10);
+
+		assertEquals(bitmap.clone().next(5, 22, 100), 35);
+		assertEquals(bitmap.clone().next(9, 0, 8), -1);
+		assertEquals(bitmap.clone().next(25, 36, 60), -1);
+	}
+
+
+	@Test
+	public void testRandomOperations() throws IOException
+	{
+		int limit = 100_000;
+		boolean[] used = new boolean[limit];
+
+		RangeMap map = new RangeMap();
+		map.add(0, limit);
+
+		RangeMap snapshot = null;
+		String snapshotState = null;
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < 200_000; i++)
+		{
+			int size = 1 + rnd.nextInt(20);
+
+			if (rnd.nextInt(3) > 0)
+			{
+				long offset = map.next(size);
+				if (offset != -1)
+				{
+					for (int j = 0; j < size; j++)
+					{
+						assertFalse(used[(int)offset + j]);
+						used[(int)offset + j] = true;
+					}
+				}
+			}
+			else
+			{
+				int offset = rnd.nextInt(limit - size);
+				boolean allUsed = true;
+				for (int j = 0; j < size; j++)
+				{
+					allUsed &= used[offset + j];
+				}
+				if (allUsed)
+				{
+					map.add(offset, size);
+					for (int j = 0; j < size; j++)
+					{
+						used[offset + j] = false;
+					}
+				}
+			}
+
+			if (i == 100_000)
+			{
+				snapshot = map.clone();
+				snapshotState = snapshot.toString();
+			}
+		}
+
+		StringBuilder expected = new StringBuilder("{");
+		long free = 0;
+		for (int i = 0; i < limit; i++)
+		{
+			if (!used[i])
+			{
+				int j = i;
+				while (j + 1 < limit && !used[j + 1])
+				{
+					j++;
+				}
+				expected.append(expected.length() > 1 ? ", " : "").append(i).append("-").append(j);
+				free += j - i + 1;
+				i = j;
+			}
+		}
+		expected.append("}");
+
+		assertEquals(map.toString(), expected.toString());
+		assertEquals(map.getFreeSpace(), free);
+		assertEquals(snapshot.toString(), snapshotState);
+	}
 }
@@ -0,0 +1,70 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static resources.__TestUtils.createRandomBuffer;
+import static resources.__TestUtils.verifyRandomBuffer;
+
+
+public class CachedBlockStorageNGTest
+{
+	@Test
+	public void testCacheHits()
+	{
+		BlockCache cache = new BlockCache(100 * 512);
+		MemoryBlockStorage memory = new MemoryBlockStorage(512);
+
+		try (CachedBlockStorage storage = new CachedBlockStorage(memory, cache, 100 * 512).open(BlockDeviceOpenOption.CREATE))
+		{
+			storage.writeBlock(0, createRandomBuffer(0, 10 * 512), 0, 10 * 512, new int[4]);
+
+			// blocks written are served from the cache
+			memory.getStorage().clear();
+
+			byte[] buffer = new byte[10 * 512];
+			storage.readBlock(0, buffer, 0, buffer.length, new int[4]);
+
+			assertTrue(verifyRandomBuffer(0, buffer));
+			assertEquals(cache.getHitCount(), 10);
+			assertEquals(cache.getUsedSpace(), 10 * 512);
+
+			storage.resize(5);
+
+			assertEquals(cache.getUsedSpace(), 5 * 512);
+		}
+
+		assertEquals(cache.getUsedSpace(), 0);
+		assertEquals(cache.getOwnerCount(), 0);
+	}
+
+
+	@Test
+	public void testQuota()
+	{
+		BlockCache cache = new BlockCache(20 * 512);
+
+		try (CachedBlockStorage storage0 = new CachedBlockStorage(new MemoryBlockStorage(512), cache, 5 * 512).open(BlockDeviceOpenOption.CREATE);
+			CachedBlockStorage storage1 = new CachedBlockStorage(new MemoryBlockStorage(512), cache, 20 * 512).open(BlockDeviceOpenOption.CREATE))
+		{
+			storage1.writeBlock(0, createRandomBuffer(1, 10 * 512), 0, 10 * 512, new int[4]);
+
+			// storage0 exceeding its quota evicts its own blocks only
+			storage0.writeBlock(0, createRandomBuffer(0, 10 * 512), 0, 10 * 512, new int[4]);
+
+			assertEquals(cache.getUsedSpace(), 15 * 512);
+
+			// storage1 filling the cache evicts the least recently used blocks
+			storage1.writeBlock(10, createRandomBuffer(2, 10 * 512), 0, 10 * 512, new int[4]);
+
+			assertEquals(cache.getUsedSpace(), 20 * 512);
+
+			byte[] buffer = new byte[10 * 512];
+			storage0.readBlock(0, buffer, 0, buffer.length, new int[4]);
+			assertTrue(verifyRandomBuffer(0, buffer));
+
+			storage1.readBlock(10, buffer, 0, buffer.length, new int[4]);
+			assertTrue(verifyRandomBuffer(2, buffer));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static resources.__TestUtils.createRandomBuffer;
+import static resources.__TestUtils.verifyRandomBuffer;
+
+
+public class LazyBlockStorageNGTest
+{
+	@Test
+	public void testIdleClose() throws Exception
+	{
+		Path file = Files.createTempFile("raccoon", ".dat");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try
+		{
+			LazyBlockStorage storage = new LazyBlockStorage(new FileBlockStorage(file, 4096));
+
+			try (ManagedBlockDevice dev = new ManagedBlockDevice(storage).setCommitExecutor(executor).open(BlockDeviceOpenOption.REPLACE))
+			{
+				long block = dev.allocBlock(1);
+				dev.writeBlock(block, createRandomBuffer(0, 4096), 0, 4096, new int[4]);
+
+				// uncommitted writes keep the storage open
+				assertFalse(storage.closeIfIdle(0));
+
+				dev.getMetadata().put("block", block);
+				dev.commitAsync().get();
+
+				assertTrue(storage.closeIfIdle(0));
+				assertFalse(storage.isStorageOpen());
+
+				byte[] buffer = new byte[4096];
+				dev.readBlock(block, buffer, 0, 4096, new int[4]);
+
+				assertTrue(verifyRandomBuffer(0, buffer));
+				assertTrue(storage.isStorageOpen());
+				assertEquals(storage.getReopenCount(), 1);
+				assertFalse(storage.closeIfIdle(60_000));
+			}
+
+			// the shared executor is not shut down by the device
+			assertFalse(executor.isShutdown());
+
+			try (ManagedBlockDevice dev = new ManagedBlockDevice(new LazyBlockStorage(new FileBlockStorage(file, 4096))).open(BlockDeviceOpenOption.OPEN))
+			{
+				byte[] buffer = new byte[4096];
+				dev.readBlock(dev.getMetadata().getLong("block"), buffer, 0, 4096, new int[4]);
+
+				assertTrue(verifyRandomBuffer(0, buffer));
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.util.ArrayList;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.BlockPointer;
+import org.terifan.raccoon.blockdevice.BlockType;
+import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static resources.__TestUtils.createRandomBuffer;
+import static resources.__TestUtils.verifyRandomBuffer;
+
+
+public class PooledBlockStorageNGTest
+{
+	@Test
+	public void testSpanningMembers()
+	{
+		MemoryBlockStorage member0 = new MemoryBlockStorage(512);
+		MemoryBlockStorage member1 = new MemoryBlockStorage(512);
+		MemoryBlockStorage member2 = new MemoryBlockStorage(512);
+
+		try (PooledBlockStorage pool = new PooledBlockStorage(512).addMember(member0, 10).addMember(member1, 10).addMember(member2, 10).open(BlockDeviceOpenOption.CREATE))
+		{
+			pool.writeBlock(0, createRandomBuffer(0, 5 * 512), 0, 5 * 512, new int[4]);
+			pool.writeBlock(5, createRandomBuffer(1, 15 * 512), 0, 15 * 512, new int[4]);
+
+			assertEquals(pool.size(), 20);
+			assertEquals(pool.getRegions(), new long[]{0, 10, 10, 10, 20, 10});
+			assertEquals(member1.size(), 11);
+			assertEquals(member2.size(), 1);
+		}
+
+		// members of an existing pool are ordered by their labels
+		try (PooledBlockStorage pool = new PooledBlockStorage(512).addMember(member2, 1).addMember(member0, 1).addMember(member1, 1).open(BlockDeviceOpenOption.OPEN))
+		{
+			byte[] buffer = new byte[15 * 512];
+			pool.readBlock(5, buffer, 0, buffer.length, new int[4]);
+
+			assertTrue(verifyRandomBuffer(1, buffer));
+			assertEquals(pool.getRegions(), new long[]{0, 10, 10, 10, 20, 10});
+
+			pool.resize(12);
+
+			assertEquals(pool.size(), 12);
+			assertEquals(member1.size(), 3);
+		}
+	}
+
+
+	@Test
+	public void testOnlineExpansion() throws Exception
+	{
+		MemoryBlockStorage member0 = new MemoryBlockStorage(4096);
+		MemoryBlockStorage member1 = new MemoryBlockStorage(4096);
+		ArrayList<BlockPointer> blocks = new ArrayList<>();
+
+		PooledBlockStorage pool = new PooledBlockStorage(4096).addMember(member0, 100);
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(pool).open(BlockDeviceOpenOption.CREATE))
+		{
+			for (int i = 0; i < 60; i++)
+			{
+				long blockIndex = dev.allocBlock(1);
+				dev.writeBlock(blockIndex, createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+				blocks.add(new BlockPointer().setBlockType(BlockType.EXTERNAL).setAllocatedSize(4096).setBlockIndex0(blockIndex));
+			}
+			dev.commit();
+
+			pool.addMember(member1, 100);
+
+			// the allocation hint is updated by the next commit
+			long blockIndex = dev.allocBlock(1);
+			dev.writeBlock(blockIndex, createRandomBuffer(60, 4096), 0, 4096, new int[4]);
+			blocks.add(new BlockPointer().setBlockType(BlockType.EXTERNAL).setAllocatedSize(4096).setBlockIndex0(blockIndex));
+			dev.commit();
+
+			assertTrue(dev.allocBlock(1) >= 98);
+			dev.rollback();
+
+			dev.addBlockOwner(relocator ->
+			{
+				for (int i = 0; i < blocks.size(); i++)
+				{
+					blocks.set(i, relocator.relocate(blocks.get(i)));
+				}
+			});
+
+			for (long n; (n = dev.rebalance(8)) > 0;)
+			{
+				assertTrue(n <= 8);
+				dev.commit();
+			}
+
+			long moved = blocks.stream().filter(e -> e.getBlockIndex0() >= 98).count();
+			assertTrue(moved >= 20 && moved <= 40, "" + moved);
+		}
+
+		try (ManagedBlockDevice dev = new ManagedBlockDevice(new PooledBlockStorage(4096).addMember(member1, 1).addMember(member0, 1)).open(BlockDeviceOpenOption.OPEN))
+		{
+			byte[] buffer = new byte[4096];
+			for (int i = 0; i < blocks.size(); i++)
+			{
+				dev.readBlock(blocks.get(i).getBlockIndex0(), buffer, 0, 4096, new int[4]);
+				assertTrue(verifyRandomBuffer(i, buffer));
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.terifan.raccoon.blockdevice.storage;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.terifan.raccoon.blockdevice.BlockDeviceOpenOption;
+import org.terifan.raccoon.blockdevice.RaccoonIOException;
+import org.terifan.raccoon.blockdevice.managed.ManagedBlockDevice;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static resources.__TestUtils.createRandomBuffer;
+import static resources.__TestUtils.verifyRandomBuffer;
+
+
+public class RemoteBlockStorageNGTest
+{
+	@Test
+	public void testManagedDeviceOverTcp() throws Exception
+	{
+		MemoryBlockStorage storage = new MemoryBlockStorage(4096).open(BlockDeviceOpenOption.CREATE);
+		long[] blocks = new long[100];
+		long extent;
+
+		try (BlockStorageServer server = new BlockStorageServer(storage, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start())
+		{
+			try (ManagedBlockDevice dev = new ManagedBlockDevice(new RemoteBlockStorage(server.getLocalAddress())).open(BlockDeviceOpenOption.CREATE))
+			{
+				for (int i = 0; i < blocks.length; i++)
+				{
+					blocks[i] = dev.allocBlock(1);
+					dev.writeBlock(blocks[i], createRandomBuffer(i, 4096), 0, 4096, new int[4]);
+				}
+
+				// split into several pipelined requests
+				extent = dev.allocBlock(300);
+				dev.writeBlock(extent, createRandomBuffer(1000, 300 * 4096), 0, 300 * 4096, new int[4]);
+
+				dev.getMetadata().put("remote", true);
+				dev.commit();
+			}
+
+			try (RemoteBlockStorage remote = new RemoteBlockStorage(server.getLocalAddress()).open(BlockDeviceOpenOption.READ_ONLY))
+			{
+				try
+				{
+					remote.readBlock(storage.size() + 10, new byte[4096], 0, 4096, new int[4]);
+					fail("read of a missing block");
+				}
+				catch (RaccoonIOException e)
+				{
+					// expected, the connection stays usable
+				}
+
+				assertEquals(remote.size(), storage.size());
+			}
+
+			try (ManagedBlockDevice dev = new ManagedBlockDevice(new RemoteBlockStorage(server.getLocalAddress())).open(BlockDeviceOpenOption.OPEN))
+			{
+				assertEquals(dev.getMetadata().get("remote"), Boolean.TRUE);
+
+				byte[] buffer = new byte[4096];
+				for (int i = 0; i < blocks.length; i++)
+				{
+					dev.readBlock(blocks[i], buffer, 0, 4096, new int[4]);
+					assertTrue(verifyRandomBuffer(i, buffer));
+				}
+
+				buffer = new byte[300 * 4096];
+				dev.readBlock(extent, buffer, 0, buffer.length, new int[4]);
+				assertTrue(verifyRandomBuffer(1000, buffer));
+			}
+		}
+	}
+
+
+	@Test
+	public void testFileStorageOverUnixSocket() throws Exception
+	{
+		Path dir = Files.createTempDirectory("raccoon");
+		Path file = dir.resolve("device.dat");
+		Path socket = dir.resolve("device.sock");
+
+		try (FileBlockStorage storage = new FileBlockStorage(file, 4096).open(BlockDeviceOpenOption.CREATE);
+			BlockStorageServer server = new BlockStorageServer(storage, UnixDomainSocketAddress.of(socket)).start();
+			RemoteBlockStorage remote = new RemoteBlockStorage(server.getLocalAddress()).open(BlockDeviceOpenOption.OPEN))
+		{
+			remote.writeBlock(0, createRandomBuffer(0, 200 * 4096), 0, 200 * 4096, new int[4]);
+			remote.commit(0, false);
+
+			assertEquals(Files.size(file), 200 * 4096);
+
+			// read with transferTo from the file
+			byte[] buffer = new byte[200 * 4096];
+			remote.readBlock(0, buffer, 0, buffer.length, new int[4]);
+			assertTrue(verifyRandomBuffer(0, buffer));
+
+			remote.resize(10);
+			assertEquals(remote.size(), 10);
+		}
+		finally
+		{
+			Files.deleteIfExists(socket);
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+	}
+}